@@ -16,6 +16,10 @@
 
 package com.example.android.bluetoothlegatt;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -28,16 +32,35 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.util.Log;
 
-import java.net.Inet4Address;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.UUID;
-
-import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_SINT8;
-import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8;
+import java.util.concurrent.Executor;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -51,7 +74,139 @@ public class BluetoothLeService extends Service {
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
     private int mConnectionState = STATE_DISCONNECTED;
-    private int descriptorCounter = 0;
+    private boolean mSpeculative = false;
+
+    // Gets a dropped disc back without the user having to ask.  mKeepConnected is whether
+    // anyone still wants the link; mStaleClient whether the last failure means the client has
+    // to be replaced rather than reused.
+    private final ReconnectSupervisor mReconnect = new ReconnectSupervisor(new Random());
+    private boolean mKeepConnected = false;
+    private boolean mStaleClient = false;
+    private final Runnable mReconnectAttempt = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    // Every read, write, descriptor write and MTU request goes through this queue, since
+    // Android drops GATT operations issued while another is outstanding.
+    private final Handler mHandler = new Handler();
+    private final GattOperationQueue mGattQueue = new GattOperationQueue(mHandler);
+
+    // Bulk download of the disc's full-rate flight buffer, pulled after every time of flight
+    // and resumed on reconnect.  See BulkTransfer for the protocol.
+    private static final int BULK_MTU = 247;
+    private static final int BULK_WINDOW = 16;
+    private static final long BULK_STALL_MS = 2000;
+    private int mMtu = 23;
+    private BulkTransfer mBulk;
+
+    // Notification rate control.  Every RATE_TICK_MS the controller looks at consumer backlog,
+    // RSSI and flight phase, and writes a new rate to the disc when it should change.
+    private static final long RATE_TICK_MS = 250;
+    private static final int RSSI_TICKS = 8;
+    private final RateController mRateController = new RateController();
+    private volatile int mRssi = 0;
+    private int mRateTicks = 0;
+
+    // Idle power scheduling.  While the disc lies still the average stream is switched off and
+    // the link asks for low-power connection parameters.  The real-time stream stays on at the
+    // idle rate to notice the next pickup, so resuming takes at most one idle sample interval
+    // plus a connection interval or two for the CCCD write.
+    private final IdleScheduler mIdleScheduler = new IdleScheduler();
+
+    // Telemetry rules, set with setTelemetryRules() or ACTION_SET_RULES and kept in the
+    // "telemetry_rules" preference.  They are evaluated on the Bluetooth callback thread as
+    // samples are decoded, and their writes go to the front of the GATT queue.
+    private static final String PREF_RULES = "telemetry_rules";
+    private volatile RuleBinding mRuleBinding;
+
+    // Telemetry for other apps, bound with ACTION_BIND_TELEMETRY.  Every decoded sample goes
+    // into a shared-memory ring that clients map read-only, and listeners get a coalesced
+    // wake-up at most every TELEMETRY_WAKE_MS instead of a Binder call per sample.
+    private static final int TELEMETRY_CAPACITY = 4096;
+    private static final long TELEMETRY_WAKE_MS = 10;
+    private SharedMemory mTelemetryMemory;
+    private volatile TelemetryRing mTelemetryRing;
+    private volatile boolean mTelemetryWakePending = false;
+    private final RemoteCallbackList<ITelemetryListener> mTelemetryListeners =
+            new RemoteCallbackList<ITelemetryListener>();
+
+    // Foreground capture.  While capturing, the service outlives its bindings and keeps every
+    // Disc Statistics sample in a bounded store the UI backfills from when it comes back.
+    private static final int CAPTURE_CAPACITY = 16384;
+    private static final int CAPTURE_NOTIFICATION_ID = 1;
+    private static final String CAPTURE_CHANNEL_ID = "capture";
+    private final SampleStore mSampleStore = new SampleStore(CAPTURE_CAPACITY);
+    private boolean mCapturing = false;
+
+    // Event trace of the GATT path, dumped on demand with ACTION_DUMP_TRACE or dumpTrace().
+    private static final int TRACE_CAPACITY = 32768;
+    private final TraceJournal mTrace = new TraceJournal(TRACE_CAPACITY);
+
+    // Disc Statistics notifications are decoded, stamped with the disc's clock, stored and
+    // handed to every consumer by the pipeline; what it needs from Android comes back here.
+    private final TelemetryPipeline mPipeline = new TelemetryPipeline(mSampleStore,
+            mIdleScheduler, mTrace, new TelemetryPipeline.Listener() {
+                @Override
+                public void onIdleTransition(int transition) {
+                    BluetoothLeService.this.onIdleTransition(transition);
+                }
+
+                @Override
+                public void onRingWritten() {
+                    if (!mTelemetryWakePending) {
+                        mTelemetryWakePending = true;
+                        mHandler.postDelayed(mTelemetryWake, TELEMETRY_WAKE_MS);
+                    }
+                }
+
+                @Override
+                public void onTimeOfFlight(long sequence, int data) {
+                    broadcastSample(ACTION_DISC_TOF, sequence, data);
+                    // The flight is over; fetch the disc's full-rate copy of it.
+                    if (supportsBulk()) startBulkDownload();
+                }
+            });
+    private final CharacteristicCache mControlCache = new CharacteristicCache();
+
+    // Wobble analysis runs on its own thread, fed by a channel so a slow moment there never
+    // holds up the Bluetooth callbacks.  Live results are broadcast at most every
+    // WOBBLE_BROADCAST_INTERVAL_MS; the flight's result goes out when its time of flight does.
+    private static final int WOBBLE_WINDOW = 64;
+    private static final int WOBBLE_MIN_BIN = 2;
+    private static final float WOBBLE_MAX_JUMP = 300;
+    private static final long WOBBLE_BROADCAST_INTERVAL_MS = 250;
+    private HandlerThread mAnalysisThread;
+    private Handler mAnalysisHandler;
+    private Executor mAnalysisExecutor;
+    private SampleChannel mWobbleChannel;
+    private final WobbleAnalyzer mWobble =
+            new WobbleAnalyzer(WOBBLE_WINDOW, WOBBLE_MIN_BIN, WOBBLE_WINDOW / 2);
+    private final WobbleAnalyzer.Result mWobbleResult = new WobbleAnalyzer.Result();
+    private boolean mWobbleFlightEnded = false;
+    private long mLastWobbleBroadcast = 0;
+
+    // Every flight is also written to its own file in the "flights" directory, on the analysis
+    // thread, for FlightReanalyzer to go back over when the analytics change.
+    private FlightRecorder mFlightRecorder;
+    private SampleChannel mRecorderChannel;
+
+    // Recorded flights are uploaded to the endpoint in the "upload_endpoint" preference, set
+    // with setUploadEndpoint() or ACTION_UPLOAD_FLIGHTS.  The uploader pauses while a disc is in
+    // the air.
+    private static final String PREFS_NAME = "disc_prefs";
+    private static final String PREF_UPLOAD_ENDPOINT = "upload_endpoint";
+    private static final long UPLOAD_BYTES_PER_SECOND = 64 * 1024;
+    private FlightUploader mUploader;
+
+    // Live samples for browsers on the LAN, served on the port in the "dashboard_port"
+    // preference, set with setDashboardPort() or ACTION_DASHBOARD.
+    private static final String PREF_DASHBOARD_PORT = "dashboard_port";
+    private static final int DASHBOARD_CAPACITY = 2048;
+    private DashboardServer mDashboard;
+    private SampleChannel mDashboardChannel;
 
     private static final int STATE_DISCONNECTED = 0;
     private static final int STATE_CONNECTING = 1;
@@ -61,12 +216,17 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
     public final static String ACTION_GATT_DISCONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
+    /** Device address on ACTION_GATT_CONNECTED and ACTION_GATT_DISCONNECTED. */
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE =
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_SEQUENCE =
+            "com.example.bluetooth.le.EXTRA_SEQUENCE";
     public final static String ACTION_LED_BLINK_RATE =
             "com.example.bluetooth.le.ACTION_LED_BLINK_RATE";
     public final static String ACTION_LED_DURATION =
@@ -75,18 +235,70 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_SPEAKER_PITCH";
     public final static String ACTION_SPEAKER_VOLUME =
             "com.example.bluetooth.le.ACTION_SPEAKER_VOLUME";
-    public final static String ACTION_DISC_ANG_RT =
-            "com.example.bluetooth.le.ACTION_DISC_ANG_RT";
-    public final static String ACTION_DISC_ANG_AVG =
-            "com.example.bluetooth.le.ACTION_DISC_ANG_AVG";
     public final static String ACTION_DISC_TOF =
             "com.example.bluetooth.le.ACTION_DISC_TOF";
+    public final static String ACTION_DUMP_TRACE =
+            "com.example.bluetooth.le.ACTION_DUMP_TRACE";
+    public final static String ACTION_UPLOAD_FLIGHTS =
+            "com.example.bluetooth.le.ACTION_UPLOAD_FLIGHTS";
+    public final static String EXTRA_ENDPOINT =
+            "com.example.bluetooth.le.EXTRA_ENDPOINT";
+    public final static String ACTION_BULK_DOWNLOAD =
+            "com.example.bluetooth.le.ACTION_BULK_DOWNLOAD";
+    public final static String ACTION_BULK_COMPLETE =
+            "com.example.bluetooth.le.ACTION_BULK_COMPLETE";
+    public final static String EXTRA_BULK_RATE =
+            "com.example.bluetooth.le.EXTRA_BULK_RATE";
+    public final static String ACTION_DISC_WOBBLE =
+            "com.example.bluetooth.le.ACTION_DISC_WOBBLE";
+    public final static String ACTION_DISC_FLIGHT_WOBBLE =
+            "com.example.bluetooth.le.ACTION_DISC_FLIGHT_WOBBLE";
+    public final static String EXTRA_WOBBLE_FREQUENCY =
+            "com.example.bluetooth.le.EXTRA_WOBBLE_FREQUENCY";
+    public final static String EXTRA_WOBBLE_AMPLITUDE =
+            "com.example.bluetooth.le.EXTRA_WOBBLE_AMPLITUDE";
+    public final static String ACTION_SET_RULES =
+            "com.example.bluetooth.le.ACTION_SET_RULES";
+    public final static String EXTRA_RULES =
+            "com.example.bluetooth.le.EXTRA_RULES";
+    public final static String ACTION_BIND_TELEMETRY =
+            "com.example.bluetooth.le.BIND_TELEMETRY";
+    public final static String ACTION_DISC_IDLE =
+            "com.example.bluetooth.le.ACTION_DISC_IDLE";
+    public final static String EXTRA_IDLE =
+            "com.example.bluetooth.le.EXTRA_IDLE";
+    public final static String EXTRA_IDLE_WAKEUPS =
+            "com.example.bluetooth.le.EXTRA_IDLE_WAKEUPS";
+    public final static String ACTION_DASHBOARD =
+            "com.example.bluetooth.le.ACTION_DASHBOARD";
+    public final static String EXTRA_PORT =
+            "com.example.bluetooth.le.EXTRA_PORT";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
-            UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
+            SampleGattAttributes.HEART_RATE_MEASUREMENT_UUID;
+
+    private BluetoothGattCharacteristic getChar(UUID s, UUID c) {
+        return mBluetoothGatt.getService(s).getCharacteristic(c);
+    }
 
-    private BluetoothGattCharacteristic strToChar(String s, String c) {
-        return mBluetoothGatt.getService(UUID.fromString(s)).getCharacteristic(UUID.fromString(c));
+    /** Control characteristics only change when we write them, so their values are cached. */
+    private static boolean isControlCharacteristic(BluetoothGattCharacteristic c) {
+        UUID service = c.getService().getUuid();
+        return DiscGattAttributes.LED_CONTROL_UUID.equals(service)
+                || DiscGattAttributes.SPEAKER_CONTROL_UUID.equals(service);
+    }
+
+    private String controlAction(BluetoothGattCharacteristic characteristic) {
+        if (characteristic == getChar(DiscGattAttributes.LED_CONTROL_UUID, DiscGattAttributes.LED_BLINK_RATE_UUID)) {
+            return ACTION_LED_BLINK_RATE;
+        } else if (characteristic == getChar(DiscGattAttributes.LED_CONTROL_UUID, DiscGattAttributes.LED_DURATION_UUID)) {
+            return ACTION_LED_DURATION;
+        } else if (characteristic == getChar(DiscGattAttributes.SPEAKER_CONTROL_UUID, DiscGattAttributes.SPEAKER_PITCH_UUID)) {
+            return ACTION_SPEAKER_PITCH;
+        } else if (characteristic == getChar(DiscGattAttributes.SPEAKER_CONTROL_UUID, DiscGattAttributes.SPEAKER_VOLUME_UUID)) {
+            return ACTION_SPEAKER_VOLUME;
+        }
+        return ACTION_DATA_AVAILABLE;
     }
 
     // Implements callback methods for GATT events that the app cares about.  For example,
@@ -98,17 +310,39 @@ public class BluetoothLeService extends Service {
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                // The disc may have been reset or written by someone else while we were away.
+                mControlCache.invalidate(mBluetoothDeviceAddress);
+                mPipeline.resetClock();
+                broadcastUpdate(intentAction, gatt);
+                mTrace.record(TraceJournal.EVENT_CONNECTED, status);
+                if (mReconnect.isReconnecting()
+                        && gatt.getService(DiscGattAttributes.DISC_STATS_UUID) != null) {
+                    // The same client as before the drop still has the services, so skip
+                    // discovery and go straight to turning notifications back on.
+                    subscribe(gatt, true);
+                } else {
+                    // Attempts to discover services after successful connection.
+                    mTrace.record(TraceJournal.EVENT_DISCOVER, mBluetoothGatt.discoverServices() ? 1 : 0);
+                }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                mGattQueue.reset(mBluetoothGatt);
+                mMtu = 23;
+                mHandler.removeCallbacks(mRateTick);
+                mRssi = 0;
+                // What arrived is on disk; the next connection picks up from there.
+                if (mBulk != null) mBulk.cancel();
+                mTrace.record(TraceJournal.EVENT_DISCONNECTED, status);
+                broadcastUpdate(intentAction, gatt);
+                if (ReconnectSupervisor.isStale(status)) {
+                    mStaleClient = true;
+                }
+                if (mKeepConnected && !mSpeculative) {
+                    mReconnect.onLinkLost(SystemClock.elapsedRealtime());
+                    mHandler.postDelayed(mReconnectAttempt, mReconnect.nextDelayMs());
+                }
             }
         }
 
@@ -117,51 +351,125 @@ public class BluetoothLeService extends Service {
             // Enable Local Notifications
             gatt.setCharacteristicNotification(c, true);
             // Enable Remote Notifications
-            d = c.getDescriptor(UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            d.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            gatt.writeDescriptor(d);
+            d = c.getDescriptor(DiscGattAttributes.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+            mTrace.record(TraceJournal.EVENT_CCCD_WRITE, mGattQueue.getPendingCount());
+            mGattQueue.enqueue(GattOperationQueue.writeDescriptor(d,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mTrace.record(TraceJournal.EVENT_DISCOVERED, status);
+            // A fresh discovery means the services may have changed under the cached values.
+            mControlCache.invalidate(mBluetoothDeviceAddress);
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
-            // Enable Notifications for Disc Stats
-            BluetoothGattCharacteristic c;
+            subscribe(gatt, false);
+        }
 
-            descriptorCounter += 1;
-            c = gatt.getService(UUID.fromString(SampleGattAttributes.DISC_STATS)).getCharacteristic(
-                    UUID.fromString(SampleGattAttributes.DISC_TOF));
-            enableNotifications(gatt, c);
+        /**
+         * Turns on notifications and everything else a connection needs.
+         *
+         * @param restoring Whether this is a reconnect, where getting telemetry flowing again
+         *                  comes before anything else.
+         */
+        private void subscribe(BluetoothGatt gatt, boolean restoring) {
+            final BluetoothGattService stats = gatt.getService(DiscGattAttributes.DISC_STATS_UUID);
+            if (restoring) {
+                // Densest stream first; the MTU only matters to bulk transfer.
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_ANG_RT_UUID));
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_ANG_AVG_UUID));
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_TOF_UUID));
+                mGattQueue.enqueue(GattOperationQueue.requestMtu(BULK_MTU));
+            } else {
+                // A large MTU first, so bulk packets and everything after it go out at full size.
+                mGattQueue.enqueue(GattOperationQueue.requestMtu(BULK_MTU));
+
+                // Enable Notifications for Disc Stats
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_TOF_UUID));
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_ANG_AVG_UUID));
+                enableNotifications(gatt, stats.getCharacteristic(DiscGattAttributes.DISC_ANG_RT_UUID));
+            }
+            if (supportsBulk()) {
+                enableNotifications(gatt,
+                        stats.getCharacteristic(DiscGattAttributes.DISC_BULK_CONTROL_UUID));
+                enableNotifications(gatt,
+                        stats.getCharacteristic(DiscGattAttributes.DISC_BULK_DATA_UUID));
+                if (bulkFile().length() > 0) {
+                    // A download was cut short last time.
+                    startBulkDownload();
+                }
+            }
 
             // test code:  read RSSI
-            gatt.readRemoteRssi();
+            mGattQueue.enqueue(GattOperationQueue.readRssi());
+
+            // Every notification is on again.
+            mIdleScheduler.reset(SystemClock.elapsedRealtime());
+            final RuleBinding rules = mRuleBinding;
+            if (rules != null) bindRules(rules.rules);
+
+            if (stats.getCharacteristic(DiscGattAttributes.DISC_RATE_CONTROL_UUID) != null) {
+                mRateController.reset();
+                mHandler.removeCallbacks(mRateTick);
+                mHandler.post(mRateTick);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+            mTrace.record(TraceJournal.EVENT_MTU, mtu, status);
+            mGattQueue.onComplete();
         }
 
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            Log.w(TAG, "RSSI: " + rssi);
+            mTrace.record(TraceJournal.EVENT_RSSI, rssi, status);
+            mGattQueue.onComplete();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mRssi = rssi;
+            }
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            mTrace.record(TraceJournal.EVENT_READ_COMPLETE, status);
+            // Taken before the queue moves on, since the next operation may be a write that
+            // sets a new value on this same characteristic.
+            final byte[] value = characteristic.getValue();
+            mGattQueue.onComplete();
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (characteristic == strToChar(SampleGattAttributes.LED_CONTROL, SampleGattAttributes.LED_BLINK_RATE)) {
-                    broadcastUpdate(ACTION_LED_BLINK_RATE, characteristic);
-                } else if (characteristic == strToChar(SampleGattAttributes.LED_CONTROL, SampleGattAttributes.LED_DURATION)) {
-                    broadcastUpdate(ACTION_LED_DURATION, characteristic);
-                } else if (characteristic == strToChar(SampleGattAttributes.SPEAKER_CONTROL, SampleGattAttributes.SPEAKER_PITCH)) {
-                    broadcastUpdate(ACTION_SPEAKER_PITCH, characteristic);
-                } else if (characteristic == strToChar(SampleGattAttributes.SPEAKER_CONTROL, SampleGattAttributes.SPEAKER_VOLUME)) {
-                    broadcastUpdate(ACTION_SPEAKER_VOLUME, characteristic);
+                if (isControlCharacteristic(characteristic)) {
+                    mControlCache.put(mBluetoothDeviceAddress, characteristic.getUuid(), value);
+                }
+                broadcastUpdate(controlAction(characteristic), value);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mTrace.record(TraceJournal.EVENT_WRITE_COMPLETE, status);
+            // Taken before the queue moves on: a coalesced write to this characteristic sets
+            // its next value as soon as it runs.
+            final byte[] value = characteristic.getValue();
+            mGattQueue.onComplete();
+            // Write-through: what we just wrote is what a read would return.
+            if (isControlCharacteristic(characteristic)) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mControlCache.put(mBluetoothDeviceAddress, characteristic.getUuid(), value);
                 } else {
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                    mControlCache.invalidate(mBluetoothDeviceAddress);
                 }
             }
         }
@@ -169,12 +477,23 @@ public class BluetoothLeService extends Service {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            if (characteristic == strToChar(SampleGattAttributes.DISC_STATS, SampleGattAttributes.DISC_ANG_RT)) {
-                broadcastUpdate(ACTION_DISC_ANG_RT, characteristic);
-            } else if (characteristic == strToChar(SampleGattAttributes.DISC_STATS, SampleGattAttributes.DISC_ANG_AVG)){
-                broadcastUpdate(ACTION_DISC_ANG_AVG, characteristic);
-            } else if (characteristic == strToChar(SampleGattAttributes.DISC_STATS, SampleGattAttributes.DISC_TOF)) {
-                broadcastUpdate(ACTION_DISC_TOF, characteristic);
+            final long now = SystemClock.elapsedRealtimeNanos();
+            final byte[] value = characteristic.getValue();
+            final UUID uuid = characteristic.getUuid();
+            mIdleScheduler.onWakeup();
+            if (mReconnect.isReconnecting()) {
+                onTelemetryResumed();
+            }
+            if (DiscGattAttributes.DISC_BULK_DATA_UUID.equals(uuid)) {
+                if (mBulk != null) mBulk.onData(value);
+            } else if (DiscGattAttributes.DISC_BULK_CONTROL_UUID.equals(uuid)) {
+                if (mBulk != null) mBulk.onControl(value);
+            } else if (characteristic == getChar(DiscGattAttributes.DISC_STATS_UUID, DiscGattAttributes.DISC_ANG_RT_UUID)) {
+                mPipeline.onAngRt(value, now);
+            } else if (characteristic == getChar(DiscGattAttributes.DISC_STATS_UUID, DiscGattAttributes.DISC_ANG_AVG_UUID)){
+                mPipeline.onAngAvg(value, now);
+            } else if (characteristic == getChar(DiscGattAttributes.DISC_STATS_UUID, DiscGattAttributes.DISC_TOF_UUID)) {
+                mPipeline.onTof(value, now);
             }
 
             else {
@@ -185,72 +504,297 @@ public class BluetoothLeService extends Service {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
                                       int status) {
-            BluetoothGattCharacteristic c;
-
-            if (descriptorCounter == 1) {
-                c = gatt.getService(UUID.fromString(SampleGattAttributes.DISC_STATS)).getCharacteristic(
-                        UUID.fromString(SampleGattAttributes.DISC_ANG_AVG));
-                enableNotifications(gatt, c);
-            } else if (descriptorCounter == 2) {
-                c = gatt.getService(UUID.fromString(SampleGattAttributes.DISC_STATS)).getCharacteristic(
-                        UUID.fromString(SampleGattAttributes.DISC_ANG_RT));
-                enableNotifications(gatt, c);
-            }
-            descriptorCounter += 1;
-
+            mTrace.record(TraceJournal.EVENT_CCCD_WRITTEN, mGattQueue.getPendingCount(), status);
+            mGattQueue.onComplete();
         }
     };
 
     public void ledEnable() {
         BluetoothGattCharacteristic c;
-        c = mBluetoothGatt.getService(UUID.fromString(SampleGattAttributes.LED_CONTROL)).getCharacteristic(
-                UUID.fromString(SampleGattAttributes.LED_ON_OFF));
+        c = mBluetoothGatt.getService(DiscGattAttributes.LED_CONTROL_UUID).getCharacteristic(
+                DiscGattAttributes.LED_ON_OFF_UUID);
         byte[] on_off = new byte[1];
         on_off[0] = 1;
-        c.setValue(on_off);
-        mBluetoothGatt.writeCharacteristic(c);
+        mTrace.record(TraceJournal.EVENT_WRITE);
+        mGattQueue.enqueue(GattOperationQueue.write(c, on_off,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
     }
 
     public void speakerEnable() {
         BluetoothGattCharacteristic c;
-        c = mBluetoothGatt.getService(UUID.fromString(SampleGattAttributes.SPEAKER_CONTROL)).getCharacteristic(
-                UUID.fromString(SampleGattAttributes.SPEAKER_ON_OFF));
+        c = mBluetoothGatt.getService(DiscGattAttributes.SPEAKER_CONTROL_UUID).getCharacteristic(
+                DiscGattAttributes.SPEAKER_ON_OFF_UUID);
         byte[] on_off = new byte[1];
         on_off[0] = 1;
-        c.setValue(on_off);
-        mBluetoothGatt.writeCharacteristic(c);
+        mTrace.record(TraceJournal.EVENT_WRITE);
+        mGattQueue.enqueue(GattOperationQueue.write(c, on_off,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
     }
 
-    /** Source:  http://processors.wiki.ti.com/ as referenced in IoT Projects with BLE book */
-    private Integer shortSignedAtOffset(BluetoothGattCharacteristic c, int offset) {
-        Integer lowerByte = c.getIntValue(FORMAT_UINT8, offset);
-        Integer upperByte = c.getIntValue(FORMAT_SINT8, offset + 1);
-        return (upperByte << 8) + lowerByte;
+    private void broadcastUpdate(final String action) {
+        final Intent intent = new Intent(action);
+        sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final BluetoothGatt gatt) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, gatt.getDevice().getAddress());
         sendBroadcast(intent);
     }
 
     private void broadcastUpdate(final String action,
                                  final BluetoothGattCharacteristic characteristic) {
         final Intent intent = new Intent(action);
+        putByteData(intent, characteristic.getValue());
+        sendBroadcast(intent);
+    }
 
-        if ((characteristic == strToChar(SampleGattAttributes.DISC_STATS, SampleGattAttributes.DISC_ANG_RT)) ||
-                (characteristic == strToChar(SampleGattAttributes.DISC_STATS, SampleGattAttributes.DISC_ANG_AVG))) {
-            Integer data = shortSignedAtOffset(characteristic, 4);
-            intent.putExtra(EXTRA_DATA, String.format("%d", data));
+    private final Runnable mRateTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mBluetoothGatt == null || mConnectionState != STATE_CONNECTED) return;
+            float backlog = 0;
+            long overflow = 0;
+            for (SampleChannel channel : mPipeline.getChannels()) {
+                backlog = Math.max(backlog, channel.getBacklog() / (float) channel.getCapacity());
+                overflow += channel.getOverflowCount();
+            }
+            final int rate = mRateController.update(SystemClock.elapsedRealtime(),
+                    mPipeline.isInFlight(), backlog, overflow, mRssi);
+            if (rate != RateController.NO_CHANGE) {
+                mTrace.record(TraceJournal.EVENT_RATE, rate);
+                mTrace.record(TraceJournal.EVENT_WRITE, rate);
+                mGattQueue.enqueueLatest(getChar(DiscGattAttributes.DISC_STATS_UUID,
+                                DiscGattAttributes.DISC_RATE_CONTROL_UUID),
+                        DiscGattAttributes.encodeDiscRateControl(rate));
+            }
+            if (++mRateTicks % RSSI_TICKS == 0) {
+                mGattQueue.enqueue(GattOperationQueue.readRssi());
+            }
+            mHandler.postDelayed(this, RATE_TICK_MS);
+        }
+    };
+
+    /**
+     * Switches the average stream and connection parameters for an idle disc, or back.  The
+     * re-enable jumps the queue, since it stands between a pickup and the first averages.
+     */
+    private void onIdleTransition(int transition) {
+        if (transition == IdleScheduler.NONE || mBluetoothGatt == null) return;
+        final boolean idle = transition == IdleScheduler.ENTER_IDLE;
+        final BluetoothGattCharacteristic avg =
+                getChar(DiscGattAttributes.DISC_STATS_UUID, DiscGattAttributes.DISC_ANG_AVG_UUID);
+        final BluetoothGattDescriptor d =
+                avg.getDescriptor(DiscGattAttributes.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+        mBluetoothGatt.setCharacteristicNotification(avg, !idle);
+        mTrace.record(TraceJournal.EVENT_CCCD_WRITE, mGattQueue.getPendingCount());
+        if (idle) {
+            mGattQueue.enqueue(GattOperationQueue.writeDescriptor(d,
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
+            mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        } else {
+            mBluetoothGatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            mGattQueue.enqueueFirst(GattOperationQueue.writeDescriptor(d,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
         }
-        else {
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%d", byteChar));
-                intent.putExtra(EXTRA_DATA, stringBuilder.toString());
+        final double wakeups =
+                mIdleScheduler.getIdleWakeupsPerMinute(SystemClock.elapsedRealtime());
+        Log.d(TAG, (idle ? "Disc idle" : "Disc moving") + String.format(Locale.US,
+                ", %.1f wakeups/min while idle", wakeups));
+        final Intent intent = new Intent(ACTION_DISC_IDLE);
+        intent.putExtra(EXTRA_IDLE, idle);
+        intent.putExtra(EXTRA_IDLE_WAKEUPS, wakeups);
+        sendBroadcast(intent);
+    }
+
+    /** Compiled rules and the writes they make on the current connection. */
+    private final class RuleBinding implements TelemetryRules.Listener {
+        final TelemetryRules rules;
+        final GattOperationQueue.Operation[] writes;
+        final long[] triggerNanos;
+
+        RuleBinding(TelemetryRules rules) {
+            this.rules = rules;
+            writes = new GattOperationQueue.Operation[rules.size()];
+            triggerNanos = new long[rules.size()];
+            for (int i = 0; i < rules.size(); i++) {
+                final BluetoothGattService service = mBluetoothGatt != null
+                        ? mBluetoothGatt.getService(rules.getService(i)) : null;
+                final BluetoothGattCharacteristic c = service != null
+                        ? service.getCharacteristic(rules.getCharacteristic(i)) : null;
+                if (c != null) writes[i] = ruleWrite(i, c);
             }
         }
+
+        private GattOperationQueue.Operation ruleWrite(final int rule,
+                                                       final BluetoothGattCharacteristic c) {
+            final byte[] value = rules.getValue(rule);
+            final int writeType =
+                    (c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                            ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                            : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+            return new GattOperationQueue.Operation("rule " + rule) {
+                @Override
+                boolean execute(BluetoothGatt gatt) {
+                    c.setWriteType(writeType);
+                    c.setValue(value);
+                    final boolean issued = gatt.writeCharacteristic(c);
+                    final long latency = SystemClock.elapsedRealtimeNanos() - triggerNanos[rule];
+                    rules.recordLatency(latency);
+                    if (latency > TelemetryRules.LATENCY_BUDGET_NANOS) {
+                        Log.w(TAG, "Rule " + rule + " write took " + latency / 1000 + " us");
+                    }
+                    return issued;
+                }
+            };
+        }
+
+        @Override
+        public void onRuleFired(int rule, long arrivalNanos) {
+            if (writes[rule] == null) return;
+            triggerNanos[rule] = arrivalNanos;
+            mTrace.record(TraceJournal.EVENT_WRITE, rule);
+            mGattQueue.enqueueFirst(writes[rule]);
+        }
+    }
+
+    /**
+     * Replaces the telemetry rules and remembers them for next time.  Empty source clears them.
+     *
+     * @throws ParseException If {@code source} does not compile; the old rules stay.
+     */
+    public void setTelemetryRules(String source) throws ParseException {
+        final TelemetryRules rules = source == null || source.trim().isEmpty()
+                ? null : TelemetryRules.compile(source);
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(PREF_RULES, source).apply();
+        bindRules(rules);
+    }
+
+    /** @return The source of the current telemetry rules, or empty. */
+    public String getTelemetryRules() {
+        return getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(PREF_RULES, "");
+    }
+
+    private void bindRules(TelemetryRules rules) {
+        final RuleBinding binding = rules != null ? new RuleBinding(rules) : null;
+        mRuleBinding = binding;
+        mPipeline.setRules(rules, binding);
+    }
+
+    /** @return The rules' mean notification-to-write latency in nanoseconds, or 0. */
+    public long getRuleLatencyNanos() {
+        final RuleBinding binding = mRuleBinding;
+        return binding != null ? binding.rules.getMeanLatencyNanos() : 0;
+    }
+
+    private final Runnable mTelemetryWake = new Runnable() {
+        @Override
+        public void run() {
+            mTelemetryWakePending = false;
+            final TelemetryRing ring = mTelemetryRing;
+            if (ring == null) return;
+            final long sequence = ring.getWriteSequence();
+            final int n = mTelemetryListeners.beginBroadcast();
+            for (int i = 0; i < n; i++) {
+                try {
+                    mTelemetryListeners.getBroadcastItem(i).onSamples(sequence);
+                } catch (RemoteException e) {
+                    // The client died; the callback list drops it by itself.
+                }
+            }
+            mTelemetryListeners.finishBroadcast();
+        }
+    };
+
+    private final ITelemetryService.Stub mTelemetryBinder = new ITelemetryService.Stub() {
+        @Override
+        public SharedMemory getRing() {
+            return telemetryMemory();
+        }
+
+        @Override
+        public void registerListener(ITelemetryListener listener) {
+            if (listener != null) mTelemetryListeners.register(listener);
+        }
+
+        @Override
+        public void unregisterListener(ITelemetryListener listener) {
+            if (listener != null) mTelemetryListeners.unregister(listener);
+        }
+    };
+
+    /** Creates the telemetry ring on first use; SharedMemory needs Android 8.1. */
+    private synchronized SharedMemory telemetryMemory() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) return null;
+        if (mTelemetryMemory == null) {
+            try {
+                final SharedMemory memory = SharedMemory.create("disc-telemetry",
+                        TelemetryRing.sizeFor(TELEMETRY_CAPACITY));
+                final ByteBuffer mapping = memory.mapReadWrite();
+                // Mappings made from here on, i.e. the clients', are read-only.
+                memory.setProtect(OsConstants.PROT_READ);
+                mTelemetryRing = new TelemetryRing(mapping);
+                mPipeline.setRing(mTelemetryRing);
+                mTelemetryMemory = memory;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Unable to create telemetry ring", e);
+                return null;
+            }
+        }
+        return mTelemetryMemory;
+    }
+
+    private void broadcastSample(final String action, long sequence, int data) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DATA, String.format("%d", data));
+        intent.putExtra(EXTRA_SEQUENCE, sequence);
+        sendBroadcast(intent);
+    }
+
+    private void broadcastUpdate(final String action, final byte[] data) {
+        final Intent intent = new Intent(action);
+        putByteData(intent, data);
+        sendBroadcast(intent);
+    }
+
+    private static void putByteData(Intent intent, byte[] data) {
+        if (data != null && data.length > 0) {
+            final StringBuilder stringBuilder = new StringBuilder(data.length);
+            for (byte byteChar : data)
+                stringBuilder.append(String.format("%d", byteChar));
+            intent.putExtra(EXTRA_DATA, stringBuilder.toString());
+        }
+    }
+
+    /** Runs on the analysis thread. */
+    private void analyzeWobble(SampleStore.Batch b) {
+        for (int i = 0; i < b.count; i++) {
+            if (b.streams[i] == SampleStore.STREAM_ANG_RT) {
+                if (mWobbleFlightEnded) {
+                    mWobbleFlightEnded = false;
+                    mWobble.reset();
+                }
+                mWobble.add(b.times[i], b.values[i]);
+            } else if (b.streams[i] == SampleStore.STREAM_TOF && !mWobbleFlightEnded) {
+                mWobbleFlightEnded = true;
+                if (mWobble.getFlight(mWobbleResult)) {
+                    broadcastWobble(ACTION_DISC_FLIGHT_WOBBLE, mWobbleResult);
+                }
+            }
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (!mWobbleFlightEnded && now - mLastWobbleBroadcast >= WOBBLE_BROADCAST_INTERVAL_MS
+                && mWobble.getLive(mWobbleResult)) {
+            mLastWobbleBroadcast = now;
+            broadcastWobble(ACTION_DISC_WOBBLE, mWobbleResult);
+        }
+    }
+
+    private void broadcastWobble(final String action, WobbleAnalyzer.Result result) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_WOBBLE_FREQUENCY, result.frequencyHz);
+        intent.putExtra(EXTRA_WOBBLE_AMPLITUDE, result.amplitude);
         sendBroadcast(intent);
     }
 
@@ -260,20 +804,366 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mAnalysisThread = new HandlerThread("Analysis", Process.THREAD_PRIORITY_BACKGROUND);
+        mAnalysisThread.start();
+        mAnalysisHandler = new Handler(mAnalysisThread.getLooper());
+        mAnalysisExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mAnalysisHandler.post(command);
+            }
+        };
+        mWobbleChannel = SampleChannel.bounded("wobble", CAPTURE_CAPACITY / 4,
+                new SampleChannel.Consumer() {
+                    @Override
+                    public void onSamples(SampleStore.Batch batch) {
+                        analyzeWobble(batch);
+                    }
+                }, mAnalysisExecutor);
+        // A single glitched sample would otherwise show up as broadband wobble.
+        mWobbleChannel.setFilter(SampleStore.STREAM_ANG_RT,
+                new SignalFilters.OutlierReject(WOBBLE_MAX_JUMP));
+        registerChannel(mWobbleChannel);
+
+        try {
+            final String rules = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                    .getString(PREF_RULES, null);
+            if (rules != null && !rules.trim().isEmpty()) {
+                bindRules(TelemetryRules.compile(rules));
+            }
+        } catch (ParseException e) {
+            Log.e(TAG, "Stored rules no longer compile", e);
+        }
+
+        final File flights = storageDir("flights");
+        if (flights != null) {
+            mFlightRecorder = new FlightRecorder(flights, new FlightRecorder.Listener() {
+                @Override
+                public void onFlightStarted() {
+                    if (mUploader != null) mUploader.setPaused(true);
+                }
+
+                @Override
+                public void onFlightRecorded(File flight) {
+                    if (mUploader != null) {
+                        mUploader.setPaused(false);
+                        mUploader.requestUpload();
+                    }
+                }
+            });
+            mRecorderChannel = SampleChannel.bounded("recorder", CAPTURE_CAPACITY,
+                    mFlightRecorder, mAnalysisExecutor);
+            registerChannel(mRecorderChannel);
+            startUploader(getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                    .getString(PREF_UPLOAD_ENDPOINT, null));
+        }
+        final int port = getDashboardPort();
+        try {
+            startDashboard(port);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to serve the dashboard on port " + port, e);
+        }
+    }
+
+    /**
+     * Serves the live dashboard on {@code port} from now on, and remembers it for next time.
+     * 0 stops serving.
+     *
+     * @throws IOException If the port can't be listened on; the dashboard is then off.
+     */
+    public void setDashboardPort(int port) throws IOException {
+        if (port < 0 || port > 65535) throw new IOException("No such port " + port);
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putInt(PREF_DASHBOARD_PORT, port).apply();
+        startDashboard(port);
+    }
+
+    /** @return The port the dashboard is served on, or 0 if it is off. */
+    public int getDashboardPort() {
+        return getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(PREF_DASHBOARD_PORT, 0);
+    }
+
+    /** (Re)starts serving the live dashboard on {@code port}, or stops if it is 0. */
+    private void startDashboard(int port) throws IOException {
+        stopDashboard();
+        if (port <= 0) return;
+        final DashboardServer dashboard = new DashboardServer(port);
+        dashboard.start();
+        Log.i(TAG, "Dashboard on port " + dashboard.getLocalPort());
+        mDashboard = dashboard;
+        // Encoding a batch is cheap next to the wobble analysis sharing the thread.
+        mDashboardChannel = SampleChannel.bounded("dashboard", DASHBOARD_CAPACITY, dashboard,
+                mAnalysisExecutor);
+        registerChannel(mDashboardChannel);
+    }
+
+    private void stopDashboard() {
+        if (mDashboard == null) return;
+        unregisterChannel(mDashboardChannel);
+        mDashboard.stop();
+        mDashboard = null;
+        mDashboardChannel = null;
+    }
+
+    /**
+     * Uploads recorded flights to {@code endpoint} from now on, and remembers it for next time.
+     * Empty stops uploading.
+     *
+     * @throws MalformedURLException If {@code endpoint} is not a URL; the old one stays.
+     */
+    public void setUploadEndpoint(String endpoint) throws MalformedURLException {
+        if (!endpoint.isEmpty()) new URL(endpoint);
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(PREF_UPLOAD_ENDPOINT, endpoint).apply();
+        startUploader(endpoint);
+    }
+
+    /** @return The endpoint flights are uploaded to, or empty. */
+    public String getUploadEndpoint() {
+        return getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getString(PREF_UPLOAD_ENDPOINT, "");
+    }
+
+    /** (Re)starts uploading flights to {@code endpoint}, or stops if it is empty. */
+    private void startUploader(String endpoint) {
+        if (mUploader != null) {
+            mUploader.stop();
+            mUploader = null;
+        }
+        if (endpoint == null || endpoint.isEmpty()) return;
+        final File flights = storageDir("flights");
+        if (flights == null) return;
+        try {
+            mUploader = new FlightUploader(flights, new File(getFilesDir(), "uploaded.txt"),
+                    new URL(endpoint), UPLOAD_BYTES_PER_SECOND);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Bad upload endpoint " + endpoint, e);
+            return;
+        }
+        mUploader.start();
+    }
+
+    @Override
+    public void onDestroy() {
+        startUploader(null);
+        stopDashboard();
+        mTelemetryListeners.kill();
+        synchronized (this) {
+            if (mTelemetryMemory != null) {
+                // Our mapping outlives the descriptor, so a late sample still has somewhere
+                // to go; it is unmapped once collected.
+                mTelemetryMemory.close();
+                mTelemetryMemory = null;
+            }
+        }
+        unregisterChannel(mWobbleChannel);
+        if (mRecorderChannel != null) {
+            unregisterChannel(mRecorderChannel);
+            mAnalysisHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mFlightRecorder.close();
+                }
+            });
+        }
+        // Let queued batches reach the recorder before the thread goes.
+        mAnalysisThread.quitSafely();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_TELEMETRY.equals(intent.getAction())) {
+            return mTelemetryBinder;
+        }
         return mBinder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
+        // Telemetry clients only watch; the connection belongs to whoever made it.
+        if (ACTION_BIND_TELEMETRY.equals(intent.getAction())) {
+            return false;
+        }
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // invoked when the UI is disconnected from the Service, unless a capture is running.
+        if (!mCapturing) {
+            close();
+        }
         return super.onUnbind(intent);
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DUMP_TRACE.equals(intent.getAction())) {
+            dumpTrace();
+            if (!mCapturing) {
+                stopSelf(startId);
+            }
+        } else if (intent != null && ACTION_SET_RULES.equals(intent.getAction())) {
+            try {
+                setTelemetryRules(intent.getStringExtra(EXTRA_RULES));
+            } catch (ParseException e) {
+                Log.e(TAG, "Rules not set: " + e.getMessage() + " at " + e.getErrorOffset());
+            }
+        } else if (intent != null && ACTION_BULK_DOWNLOAD.equals(intent.getAction())) {
+            startBulkDownload();
+        } else if (intent != null && ACTION_DASHBOARD.equals(intent.getAction())) {
+            // Port 0 turns the dashboard off.
+            final int port = intent.getIntExtra(EXTRA_PORT, DashboardServer.DEFAULT_PORT);
+            try {
+                setDashboardPort(port);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to serve the dashboard on port " + port, e);
+            }
+        } else if (intent != null && ACTION_UPLOAD_FLIGHTS.equals(intent.getAction())) {
+            // Stays started so the upload can finish; stopCapture() stops it as usual.
+            final String endpoint = intent.getStringExtra(EXTRA_ENDPOINT);
+            if (endpoint != null) {
+                try {
+                    setUploadEndpoint(endpoint);
+                } catch (MalformedURLException e) {
+                    Log.e(TAG, "Bad upload endpoint " + endpoint, e);
+                }
+            } else if (mUploader != null) {
+                mUploader.requestUpload();
+            }
+        }
+        // A restarted service would have no GATT connection to capture from.
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Writes the GATT event trace to a Chrome trace JSON file that Perfetto can open.
+     *
+     * @return The file written, or null if it could not be written.
+     */
+    public File dumpTrace() {
+        final File dir = storageDir("traces");
+        if (dir == null) {
+            return null;
+        }
+        final File file = new File(dir, "gatt-" + System.currentTimeMillis() + ".json");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(file));
+            mTrace.writeChromeTrace(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write trace", e);
+            return null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close trace", e);
+                }
+            }
+        }
+        Log.i(TAG, "Trace written to " + file);
+        return file;
+    }
+
+    /** @return Where recorded flights are kept, or null if there is no storage. */
+    public File getFlightsDir() {
+        return storageDir("flights");
+    }
+
+    /**
+     * @return The named directory under the app's external files, falling back to internal
+     * storage, or null if it could not be created.
+     */
+    private File storageDir(String name) {
+        File dir = getExternalFilesDir(name);
+        if (dir == null) {
+            dir = new File(getFilesDir(), name);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create directory " + dir);
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Keeps the service and its GATT connection running in the foreground, recording
+     * notifications while no UI is attached.  Call {@link #stopCapture()} once the user is done
+     * with the disc.
+     */
+    public void startCapture() {
+        if (mCapturing) {
+            return;
+        }
+        mCapturing = true;
+        startService(new Intent(this, BluetoothLeService.class));
+        startForeground(CAPTURE_NOTIFICATION_ID, buildCaptureNotification());
+    }
+
+    public void stopCapture() {
+        if (!mCapturing) {
+            return;
+        }
+        mCapturing = false;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    public boolean isCapturing() {
+        return mCapturing;
+    }
+
+    /**
+     * Copies every captured sample after {@code afterSequence} into {@code out} in one go, so a
+     * returning UI can catch up without replaying individual broadcasts.
+     *
+     * @return The number of samples copied.
+     */
+    public int getSamplesSince(long afterSequence, SampleStore.Batch out) {
+        return mSampleStore.copySince(afterSequence, out);
+    }
+
+    /**
+     * Starts delivering every decoded Disc Statistics sample to {@code channel}, subject to the
+     * channel's backpressure policy.
+     */
+    public void registerChannel(SampleChannel channel) {
+        mPipeline.registerChannel(channel);
+    }
+
+    public void unregisterChannel(SampleChannel channel) {
+        if (!mPipeline.unregisterChannel(channel)) return;
+        Log.d(TAG, "Channel " + channel.getName() + " delivered " + channel.getDeliveredCount()
+                + ", overflowed " + channel.getOverflowCount()
+                + ", skipped " + channel.getSkippedCount()
+                + ", filter ns/sample " + channel.getFilterNanosPerSample());
+    }
+
+    private Notification buildCaptureNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(CAPTURE_CHANNEL_ID,
+                    getString(R.string.capture_channel_name), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CAPTURE_CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, mBluetoothDeviceAddress);
+        intent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        return builder.setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.capture_notification_text))
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .build();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -312,6 +1202,16 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
+        return connect(address, false);
+    }
+
+    /**
+     * Connects to a disc by address, without scanning for it first.
+     *
+     * @param autoConnect Let the stack wait for the disc in the background rather than giving
+     *                    up after its direct connect timeout.
+     */
+    public boolean connect(final String address, boolean autoConnect) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
@@ -320,7 +1220,16 @@ public class BluetoothLeService extends Service {
         // Previously connected device.  Try to reconnect.
         if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
                 && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            if (mSpeculative) {
+                Log.i(TAG, "Reusing speculative connection to " + address);
+                mSpeculative = false;
+            }
+            mKeepConnected = true;
+            if (mConnectionState != STATE_DISCONNECTED) {
+                // Already connected or on the way there, nothing to redo.
+                return true;
+            }
+            mTrace.record(TraceJournal.EVENT_CONNECT, 1);
             if (mBluetoothGatt.connect()) {
                 mConnectionState = STATE_CONNECTING;
                 return true;
@@ -334,15 +1243,72 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
+        // Only one disc at a time; drop whatever we were talking to before, including a
+        // speculative connection that guessed wrong.
+        if (mBluetoothGatt != null) {
+            if (mSpeculative) {
+                Log.i(TAG, "Cancelling speculative connection to " + mBluetoothDeviceAddress);
+            }
+            mSpeculative = false;
+            close();
+            mConnectionState = STATE_DISCONNECTED;
+        }
+        mKeepConnected = true;
+        mStaleClient = false;
+        mTrace.record(TraceJournal.EVENT_CONNECT);
+        mBluetoothGatt = device.connectGatt(this, autoConnect, mGattCallback);
+        mGattQueue.reset(mBluetoothGatt);
         mBluetoothDeviceAddress = address;
         mConnectionState = STATE_CONNECTING;
         return true;
     }
 
+    /**
+     * Starts connecting to the disc the user is most likely to pick, before they pick it.  A
+     * later {@link #connect(String)} to the same address reuses the connection; a connect to
+     * any other address cancels it.
+     *
+     * @param address The device address of the likely destination device.
+     *
+     * @return Return true if the connection is in place or initiated successfully.
+     */
+    public boolean preconnect(final String address) {
+        if (address == null) {
+            return false;
+        }
+        if (address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null
+                && mConnectionState != STATE_DISCONNECTED) {
+            return true;
+        }
+        Log.d(TAG, "Speculatively connecting to " + address);
+        final boolean result = connect(address);
+        mSpeculative = result;
+        return result;
+    }
+
+    /**
+     * Drops a speculative connection that was never claimed by {@link #connect(String)}.
+     */
+    public void cancelPreconnect() {
+        if (!mSpeculative) {
+            return;
+        }
+        Log.i(TAG, "Cancelling speculative connection to " + mBluetoothDeviceAddress);
+        mSpeculative = false;
+        close();
+        mConnectionState = STATE_DISCONNECTED;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
+    }
+
+    /** @return Whether the link to {@code address} in particular is up. */
+    public boolean isConnected(String address) {
+        return mConnectionState == STATE_CONNECTED && address != null
+                && address.equals(mBluetoothDeviceAddress);
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -354,17 +1320,87 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        stopReconnecting();
+        mControlCache.invalidate(mBluetoothDeviceAddress);
         mBluetoothGatt.disconnect();
     }
 
+    /**
+     * Tries to get a dropped disc back: the same client again if it is still good, so the
+     * services it found last time can be reused, otherwise a new one.
+     */
+    private void reconnect() {
+        if (!mReconnect.isReconnecting() || mConnectionState != STATE_DISCONNECTED) {
+            return;
+        }
+        Log.i(TAG, "Reconnecting to " + mBluetoothDeviceAddress + ", attempt "
+                + mReconnect.getAttempt());
+        if (mBluetoothGatt != null && !mStaleClient) {
+            mTrace.record(TraceJournal.EVENT_CONNECT, 1);
+            if (mBluetoothGatt.connect()) {
+                mConnectionState = STATE_CONNECTING;
+                return;
+            }
+        }
+        // The stack has lost track of this client; only a new one will connect.
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+        }
+        mStaleClient = false;
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mBluetoothDeviceAddress);
+        mTrace.record(TraceJournal.EVENT_CONNECT);
+        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+        mGattQueue.reset(mBluetoothGatt);
+        if (mBluetoothGatt == null) {
+            // Bluetooth is probably off; keep trying, ever less often.
+            mHandler.postDelayed(mReconnectAttempt, mReconnect.nextDelayMs());
+            return;
+        }
+        mConnectionState = STATE_CONNECTING;
+    }
+
+    private void stopReconnecting() {
+        mKeepConnected = false;
+        mReconnect.stop();
+        mHandler.removeCallbacks(mReconnectAttempt);
+    }
+
+    private void onTelemetryResumed() {
+        final int attempts = mReconnect.getAttempt();
+        final long outage = mReconnect.onDataResumed(SystemClock.elapsedRealtime());
+        if (outage >= 0) {
+            Log.i(TAG, "Telemetry back after " + outage + " ms, " + attempts + " attempts");
+        }
+    }
+
+    /** @return Dropouts the disc has come back from since the service started. */
+    public long getOutageCount() {
+        return mReconnect.getOutageCount();
+    }
+
+    /** @return Mean time from a dropout to the first notification after it, or 0 if none. */
+    public long getMeanOutageMillis() {
+        return mReconnect.getMeanOutageMillis();
+    }
+
+    public long getMaxOutageMillis() {
+        return mReconnect.getMaxOutageMillis();
+    }
+
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
     public void close() {
+        stopReconnecting();
+        // The next connection may well be to another disc.
+        mControlCache.invalidateAll();
         if (mBluetoothGatt == null) {
             return;
         }
+        if (mBulk != null) mBulk.cancel();
+        mHandler.removeCallbacks(mRateTick);
+        mGattQueue.reset(null);
         mBluetoothGatt.close();
         mBluetoothGatt = null;
     }
@@ -376,24 +1412,61 @@ public class BluetoothLeService extends Service {
      *
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(String service, String characteristic) {
-        BluetoothGattCharacteristic c;
-        c = mBluetoothGatt.getService(UUID.fromString(service)).getCharacteristic(
-                UUID.fromString(characteristic));
+    public void readCharacteristic(UUID service, UUID characteristic) {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(c);
+        BluetoothGattCharacteristic c = getChar(service, characteristic);
+        if (isControlCharacteristic(c)) {
+            byte[] cached = mControlCache.get(mBluetoothDeviceAddress, c.getUuid());
+            if (cached != null) {
+                mTrace.record(TraceJournal.EVENT_CACHE_HIT);
+                broadcastUpdate(controlAction(c), cached);
+                return;
+            }
+        }
+        mTrace.record(TraceJournal.EVENT_READ);
+        mGattQueue.enqueue(GattOperationQueue.read(c));
     }
 
-    public void writeCharacteristic(String service, String characteristic, byte[] data) {
-        BluetoothGattCharacteristic c;
-        c = mBluetoothGatt.getService(UUID.fromString(service)).getCharacteristic(
-                UUID.fromString(characteristic));
+    /**
+     * Forgets every cached control value for the current device so the next reads go over
+     * the air.
+     */
+    public void refreshControlCache() {
+        mControlCache.invalidate(mBluetoothDeviceAddress);
+    }
+
+    /** @return Number of control reads answered from the cache without touching the radio. */
+    public long getCacheHitCount() {
+        return mControlCache.getHitCount();
+    }
+
+    /** @return Number of control reads that had to go over the air. */
+    public long getCacheMissCount() {
+        return mControlCache.getMissCount();
+    }
 
-        c.setValue(data);
-        mBluetoothGatt.writeCharacteristic(c);
+    /**
+     * Writes a characteristic.  Control writes keep only their newest value while one is
+     * waiting, so a control changed faster than the link keeps up with never builds a backlog.
+     */
+    public void writeCharacteristic(UUID service, UUID characteristic, byte[] data) {
+        BluetoothGattCharacteristic c = getChar(service, characteristic);
+
+        mTrace.record(TraceJournal.EVENT_WRITE);
+        if (isControlCharacteristic(c)) {
+            mGattQueue.enqueueLatest(c, data);
+        } else {
+            mGattQueue.enqueue(GattOperationQueue.write(c, data,
+                    BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+        }
+    }
+
+    /** @return Control writes dropped because a newer value replaced them. */
+    public long getCoalescedWriteCount() {
+        return mGattQueue.getCoalescedCount();
     }
 
     /**
@@ -413,10 +1486,114 @@ public class BluetoothLeService extends Service {
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+                    DiscGattAttributes.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+            mGattQueue.enqueue(GattOperationQueue.writeDescriptor(descriptor,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+        }
+    }
+
+    /** @return True if the connected disc offers the bulk flight download. */
+    private boolean supportsBulk() {
+        if (mBluetoothGatt == null) return false;
+        final BluetoothGattService stats = mBluetoothGatt.getService(DiscGattAttributes.DISC_STATS_UUID);
+        return stats != null
+                && stats.getCharacteristic(DiscGattAttributes.DISC_BULK_CONTROL_UUID) != null
+                && stats.getCharacteristic(DiscGattAttributes.DISC_BULK_DATA_UUID) != null;
+    }
+
+    private File bulkFile() {
+        File dir = storageDir("bulk");
+        if (dir == null) dir = getCacheDir();
+        return new File(dir, mBluetoothDeviceAddress.replace(":", "") + ".bulk");
+    }
+
+    /**
+     * Pulls the disc's full-rate buffer of its last flight, resuming a download that was cut
+     * short.  The result is stored as a flight named {@code flight-<ms>-full.dfl} next to the
+     * live recording, and ACTION_BULK_COMPLETE reports the throughput.
+     *
+     * @return False if the disc has no bulk transfer or one is already running.
+     */
+    public boolean startBulkDownload() {
+        if (!supportsBulk() || (mBulk != null && mBulk.isRunning())) {
+            return false;
         }
+        final BluetoothGattCharacteristic control = getChar(DiscGattAttributes.DISC_STATS_UUID,
+                DiscGattAttributes.DISC_BULK_CONTROL_UUID);
+        mBulk = new BulkTransfer(bulkFile(), BULK_WINDOW, new BulkTransfer.Listener() {
+            @Override
+            public void sendControl(byte[] value) {
+                mTrace.record(TraceJournal.EVENT_WRITE, value[0]);
+                mGattQueue.enqueue(GattOperationQueue.write(control, value,
+                        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+            }
+
+            @Override
+            public boolean onTransferComplete(File data, long length, double kilobytesPerSecond) {
+                Log.i(TAG, "Bulk download of " + length + " bytes at "
+                        + String.format("%.1f", kilobytesPerSecond) + " kB/s, MTU " + mMtu
+                        + ", " + mBulk.getRewindCount() + " rewinds");
+                if (!storeBulkFlight(data)) return false;
+                final Intent intent = new Intent(ACTION_BULK_COMPLETE);
+                intent.putExtra(EXTRA_BULK_RATE, kilobytesPerSecond);
+                sendBroadcast(intent);
+                return true;
+            }
+
+            @Override
+            public void onTransferFailed(String reason) {
+                Log.w(TAG, "Bulk download failed: " + reason);
+            }
+        });
+        try {
+            mBulk.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start bulk download", e);
+            return false;
+        }
+        mHandler.removeCallbacks(mBulkStallCheck);
+        mHandler.postDelayed(mBulkStallCheck, BULK_STALL_MS);
+        return true;
+    }
+
+    private final Runnable mBulkStallCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mBulk != null && mBulk.checkStalled(BULK_STALL_MS * 1000000L)) {
+                mHandler.postDelayed(this, BULK_STALL_MS);
+            }
+        }
+    };
+
+    /**
+     * Converts a finished bulk download into a flight, written under a partial name and renamed
+     * like the live recordings, so the uploader and reanalyzer never see half of one.
+     *
+     * @return True if the flight is stored; otherwise {@code data} is left for another try.
+     */
+    private boolean storeBulkFlight(File data) {
+        final File flights = storageDir("flights");
+        if (flights == null) {
+            Log.e(TAG, "No storage for the bulk flight; keeping the download");
+            return false;
+        }
+        final File flight = new File(flights,
+                "flight-" + System.currentTimeMillis() + "-full" + FlightLog.EXTENSION);
+        final File partial = new File(flights, flight.getName() + ".part");
+        try {
+            BulkTransfer.writeFlightLog(data, partial, System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store bulk flight", e);
+            partial.delete();
+            return false;
+        }
+        if (!partial.renameTo(flight)) {
+            Log.e(TAG, "Unable to rename " + partial);
+            partial.delete();
+            return false;
+        }
+        if (mUploader != null) mUploader.requestUpload();
+        return true;
     }
 
     /**
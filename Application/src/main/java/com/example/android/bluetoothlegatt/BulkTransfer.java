@@ -0,0 +1,376 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Client side of the bulk flight download on the Disc Statistics service.  Live notifications
+ * are lost whenever the phone is out of range during a throw, so the disc also buffers each
+ * flight at full sample rate and the app pulls it afterwards.
+ * <p>
+ * Protocol, all integers little-endian:
+ * <ul>
+ * <li>App writes to Bulk Control (with response):
+ *   <ul>
+ *   <li>{@code START [0x01][offset u32][window u8]}: send the buffered flight from
+ *   {@code offset}, with at most {@code window} unacknowledged data packets outstanding.</li>
+ *   <li>{@code ACK [0x02][offset u32]}: every byte before {@code offset} has arrived.  An offset
+ *   behind what the disc has sent means a packet was lost; the disc goes back to it.</li>
+ *   <li>{@code DONE [0x03]}: the flight is stored; the disc may discard its buffer.</li>
+ *   </ul></li>
+ * <li>Disc notifies on Bulk Control: {@code INFO [0x81][length u32][crc32 u32]} in reply to
+ * START, or {@code EMPTY [0x82]} if nothing is buffered.</li>
+ * <li>Disc notifies on Bulk Data: {@code [offset u32][payload]}, the payload filling the rest
+ * of the negotiated MTU (MTU - 3 - 4 bytes).</li>
+ * </ul>
+ * The flight buffer itself is {@code [sample interval us u32]} followed by the real-time
+ * angular velocity samples as {@code sint16}; {@link #writeFlightLog} turns it into a
+ * {@link FlightLog}.
+ * <p>
+ * Received bytes go straight to a partial file and are flushed before each ACK, so everything
+ * acknowledged survives a disconnect and the next START resumes from the file's length.  The
+ * flight's length and CRC are kept next to it, so a partial file from an older flight is
+ * discarded rather than resumed.  DONE only goes once the listener has stored the flight; until
+ * then the download is kept, and the next START finishes it again.
+ */
+public class BulkTransfer {
+    public static final int OP_START = 0x01;
+    public static final int OP_ACK = 0x02;
+    public static final int OP_DONE = 0x03;
+    public static final int OP_INFO = 0x81;
+    public static final int OP_EMPTY = 0x82;
+
+    /** ATT notification header plus our offset field. */
+    public static final int PACKET_OVERHEAD = 3 + 4;
+
+    public interface Listener {
+        /** Writes {@code value} to Bulk Control; called with the transfer's lock held. */
+        void sendControl(byte[] value);
+
+        /**
+         * Stores the verified flight in {@code data}.
+         *
+         * @return True once it is safely stored; the disc is then told to discard its copy and
+         * {@code data} is deleted.  False keeps both for another try.
+         */
+        boolean onTransferComplete(File data, long length, double kilobytesPerSecond);
+
+        void onTransferFailed(String reason);
+    }
+
+    private final File mFile;
+    private final File mInfoFile;
+    private final int mWindow;
+    private final Listener mListener;
+
+    private OutputStream mOut;
+    private long mOffset;
+    private long mLength = -1;
+    private long mCrc;
+    private int mUnacknowledged = 0;
+    private boolean mRewinding = false;
+    private long mStartNanos = 0;
+    private long mLastDataNanos = 0;
+    private long mSessionBytes = 0;
+    private long mRewinds = 0;
+
+    /**
+     * @param file   Partial download, resumed if it exists.
+     * @param window Data packets the disc may send ahead of our acknowledgements.
+     */
+    public BulkTransfer(File file, int window, Listener listener) {
+        mFile = file;
+        mInfoFile = new File(file.getPath() + ".info");
+        mWindow = Math.max(2, Math.min(window, 255));
+        mListener = listener;
+    }
+
+    /** Asks the disc for its buffered flight, from where an earlier attempt got to. */
+    public synchronized void start() throws IOException {
+        close();
+        mOut = new BufferedOutputStream(new FileOutputStream(mFile, true));
+        mOffset = mFile.length();
+        mLength = -1;
+        mUnacknowledged = 0;
+        mRewinding = false;
+        mSessionBytes = 0;
+        mStartNanos = 0;
+        mLastDataNanos = System.nanoTime();
+        send(OP_START, mOffset, mWindow);
+    }
+
+    /** Handles a notification on Bulk Control. */
+    public synchronized void onControl(byte[] value) {
+        if (mOut == null || value == null || value.length < 1) return;
+        final int opcode = DiscGattAttributes.decodeDiscBulkControlOpcode(value);
+        if (opcode == OP_EMPTY) {
+            close();
+            mListener.onTransferFailed("Nothing buffered on the disc");
+        } else if (opcode == OP_INFO && value.length >= 9) {
+            final long length = DiscGattAttributes.decodeDiscBulkControlLength(value);
+            final long crc = DiscGattAttributes.decodeDiscBulkControlCrc(value);
+            if (mOffset > 0 && !matchesInfo(length, crc)) {
+                // The partial file belongs to an earlier flight; start this one from scratch.
+                try {
+                    restart();
+                } catch (IOException e) {
+                    fail("Unable to restart download: " + e.getMessage());
+                    return;
+                }
+                send(OP_START, 0, mWindow);
+            }
+            mLength = length;
+            mCrc = crc;
+            if (!writeInfo()) return;
+            if (mOffset >= mLength) finish();
+        }
+    }
+
+    /** Handles a notification on Bulk Data. */
+    public synchronized void onData(byte[] value) {
+        if (mOut == null || value == null || value.length < 4) return;
+        final long now = System.nanoTime();
+        if (mStartNanos == 0) mStartNanos = now;
+        mLastDataNanos = now;
+        final long offset = DiscGattAttributes.decodeDiscBulkDataOffset(value);
+        if (offset != mOffset) {
+            // Ahead means we missed a packet: go back to it once, then drop everything until it
+            // comes round again.  Behind is a stale duplicate.
+            if (offset > mOffset && !mRewinding) {
+                mRewinding = true;
+                mRewinds++;
+                acknowledge();
+            }
+            return;
+        }
+        mRewinding = false;
+        final int n = value.length - 4;
+        try {
+            mOut.write(value, 4, n);
+        } catch (IOException e) {
+            fail("Unable to store download: " + e.getMessage());
+            return;
+        }
+        mOffset += n;
+        mSessionBytes += n;
+        if (mLength >= 0 && mOffset >= mLength) {
+            finish();
+        } else if (++mUnacknowledged >= mWindow / 2) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * Re-sends the last acknowledgement if nothing has arrived for {@code stallNanos}, in case
+     * the disc is waiting on one that never made it.
+     *
+     * @return True if the transfer is still running.
+     */
+    public synchronized boolean checkStalled(long stallNanos) {
+        if (mOut == null) return false;
+        if (System.nanoTime() - mLastDataNanos > stallNanos) {
+            mLastDataNanos = System.nanoTime();
+            mRewinding = false;
+            acknowledge();
+        }
+        return true;
+    }
+
+    /** Stops without discarding what arrived, so a later {@link #start()} resumes. */
+    public synchronized void cancel() {
+        if (mOut == null) return;
+        close();
+    }
+
+    public synchronized boolean isRunning() {
+        return mOut != null;
+    }
+
+    public synchronized long getOffset() {
+        return mOffset;
+    }
+
+    /** @return Total length of the flight, or -1 until the disc has said. */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /** @return Go-back requests sent because a packet was missed. */
+    public synchronized long getRewindCount() {
+        return mRewinds;
+    }
+
+    /** @return Payload throughput of this session since its first data packet. */
+    public synchronized double getKilobytesPerSecond() {
+        final long elapsed = mLastDataNanos - mStartNanos;
+        if (mStartNanos == 0 || elapsed <= 0) return 0;
+        return mSessionBytes / 1024.0 / (elapsed * 1e-9);
+    }
+
+    private void acknowledge() {
+        try {
+            // Only acknowledge what is safely on disk, so a resume never skips bytes.
+            mOut.flush();
+        } catch (IOException e) {
+            fail("Unable to store download: " + e.getMessage());
+            return;
+        }
+        mUnacknowledged = 0;
+        send(OP_ACK, mOffset, -1);
+    }
+
+    private void finish() {
+        final double rate = getKilobytesPerSecond();
+        close();
+        final long crc;
+        try {
+            crc = crc32(mFile);
+        } catch (IOException e) {
+            mListener.onTransferFailed("Unable to verify download: " + e.getMessage());
+            return;
+        }
+        if (crc != mCrc || mFile.length() != mLength) {
+            mFile.delete();
+            mInfoFile.delete();
+            mListener.onTransferFailed("Download failed its CRC check");
+            return;
+        }
+        if (!mListener.onTransferComplete(mFile, mLength, rate)) {
+            // The disc's buffer is still the only copy stored anywhere else; leave it be.
+            return;
+        }
+        final byte[] done = { (byte) OP_DONE };
+        mListener.sendControl(done);
+        mInfoFile.delete();
+        mFile.delete();
+    }
+
+    private void fail(String reason) {
+        close();
+        mListener.onTransferFailed(reason);
+    }
+
+    private void close() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // Anything unflushed was never acknowledged, and will be sent again.
+        }
+        mOut = null;
+    }
+
+    private void restart() throws IOException {
+        close();
+        mOut = new BufferedOutputStream(new FileOutputStream(mFile, false));
+        mOffset = 0;
+        mUnacknowledged = 0;
+        mRewinding = false;
+    }
+
+    private void send(int opcode, long offset, int window) {
+        final byte[] value = new byte[window >= 0 ? 6 : 5];
+        value[0] = (byte) opcode;
+        value[1] = (byte) offset;
+        value[2] = (byte) (offset >> 8);
+        value[3] = (byte) (offset >> 16);
+        value[4] = (byte) (offset >> 24);
+        if (window >= 0) value[5] = (byte) window;
+        mListener.sendControl(value);
+    }
+
+    private boolean matchesInfo(long length, long crc) {
+        if (!mInfoFile.exists()) return false;
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(mInfoFile));
+            try {
+                return in.readLong() == length && in.readLong() == crc;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean writeInfo() {
+        try {
+            final DataOutputStream out = new DataOutputStream(new FileOutputStream(mInfoFile));
+            try {
+                out.writeLong(mLength);
+                out.writeLong(mCrc);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            fail("Unable to store download: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static long crc32(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[8192];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Converts a downloaded flight buffer into a {@link FlightLog} of real-time samples, timed
+     * from the buffer's sample interval.
+     *
+     * @return Number of samples written.
+     */
+    public static long writeFlightLog(File bulk, File flight, long startMillis)
+            throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(bulk));
+        final FlightLog.Writer out = new FlightLog.Writer(flight, startMillis);
+        try {
+            final long intervalNanos = readLittleEndian(in, 4) * 1000L;
+            long time = 0;
+            while (true) {
+                final long raw;
+                try {
+                    raw = readLittleEndian(in, 2);
+                } catch (EOFException e) {
+                    break;
+                }
+                out.write(SampleStore.STREAM_ANG_RT, time, (short) raw);
+                time += intervalNanos;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return out.getCount();
+    }
+
+    private static long readLittleEndian(InputStream in, int width) throws IOException {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            final int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) b << (8 * i);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Per-device cache of control characteristic values, keyed by device address and
+ * characteristic UUID.  Values are copied on the way in and out so callers can't mutate
+ * what is stored.
+ */
+public class CharacteristicCache {
+    private final HashMap<String, HashMap<UUID, byte[]>> mDevices =
+            new HashMap<String, HashMap<UUID, byte[]>>();
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    /**
+     * Looks up a cached value and updates the hit/miss counters.
+     *
+     * @return A copy of the cached value, or null on a miss.
+     */
+    public synchronized byte[] get(String address, UUID characteristic) {
+        HashMap<UUID, byte[]> values = mDevices.get(address);
+        byte[] value = values == null ? null : values.get(characteristic);
+        if (value == null) {
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return value.clone();
+    }
+
+    public synchronized void put(String address, UUID characteristic, byte[] value) {
+        if (address == null || value == null) return;
+        HashMap<UUID, byte[]> values = mDevices.get(address);
+        if (values == null) {
+            values = new HashMap<UUID, byte[]>();
+            mDevices.put(address, values);
+        }
+        values.put(characteristic, value.clone());
+    }
+
+    /** Drops every cached value for the given device. */
+    public synchronized void invalidate(String address) {
+        mDevices.remove(address);
+    }
+
+    /** Drops every cached value for every device. */
+    public synchronized void invalidateAll() {
+        mDevices.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+}
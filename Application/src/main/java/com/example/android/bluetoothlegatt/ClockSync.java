@@ -0,0 +1,137 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Maps the disc's millisecond clock onto {@code SystemClock.elapsedRealtimeNanos()}.
+ * <p>
+ * Each notification carries the device time it was taken at and arrives some latency later.
+ * That latency is never negative and is at its smallest when nothing else is in the way, so
+ * the lower edge of (arrival - device time) follows the true offset.  The minimum of each
+ * block of {@link #BLOCK} samples is taken as one point on that edge, and a least-squares line
+ * through the last {@link #POINTS} points gives both the offset and the drift between the two
+ * crystals.  Everything is primitive and preallocated, so it runs on every notification.
+ */
+public class ClockSync {
+    public static final int BLOCK = 32;
+    public static final int POINTS = 16;
+
+    // A device clock that runs backwards by more than this has been reset.
+    private static final long RESET_THRESHOLD_MS = 1000;
+
+    private final double[] mPointDevice = new double[POINTS];
+    private final double[] mPointOffset = new double[POINTS];
+    private int mPointCount = 0;
+    private int mPointNext = 0;
+
+    // Current block.
+    private int mBlockCount = 0;
+    private double mBlockMinOffset;
+    private double mBlockMinDevice;
+
+    // Fitted offset = mIntercept + mSlope * (device nanos - mOrigin).
+    private long mOrigin;
+    private double mIntercept;
+    private double mSlope;
+    private boolean mSynced = false;
+    private long mLastDeviceMs;
+    private long mSampleCount = 0;
+    private long mResets = 0;
+
+    /** Adds one observation: device time {@code deviceMs} arrived at {@code arrivalNanos}. */
+    public synchronized void add(long deviceMs, long arrivalNanos) {
+        if (mSynced && deviceMs < mLastDeviceMs - RESET_THRESHOLD_MS) {
+            reset();
+            mResets++;
+        }
+        mLastDeviceMs = deviceMs;
+        mSampleCount++;
+        final long deviceNanos = deviceMs * 1000000L;
+        if (!mSynced) {
+            mSynced = true;
+            mOrigin = deviceNanos;
+            mIntercept = arrivalNanos - deviceNanos;
+            mSlope = 0;
+        }
+        // Relative to the origin, so doubles keep sub-microsecond precision.
+        final double device = deviceNanos - mOrigin;
+        final double offset = (double) (arrivalNanos - deviceNanos);
+        if (mBlockCount == 0 || offset < mBlockMinOffset) {
+            mBlockMinOffset = offset;
+            mBlockMinDevice = device;
+        }
+        if (mPointCount == 0) {
+            // Until the first block closes, the lowest offset seen so far is the best guess.
+            mIntercept = Math.min(mIntercept, offset);
+        }
+        if (++mBlockCount == BLOCK) {
+            mBlockCount = 0;
+            mPointDevice[mPointNext] = mBlockMinDevice;
+            mPointOffset[mPointNext] = mBlockMinOffset;
+            mPointNext = (mPointNext + 1) % POINTS;
+            if (mPointCount < POINTS) mPointCount++;
+            fit();
+        }
+    }
+
+    private void fit() {
+        if (mPointCount == 1) {
+            mIntercept = mPointOffset[0];
+            mSlope = 0;
+            return;
+        }
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for (int i = 0; i < mPointCount; i++) {
+            final double x = mPointDevice[i];
+            final double y = mPointOffset[i];
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        final double n = mPointCount;
+        final double denominator = n * sxx - sx * sx;
+        if (denominator == 0) return;
+        mSlope = (n * sxy - sx * sy) / denominator;
+        mIntercept = (sy - mSlope * sx) / n;
+        // The fit runs through the middle of the block minima; shift it down onto the lowest,
+        // so it stays a lower bound on the arrival times.
+        double below = 0;
+        for (int i = 0; i < mPointCount; i++) {
+            below = Math.min(below, mPointOffset[i] - (mIntercept + mSlope * mPointDevice[i]));
+        }
+        mIntercept += below;
+    }
+
+    /** @return The local elapsed-realtime nanoseconds at which the device read {@code deviceMs}. */
+    public synchronized long toLocalNanos(long deviceMs) {
+        final long deviceNanos = deviceMs * 1000000L;
+        final double device = deviceNanos - mOrigin;
+        return deviceNanos + (long) (mIntercept + mSlope * device);
+    }
+
+    public synchronized boolean isSynced() {
+        return mSynced;
+    }
+
+    /** @return Device clock drift relative to the phone, in parts per million. */
+    public synchronized double getDriftPpm() {
+        return mSlope * 1e6;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /** @return Times the device clock was seen to restart. */
+    public synchronized long getResetCount() {
+        return mResets;
+    }
+
+    /** Forgets the mapping, e.g. when connecting to a disc that may have rebooted. */
+    public synchronized void reset() {
+        mSynced = false;
+        mPointCount = 0;
+        mPointNext = 0;
+        mBlockCount = 0;
+        mSlope = 0;
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small HTTP and WebSocket server that streams live samples to browsers on the LAN, so a coach
+ * can watch spin curves on a laptop.  {@code GET /} serves a dashboard page; {@code GET /ws}
+ * upgrades to a WebSocket that receives one binary message per batch of samples.
+ * <p>
+ * Each batch is encoded once, WebSocket header included, and the same bytes are queued to every
+ * client.  A client's own thread writes its queue; a client that falls {@link #CLIENT_QUEUE}
+ * messages behind loses its oldest ones rather than slowing the others down.
+ * <p>
+ * At most {@link #MAX_CONNECTIONS} connections are served at once, and one that hasn't sent its
+ * request within {@link #HANDSHAKE_TIMEOUT_MS} is dropped, so idle or half-open sockets can't
+ * pile up threads on the phone.
+ * <p>
+ * Message body, little-endian:
+ * <pre>
+ * [count u32][base time ns i64] then count x [stream u8][time - base, us i32][value f32]
+ * </pre>
+ * Plain Java only, so it can be run and tested off the device.
+ */
+public class DashboardServer implements SampleChannel.Consumer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int RECORD_SIZE = 9;
+    public static final int BODY_HEADER_SIZE = 12;
+
+    static final int CLIENT_QUEUE = 64;
+    static final int MAX_CONNECTIONS = 8;
+    static final int HANDSHAKE_TIMEOUT_MS = 3000;
+    // How long the closing handshake's reply, and what was queued before it, gets to go out.
+    static final long CLOSE_LINGER_MS = 1000;
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final int WRITE_BUFFER = 16384;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final int mPort;
+    private ServerSocket mServer;
+    private Thread mAcceptThread;
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+
+    private long mMessages = 0;
+    private long mEncodedBytes = 0;
+
+    /** @param port Port to listen on, or 0 for any free one. */
+    public DashboardServer(int port) {
+        mPort = port;
+    }
+
+    /** Starts listening on all interfaces. */
+    public synchronized void start() throws IOException {
+        if (mServer != null) return;
+        mServer = new ServerSocket();
+        mServer.setReuseAddress(true);
+        mServer.bind(new InetSocketAddress(mPort));
+        final ServerSocket server = mServer;
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(server);
+            }
+        }, "DashboardAccept");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    /** Stops listening and drops every client. */
+    public void stop() {
+        final ServerSocket server;
+        synchronized (this) {
+            server = mServer;
+            mServer = null;
+        }
+        if (server == null) return;
+        closeQuietly(server);
+        for (Client client : mClients) {
+            client.close();
+        }
+        mClients.clear();
+    }
+
+    /** @return The port actually listened on, or -1 if not started. */
+    public synchronized int getLocalPort() {
+        return mServer != null ? mServer.getLocalPort() : -1;
+    }
+
+    /** @return WebSocket clients receiving samples. */
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    /** @return Connections being served, WebSocket or not, including any mid-handshake. */
+    public int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /** @return Batches encoded, each once however many clients there were. */
+    public synchronized long getMessageCount() {
+        return mMessages;
+    }
+
+    public synchronized long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    /** @return Messages dropped across all clients because they fell behind. */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Client client : mClients) {
+            dropped += client.mDropped;
+        }
+        return dropped;
+    }
+
+    @Override
+    public void onSamples(SampleStore.Batch batch) {
+        if (batch.count == 0 || mClients.isEmpty()) return;
+        final byte[] message = encode(batch);
+        synchronized (this) {
+            mMessages++;
+            mEncodedBytes += message.length;
+        }
+        for (Client client : mClients) {
+            client.send(message);
+        }
+    }
+
+    /** @return {@code batch} as one complete WebSocket binary frame. */
+    static byte[] encode(SampleStore.Batch batch) {
+        final long base = batch.times[0];
+        final int body = BODY_HEADER_SIZE + batch.count * RECORD_SIZE;
+        final ByteBuffer frame = frame(OPCODE_BINARY, body);
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        frame.putInt(batch.count);
+        frame.putLong(base);
+        for (int i = 0; i < batch.count; i++) {
+            frame.put((byte) batch.streams[i]);
+            // Times of flight are stamped with the landing, so can be older than the base.
+            frame.putInt((int) ((batch.times[i] - base) / 1000));
+            frame.putFloat(batch.values[i]);
+        }
+        return frame.array();
+    }
+
+    /** @return A buffer holding a frame header, positioned for {@code length} body bytes. */
+    private static ByteBuffer frame(int opcode, int length) {
+        final int header = length < 126 ? 2 : (length < 65536 ? 4 : 10);
+        final ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length < 65536) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
+        }
+        return frame;
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // Closed by stop().
+                return;
+            }
+            if (mConnections.incrementAndGet() > MAX_CONNECTIONS) {
+                mConnections.decrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } finally {
+                        mConnections.decrementAndGet();
+                    }
+                }
+            }, "Dashboard " + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Answers one HTTP request, staying on as the WebSocket reader if it was an upgrade. */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final String request = readRequest(in);
+            // GET /path HTTP/1.1
+            final String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+            final String path = requestLine.length > 1 ? requestLine[1] : "";
+            final String key = header(request, "sec-websocket-key");
+            if ("/ws".equals(path) && key != null) {
+                out.write(("HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(ASCII));
+                out.flush();
+                // A watching browser may send nothing for as long as it stays open; keep-alive
+                // notices one that vanished without closing.
+                socket.setSoTimeout(0);
+                socket.setKeepAlive(true);
+                final Client client = new Client(socket, out);
+                mClients.add(client);
+                try {
+                    client.start();
+                    readFrames(client, new DataInputStream(in));
+                    client.awaitWriter(CLOSE_LINGER_MS);
+                } finally {
+                    mClients.remove(client);
+                    client.close();
+                }
+            } else if ("/".equals(path)) {
+                respond(out, "200 OK", "text/html; charset=utf-8", PAGE.getBytes(UTF_8));
+                socket.close();
+            } else {
+                respond(out, "404 Not Found", "text/plain", "Not found\n".getBytes(ASCII));
+                socket.close();
+            }
+        } catch (IOException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        final StringBuilder request = new StringBuilder();
+        while (request.length() < MAX_REQUEST_BYTES) {
+            final int b = in.read();
+            if (b < 0) throw new IOException("Connection closed mid-request");
+            request.append((char) b);
+            final int n = request.length();
+            if (n >= 4 && request.charAt(n - 4) == '\r' && request.charAt(n - 3) == '\n'
+                    && request.charAt(n - 2) == '\r' && request.charAt(n - 1) == '\n') {
+                return request.toString();
+            }
+        }
+        throw new IOException("Request too large");
+    }
+
+    /** @return The value of header {@code name}, matched case-insensitively, or null. */
+    private static String header(String request, String name) {
+        for (String line : request.split("\r\n")) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.US).equals(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + WEBSOCKET_GUID).getBytes(ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // android.util.Base64 isn't there off the device, and java.util.Base64 needs API 26.
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static String base64(byte[] data) {
+        final StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            final int n = (data[i] & 0xFF) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xFF) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xFF : 0);
+            out.append(BASE64[n >> 18 & 63]).append(BASE64[n >> 12 & 63]);
+            out.append(i + 1 < data.length ? BASE64[n >> 6 & 63] : '=');
+            out.append(i + 2 < data.length ? BASE64[n & 63] : '=');
+        }
+        return out.toString();
+    }
+
+    private static void respond(OutputStream out, String status, String type, byte[] body)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /** Reads what the browser sends, which is only pings and the closing handshake. */
+    private static void readFrames(Client client, DataInputStream in) throws IOException {
+        while (true) {
+            final int first = in.readUnsignedByte();
+            final int second = in.readUnsignedByte();
+            long length = second & 0x7F;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if (length > MAX_REQUEST_BYTES) throw new IOException("Frame too large");
+            final byte[] mask = new byte[4];
+            if ((second & 0x80) != 0) in.readFully(mask);
+            final byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+
+            final int opcode = first & 0x0F;
+            if (opcode == OPCODE_CLOSE) {
+                client.send(frame(OPCODE_CLOSE, 0).array());
+                client.finish();
+                return;
+            } else if (opcode == OPCODE_PING) {
+                final ByteBuffer pong = frame(OPCODE_PONG, payload.length);
+                pong.put(payload);
+                client.send(pong.array());
+            }
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Going away regardless.
+        }
+    }
+
+    /** One WebSocket client and the thread writing to it. */
+    private static class Client implements Runnable {
+        // Queued after the closing frame to stop the writer.
+        private static final byte[] END = new byte[0];
+
+        private final Socket mSocket;
+        private final OutputStream mOut;
+        private final BlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<byte[]>(CLIENT_QUEUE);
+        private final Thread mWriter;
+        private volatile long mDropped = 0;
+
+        Client(Socket socket, OutputStream out) {
+            mSocket = socket;
+            mOut = new BufferedOutputStream(out, WRITE_BUFFER);
+            mWriter = new Thread(this, "Dashboard writer " + socket.getRemoteSocketAddress());
+            mWriter.setDaemon(true);
+        }
+
+        void start() {
+            mWriter.start();
+        }
+
+        /** Queues a complete frame, dropping the oldest queued one if the client is behind. */
+        void send(byte[] frame) {
+            while (!mQueue.offer(frame)) {
+                if (mQueue.poll() != null) mDropped++;
+            }
+        }
+
+        /** Stops the writer once what is queued has gone out. */
+        void finish() {
+            send(END);
+        }
+
+        /** Waits up to {@code millis} for the writer to stop after {@link #finish()}. */
+        void awaitWriter(long millis) {
+            try {
+                mWriter.join(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Stops the writer where it is and drops the connection. */
+        void close() {
+            mWriter.interrupt();
+            closeQuietly(mSocket);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    byte[] frame = mQueue.take();
+                    // Whatever queued up meanwhile goes out in the same write.
+                    do {
+                        if (frame == END) {
+                            mOut.flush();
+                            mSocket.shutdownOutput();
+                            return;
+                        }
+                        mOut.write(frame);
+                        frame = mQueue.poll();
+                    } while (frame != null);
+                    mOut.flush();
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            } catch (IOException e) {
+                closeQuietly(mSocket);
+            }
+        }
+    }
+
+    private static final String PAGE = "<!DOCTYPE html>\n"
+            + "<html><head><meta name=\"viewport\" content=\"width=device-width\">"
+            + "<title>Disc telemetry</title>"
+            + "<style>body{margin:0;font:16px sans-serif;background:#111;color:#eee}"
+            + "canvas{width:100%;height:80vh}</style></head><body>"
+            + "<div id=\"s\">Connecting</div><canvas id=\"c\"></canvas><script>\n"
+            + "var N=400,rt=[],avg=[],tof='';\n"
+            + "var s=document.getElementById('s'),c=document.getElementById('c'),g=c.getContext('2d');\n"
+            + "var ws=new WebSocket('ws://'+location.host+'/ws');ws.binaryType='arraybuffer';\n"
+            + "ws.onopen=function(){s.textContent='Live'};\n"
+            + "ws.onclose=function(){s.textContent='Disconnected'};\n"
+            + "ws.onmessage=function(e){var d=new DataView(e.data),n=d.getUint32(0,true);\n"
+            + " for(var i=0,o=12;i<n;i++,o+=9){var k=d.getUint8(o),v=d.getFloat32(o+5,true);\n"
+            + "  if(k==0)rt.push(v);else if(k==1)avg.push(v);else tof='ToF '+v.toFixed(2)+' s';}\n"
+            + " rt=rt.slice(-N);avg=avg.slice(-N);s.textContent='Live '+tof;};\n"
+            + "function line(a,col){g.strokeStyle=col;g.beginPath();\n"
+            + " for(var i=0;i<a.length;i++){var x=i*c.width/N,y=c.height/2-a[i]*c.height/4000;\n"
+            + "  i?g.lineTo(x,y):g.moveTo(x,y);}g.stroke();}\n"
+            + "(function draw(){c.width=c.clientWidth;c.height=c.clientHeight;\n"
+            + " line(rt,'#4cf');line(avg,'#fc4');requestAnimationFrame(draw);})();\n"
+            + "</script></body></html>\n";
+}
@@ -20,14 +20,10 @@ import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.ServiceConnection;
-import android.graphics.Color;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.provider.ContactsContract;
 import android.util.Log;
 import android.view.Menu;
@@ -35,18 +31,20 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.SeekBar;
 import android.widget.Toast;
 import android.widget.ExpandableListView;
 import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
-import com.jjoe64.graphview.GraphView;
-import com.jjoe64.graphview.series.DataPoint;
-import com.jjoe64.graphview.series.LineGraphSeries;
-
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -83,32 +81,51 @@ public class DeviceControlActivity extends Activity {
     private EditText mSpeakerVolume;
 
     private TextView mFlightStatTof;
-    private boolean mEndOfFlight = false;
-
-    // Graphing
-    private GraphView mGraph;
-    private LineGraphSeries<DataPoint> mAngVelRtSeries;
-    private LineGraphSeries<DataPoint> mAngVelAvgSeries;
-    private int mGraphDataPointsRt = 0;
-    private int mGraphDataPointsAvg = 0;
-
-    // Code to manage Service lifecycle.
-    private final ServiceConnection mServiceConnection = new ServiceConnection() {
-
+    private TextView mFlightStatWobble;
+
+    // Service settings, kept by the service rather than the disc.
+    private EditText mUploadEndpoint;
+    private EditText mDashboardPort;
+    private EditText mTelemetryRules;
+
+    // Graphing.  The rings, the channel feeding them and any replay live in the session, which
+    // outlives this Activity across rotations.
+    private TelemetryPlotView mGraph;
+    private DiscSession mSession;
+
+    // Replay of the newest recorded flight, fed through the graph channel in place of live data.
+    private static final String[] REPLAY_SPEED_LABELS = { "0.25x", "0.5x", "1x", "2x", "4x", "8x" };
+    private static final int REPLAY_SEEK_STEPS = 1000;
+    private boolean mReplaySeeking = false;
+    private Button mReplay;
+    private Button mReplaySpeedButton;
+    private SeekBar mReplayPosition;
+
+    private final DiscSession.Callbacks mSessionCallbacks = new DiscSession.Callbacks() {
         @Override
-        public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
-            if (!mBluetoothLeService.initialize()) {
-                Log.e(TAG, "Unable to initialize Bluetooth");
-                finish();
+        public void onServiceReady(BluetoothLeService service) {
+            mBluetoothLeService = service;
+            mConnected = service.isConnected();
+            invalidateOptionsMenu();
+            if (mUploadEndpoint.getText().length() == 0) {
+                mUploadEndpoint.setText(service.getUploadEndpoint());
+            }
+            if (mDashboardPort.getText().length() == 0) {
+                mDashboardPort.setText(String.valueOf(service.getDashboardPort()));
+            }
+            if (mTelemetryRules.getText().length() == 0) {
+                mTelemetryRules.setText(service.getTelemetryRules());
             }
-            // Automatically connects to the device upon successful start-up initialization.
-            mBluetoothLeService.connect(mDeviceAddress);
         }
 
         @Override
-        public void onServiceDisconnected(ComponentName componentName) {
-            mBluetoothLeService = null;
+        public void onServiceFailed() {
+            finish();
+        }
+
+        @Override
+        public void onSamplesShown(float tofSeconds) {
+            showSamples(tofSeconds);
         }
     };
 
@@ -146,28 +163,30 @@ public class DeviceControlActivity extends Activity {
                 mSpeakerPitch.setText(extraData);
             } else if (BluetoothLeService.ACTION_SPEAKER_VOLUME.equals(action)) {
                 mSpeakerVolume.setText(extraData);
-            } else if (BluetoothLeService.ACTION_DISC_ANG_RT.equals(action)) {
-                if (mEndOfFlight) {
-                    mEndOfFlight = false;
-                    //DataPoint[] resetData = new DataPoint[1];
-                    //resetData[0] = new DataPoint(0, 0);
-                    //mAngVelRtSeries.resetData(resetData);
-                    //mAngVelAvgSeries.resetData(resetData);
-                    //mGraphDataPointsAvg = 0;
-                    //mGraphDataPointsRt = 0;
-                }
-                mAngVelRtSeries.appendData(new DataPoint(mGraphDataPointsRt, Integer.parseInt(extraData)), true, 40);
-                mGraphDataPointsRt += 1;
-            } else if (BluetoothLeService.ACTION_DISC_ANG_AVG.equals(action)) {
-                mAngVelAvgSeries.appendData(new DataPoint(mGraphDataPointsAvg, Integer.parseInt(extraData)), true, 40);
-                mGraphDataPointsAvg += 1;
-            } else if (BluetoothLeService.ACTION_DISC_TOF.equals(action)) {
-                mFlightStatTof.setText(getString(R.string.disc_stat_tof) + String.format(" %.1fs", ((float)Integer.parseInt(extraData)/2.0)));
-                mEndOfFlight = true;
+            } else if (BluetoothLeService.ACTION_DISC_WOBBLE.equals(action)
+                    || BluetoothLeService.ACTION_DISC_FLIGHT_WOBBLE.equals(action)) {
+                // Live readings until the flight ends, then the flight's result stays up.
+                mFlightStatWobble.setText(getString(R.string.disc_stat_wobble) + String.format(
+                        " %.1f Hz, %.0f deg/s",
+                        intent.getFloatExtra(BluetoothLeService.EXTRA_WOBBLE_FREQUENCY, 0),
+                        intent.getFloatExtra(BluetoothLeService.EXTRA_WOBBLE_AMPLITUDE, 0)));
             }
         }
     };
 
+    /** Redraws after the session has put new samples in the graph rings. */
+    private void showSamples(float tofSeconds) {
+        mGraph.requestRender();
+        final FlightPlayer player = mSession.getPlayer();
+        if (player != null && !mReplaySeeking && player.getDurationNanos() > 0) {
+            mReplayPosition.setProgress((int) (player.getPositionNanos() * REPLAY_SEEK_STEPS
+                    / player.getDurationNanos()));
+        }
+        if (!Float.isNaN(tofSeconds)) {
+            mFlightStatTof.setText(getString(R.string.disc_stat_tof) + String.format(" %.2fs", tofSeconds));
+        }
+    }
+
     // If a given GATT characteristic is selected, check for supported features.  This sample
     // demonstrates 'Read' and 'Notify' features.  See
     // http://d.android.com/reference/android/bluetooth/BluetoothGatt.html for the complete
@@ -222,8 +241,62 @@ public class DeviceControlActivity extends Activity {
         mBluetoothLeService.speakerEnable();
     }
 
+    /** Switches the graph between live data and a replay of the newest recorded flight. */
+    public void replayOnClick(View v) {
+        if (mSession.getPlayer() != null) {
+            mSession.stopReplay();
+            showReplayControls(false);
+            return;
+        }
+        if (mBluetoothLeService == null) return;
+        final File dir = mBluetoothLeService.getFlightsDir();
+        final File[] flights = dir != null ? FlightReanalyzer.listFlights(dir) : new File[0];
+        if (flights.length == 0) {
+            Toast.makeText(this, R.string.no_flights, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mSession.startReplay(flights[flights.length - 1]);
+        showReplayControls(true);
+    }
+
+    private void showReplayControls(boolean replaying) {
+        mReplay.setText(replaying ? R.string.replay_live : R.string.replay);
+        mReplaySpeedButton.setText(REPLAY_SPEED_LABELS[mSession.getReplaySpeed()]);
+        mReplaySpeedButton.setEnabled(replaying);
+        if (!replaying) mReplayPosition.setProgress(0);
+        mReplayPosition.setEnabled(replaying);
+    }
+
+    public void replaySpeedOnClick(View v) {
+        final int speed = (mSession.getReplaySpeed() + 1) % DiscSession.REPLAY_SPEEDS.length;
+        mSession.setReplaySpeed(speed);
+        mReplaySpeedButton.setText(REPLAY_SPEED_LABELS[speed]);
+    }
+
+    private final SeekBar.OnSeekBarChangeListener mReplaySeekListener =
+            new SeekBar.OnSeekBarChangeListener() {
+                @Override
+                public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                    final FlightPlayer player = mSession.getPlayer();
+                    if (!fromUser || player == null) return;
+                    player.seek(player.getDurationNanos() * progress / REPLAY_SEEK_STEPS);
+                }
+
+                @Override
+                public void onStartTrackingTouch(SeekBar seekBar) {
+                    mReplaySeeking = true;
+                }
+
+                @Override
+                public void onStopTrackingTouch(SeekBar seekBar) {
+                    mReplaySeeking = false;
+                    final FlightPlayer player = mSession.getPlayer();
+                    if (player != null) player.play();
+                }
+            };
+
 
-    private void writeCharacteristicFromEditText(EditText et, String s, String c) {
+    private void writeCharacteristicFromEditText(EditText et, UUID s, UUID c) {
         try {
             byte data_byte = Byte.parseByte(et.getText().toString());
             byte[] data = new byte[1];
@@ -236,45 +309,91 @@ public class DeviceControlActivity extends Activity {
     }
 
     public void ledBlinkRateROnClick(View v) {
-        mBluetoothLeService.readCharacteristic(SampleGattAttributes.LED_CONTROL,
-                SampleGattAttributes.LED_BLINK_RATE);
+        mBluetoothLeService.readCharacteristic(DiscGattAttributes.LED_CONTROL_UUID,
+                DiscGattAttributes.LED_BLINK_RATE_UUID);
     }
 
 
     public void ledBlinkRateWOnClick(View v) {
-        writeCharacteristicFromEditText(mLedBlinkRate, SampleGattAttributes.LED_CONTROL,
-                SampleGattAttributes.LED_BLINK_RATE);
+        writeCharacteristicFromEditText(mLedBlinkRate, DiscGattAttributes.LED_CONTROL_UUID,
+                DiscGattAttributes.LED_BLINK_RATE_UUID);
     }
 
 
     public void ledDurationROnClick(View v) {
-        mBluetoothLeService.readCharacteristic(SampleGattAttributes.LED_CONTROL,
-                SampleGattAttributes.LED_DURATION);
+        mBluetoothLeService.readCharacteristic(DiscGattAttributes.LED_CONTROL_UUID,
+                DiscGattAttributes.LED_DURATION_UUID);
     }
 
     public void ledDurationWOnClick(View v) {
-        writeCharacteristicFromEditText(mLedDuration, SampleGattAttributes.LED_CONTROL,
-                SampleGattAttributes.LED_DURATION);
+        writeCharacteristicFromEditText(mLedDuration, DiscGattAttributes.LED_CONTROL_UUID,
+                DiscGattAttributes.LED_DURATION_UUID);
     }
 
     public void speakerPitchROnClick(View v) {
-        mBluetoothLeService.readCharacteristic(SampleGattAttributes.SPEAKER_CONTROL,
-                SampleGattAttributes.SPEAKER_PITCH);
+        mBluetoothLeService.readCharacteristic(DiscGattAttributes.SPEAKER_CONTROL_UUID,
+                DiscGattAttributes.SPEAKER_PITCH_UUID);
     }
 
     public void speakerPitchWOnClick(View v) {
-        writeCharacteristicFromEditText(mSpeakerPitch, SampleGattAttributes.SPEAKER_CONTROL,
-                SampleGattAttributes.SPEAKER_PITCH);
+        writeCharacteristicFromEditText(mSpeakerPitch, DiscGattAttributes.SPEAKER_CONTROL_UUID,
+                DiscGattAttributes.SPEAKER_PITCH_UUID);
     }
 
     public void speakerVolumeROnClick(View v) {
-        mBluetoothLeService.readCharacteristic(SampleGattAttributes.SPEAKER_CONTROL,
-                SampleGattAttributes.SPEAKER_VOLUME);
+        mBluetoothLeService.readCharacteristic(DiscGattAttributes.SPEAKER_CONTROL_UUID,
+                DiscGattAttributes.SPEAKER_VOLUME_UUID);
     }
 
     public void speakerVolumeWOnClick(View v) {
-        writeCharacteristicFromEditText(mSpeakerVolume, SampleGattAttributes.SPEAKER_CONTROL,
-                SampleGattAttributes.SPEAKER_VOLUME);
+        writeCharacteristicFromEditText(mSpeakerVolume, DiscGattAttributes.SPEAKER_CONTROL_UUID,
+                DiscGattAttributes.SPEAKER_VOLUME_UUID);
+    }
+
+    public void uploadEndpointROnClick(View v) {
+        mUploadEndpoint.setText(mBluetoothLeService.getUploadEndpoint());
+    }
+
+    public void uploadEndpointWOnClick(View v) {
+        try {
+            mBluetoothLeService.setUploadEndpoint(mUploadEndpoint.getText().toString().trim());
+        } catch (MalformedURLException e) {
+            Log.d(TAG, e.getMessage());
+            Toast.makeText(this, "Invalid Input", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    public void dashboardPortROnClick(View v) {
+        mDashboardPort.setText(String.valueOf(mBluetoothLeService.getDashboardPort()));
+    }
+
+    public void dashboardPortWOnClick(View v) {
+        try {
+            mBluetoothLeService.setDashboardPort(
+                    Integer.parseInt(mDashboardPort.getText().toString().trim()));
+        } catch (NumberFormatException e) {
+            Log.d(TAG, e.getMessage());
+            Toast.makeText(this, "Invalid Input", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.d(TAG, e.getMessage());
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    public void telemetryRulesROnClick(View v) {
+        mTelemetryRules.setText(mBluetoothLeService.getTelemetryRules());
+    }
+
+    public void telemetryRulesWOnClick(View v) {
+        try {
+            mBluetoothLeService.setTelemetryRules(mTelemetryRules.getText().toString());
+        } catch (ParseException e) {
+            Log.d(TAG, e.getMessage());
+            // The offset is in characters, which is how the user would count to it too.
+            mTelemetryRules.setSelection(Math.min(e.getErrorOffset(),
+                    mTelemetryRules.getText().length()));
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
     }
 
     @Override
@@ -298,28 +417,29 @@ public class DeviceControlActivity extends Activity {
         mSpeakerPitch = findViewById(R.id.speaker_pitch);
         mSpeakerVolume = findViewById(R.id.speaker_volume);
         mFlightStatTof = findViewById(R.id.disc_stat_tof);
+        mFlightStatWobble = findViewById(R.id.disc_stat_wobble);
+        mUploadEndpoint = findViewById(R.id.upload_endpoint);
+        mDashboardPort = findViewById(R.id.dashboard_port);
+        mTelemetryRules = findViewById(R.id.telemetry_rules);
 
         mGraph = findViewById(R.id.graph);
-
-        mAngVelRtSeries = new LineGraphSeries<>();
-        mAngVelRtSeries.setColor(Color.RED);
-
-        mAngVelAvgSeries = new LineGraphSeries<>();
-        mAngVelAvgSeries.setColor(Color.GREEN);
-
-        mGraph.addSeries(mAngVelRtSeries);
-        mGraph.addSeries(mAngVelAvgSeries);
-        mGraph.getViewport().setXAxisBoundsManual(true);
-        mGraph.getViewport().setYAxisBoundsManual(true);
-        mGraph.getViewport().setMinY(-2000);
-        mGraph.getViewport().setMaxY(2000);
-        mGraph.getViewport().setMinX(0);
-        mGraph.getViewport().setMaxX(40);
+        mReplay = findViewById(R.id.replay);
+        mReplaySpeedButton = findViewById(R.id.replay_speed);
+        mReplayPosition = findViewById(R.id.replay_position);
+        mReplayPosition.setMax(REPLAY_SEEK_STEPS);
+        mReplayPosition.setOnSeekBarChangeListener(mReplaySeekListener);
+
+        // Binds and connects the first time; after a rotation it is the same session as before,
+        // connection, graph and all.
+        mSession = DiscSession.attach(this, mDeviceAddress);
+        mGraph.setWindow(DiscSession.GRAPH_POINTS);
+        mGraph.setYRange(-2000, 2000);
+        mGraph.setSources(mSession.getAngVelRt(), mSession.getAngVelAvg());
+        showReplayControls(mSession.getPlayer() != null);
 
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
-        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
-        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+        mSession.setCallbacks(mSessionCallbacks);
     }
 
     @Override
@@ -330,18 +450,25 @@ public class DeviceControlActivity extends Activity {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
+        mSession.startLive();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mSession.stopLive();
+        // A replay carries on through a rotation, but not behind another app.
+        if (!isChangingConfigurations() && mSession.getPlayer() != null) {
+            mSession.getPlayer().pause();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unbindService(mServiceConnection);
+        // The session stays bound through a rotation, and is torn down with us if finishing.
+        mSession.setCallbacks(null);
         mBluetoothLeService = null;
     }
 
@@ -412,7 +539,7 @@ public class DeviceControlActivity extends Activity {
             HashMap<String, String> currentServiceData = new HashMap<String, String>();
             uuid = gattService.getUuid().toString();
             currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
+                    LIST_NAME, SampleGattAttributes.lookup(gattService.getUuid(), unknownServiceString));
             currentServiceData.put(LIST_UUID, uuid);
             gattServiceData.add(currentServiceData);
 
@@ -429,7 +556,8 @@ public class DeviceControlActivity extends Activity {
                 HashMap<String, String> currentCharaData = new HashMap<String, String>();
                 uuid = gattCharacteristic.getUuid().toString();
                 currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
+                        LIST_NAME, SampleGattAttributes.lookup(gattCharacteristic.getUuid(),
+                                unknownCharaString));
                 currentCharaData.put(LIST_UUID, uuid);
                 gattCharacteristicGroupData.add(currentCharaData);
             }
@@ -463,10 +591,8 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_LED_DURATION);
         intentFilter.addAction(BluetoothLeService.ACTION_SPEAKER_PITCH);
         intentFilter.addAction(BluetoothLeService.ACTION_SPEAKER_VOLUME);
-        // Disc Status
-        intentFilter.addAction(BluetoothLeService.ACTION_DISC_ANG_RT);
-        intentFilter.addAction(BluetoothLeService.ACTION_DISC_ANG_AVG);
-        intentFilter.addAction(BluetoothLeService.ACTION_DISC_TOF);
+        intentFilter.addAction(BluetoothLeService.ACTION_DISC_WOBBLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_DISC_FLIGHT_WOBBLE);
         return intentFilter;
     }
 }
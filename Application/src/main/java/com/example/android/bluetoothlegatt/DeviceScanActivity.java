@@ -21,12 +21,23 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -42,6 +53,7 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import static android.bluetooth.BluetoothDevice.BOND_BONDED;
 
@@ -60,6 +72,148 @@ public class DeviceScanActivity extends ListActivity {
     private static final long SCAN_PERIOD = 10000;
     private static String TAG = "DeviceScanActivity";
 
+    // How long to watch the scan results before guessing which disc the user will pick.
+    private static final long PRECONNECT_DELAY = 1500;
+    private KnownDiscRegistry mRegistry;
+
+    // Quick connect.  The last used disc is connected to by address straight away, with no
+    // scan; only if that hasn't worked within QUICK_CONNECT_TIMEOUT does a scan for known discs
+    // start, with the direct attempt left running alongside it.
+    private static final long QUICK_CONNECT_TIMEOUT = 4000;
+    private String mQuickConnectAddress;
+    private boolean mQuickConnectFellBack;
+    private boolean mConnectReceiverRegistered = false;
+    private long mSessionStartMs;
+    private boolean mScanningKnown = false;
+
+    // Speculative pre-connect.  The service is bound for as long as this screen is visible so
+    // a connection to the likely target can be under way before the user taps it.
+    private BluetoothLeService mBluetoothLeService;
+    private String mLastDiscAddress;
+    private String mBestAddress;
+    private int mBestRssi = Integer.MIN_VALUE;
+    private String mPreconnectAddress;
+    private boolean mPreconnectArmed = false;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                mBluetoothLeService = null;
+                return;
+            }
+            startQuickConnect();
+            updatePreconnect();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    private final Runnable mArmPreconnect = new Runnable() {
+        @Override
+        public void run() {
+            mPreconnectArmed = true;
+            updatePreconnect();
+        }
+    };
+
+    private final Runnable mQuickConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mQuickConnectAddress == null) return;
+            Log.i(TAG, "No direct connection to " + mQuickConnectAddress + ", scanning");
+            mQuickConnectFellBack = true;
+            scanKnownDiscs(true);
+        }
+    };
+
+    private final BroadcastReceiver mConnectReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // A connection to anything else, such as a scan result the user tapped, is not ours.
+            if (!BluetoothLeService.ACTION_GATT_CONNECTED.equals(intent.getAction())
+                    || mQuickConnectAddress == null || !mQuickConnectAddress.equals(
+                            intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                return;
+            }
+            final int path = mQuickConnectFellBack
+                    ? KnownDiscRegistry.PATH_SCAN : KnownDiscRegistry.PATH_DIRECT;
+            final long elapsed = SystemClock.elapsedRealtime() - mSessionStartMs;
+            mRegistry.recordConnect(path, elapsed);
+            Log.i(TAG, "Connected to " + mQuickConnectAddress + " in " + elapsed + " ms ("
+                    + (path == KnownDiscRegistry.PATH_DIRECT ? "direct" : "scan") + "; means "
+                    + mRegistry.getMeanConnectMillis(KnownDiscRegistry.PATH_DIRECT) + " ms direct, "
+                    + mRegistry.getMeanConnectMillis(KnownDiscRegistry.PATH_SCAN) + " ms scan)");
+            final String address = mQuickConnectAddress;
+            stopQuickConnect();
+            openDisc(address, mRegistry.getName(address));
+        }
+    };
+
+    /** Connects to the last used disc by address, once the service is bound. */
+    private void startQuickConnect() {
+        if (mBluetoothLeService == null || mQuickConnectAddress == null) return;
+        if (mBluetoothLeService.isConnected(mQuickConnectAddress)) {
+            // Still up from last time, say kept by a capture, so no connect will be broadcast.
+            final String address = mQuickConnectAddress;
+            stopQuickConnect();
+            openDisc(address, mRegistry.getName(address));
+            return;
+        }
+        if (!mBluetoothLeService.connect(mQuickConnectAddress, mRegistry.isAutoConnect())) {
+            // Not even started; don't wait out the timeout.
+            mHandler.removeCallbacks(mQuickConnectTimeout);
+            mQuickConnectTimeout.run();
+        }
+    }
+
+    private void stopQuickConnect() {
+        mHandler.removeCallbacks(mQuickConnectTimeout);
+        mQuickConnectAddress = null;
+    }
+
+    /**
+     * Picks the disc the user is most likely to tap: the last one used if it is in range,
+     * otherwise the strongest bonded disc once the scan has had time to settle.  Nothing is
+     * guessed while a quick connect is under way, since pre-connecting to another disc would
+     * cancel it.
+     */
+    private void updatePreconnect() {
+        if (mBluetoothLeService == null || mQuickConnectAddress != null) return;
+        String target = null;
+        if (mLastDiscAddress != null && mLastDiscAddress.equals(mBestAddress)) {
+            target = mLastDiscAddress;
+        } else if (mPreconnectArmed) {
+            target = mBestAddress;
+        }
+        if (target == null || target.equals(mPreconnectAddress)) return;
+        // Don't switch away from the last used disc once we are connecting to it.
+        if (mPreconnectAddress != null && mPreconnectAddress.equals(mLastDiscAddress)) return;
+        if (mBluetoothLeService.preconnect(target)) {
+            mPreconnectAddress = target;
+        }
+    }
+
+    private void onDeviceSeen(BluetoothDevice device, int rssi) {
+        if (device.getBondState() != BOND_BONDED) return;
+        final String address = device.getAddress();
+        if (address.equals(mLastDiscAddress)) {
+            // The last used disc wins over any stronger stranger.
+            mBestAddress = address;
+            mBestRssi = Integer.MAX_VALUE;
+        } else if (rssi > mBestRssi) {
+            mBestAddress = address;
+            mBestRssi = rssi;
+        }
+        updatePreconnect();
+    }
+
     /* Source:  https://github.com/madhurbhargava/AndroidWarehouseMonitor/blob/master/
      * AndroidWarehouseMonitor/app/src/main/java/android/packt/com/androidwarehousemonitor/
      * MainActivity.java
@@ -124,6 +278,25 @@ public class DeviceScanActivity extends ListActivity {
             return;
         }
         ensureLocationPermissionIsEnabled();
+        mRegistry = new KnownDiscRegistry(this);
+        mLastDiscAddress = mRegistry.getLastAddress();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // DeviceControlActivity has bound by now if it was started, so a connection it
+        // claimed survives this unbind.
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+        mPreconnectAddress = null;
     }
 
     @Override
@@ -172,7 +345,26 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
-        scanLeDevice(true);
+        mBestAddress = null;
+        mBestRssi = Integer.MIN_VALUE;
+        mPreconnectArmed = false;
+        mHandler.postDelayed(mArmPreconnect, PRECONNECT_DELAY);
+
+        mSessionStartMs = SystemClock.elapsedRealtime();
+        mQuickConnectFellBack = false;
+        mQuickConnectAddress = null;
+        if (mLastDiscAddress != null && mBluetoothAdapter.isEnabled()
+                && mBluetoothAdapter.getRemoteDevice(mLastDiscAddress).getBondState()
+                        == BOND_BONDED) {
+            mQuickConnectAddress = mLastDiscAddress;
+            registerReceiver(mConnectReceiver,
+                    new IntentFilter(BluetoothLeService.ACTION_GATT_CONNECTED));
+            mConnectReceiverRegistered = true;
+            mHandler.postDelayed(mQuickConnectTimeout, QUICK_CONNECT_TIMEOUT);
+            startQuickConnect();
+        } else {
+            scanLeDevice(true);
+        }
     }
 
     @Override
@@ -188,6 +380,12 @@ public class DeviceScanActivity extends ListActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        mHandler.removeCallbacks(mArmPreconnect);
+        stopQuickConnect();
+        if (mConnectReceiverRegistered) {
+            unregisterReceiver(mConnectReceiver);
+            mConnectReceiverRegistered = false;
+        }
         scanLeDevice(false);
         mLeDeviceListAdapter.clear();
     }
@@ -196,21 +394,31 @@ public class DeviceScanActivity extends ListActivity {
     protected void onListItemClick(ListView l, View v, int position, long id) {
         final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
-        final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        // The user picked for themselves; a quick connect still under way is superseded.
+        stopQuickConnect();
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
         // check if bonded
         final int bond_status = device.getBondState();
         if (bond_status != BOND_BONDED) {
             Toast.makeText(getApplicationContext(),
                     "Bond device in Bluetooth Settings", Toast.LENGTH_LONG).show();
+            if (mBluetoothLeService != null) {
+                mBluetoothLeService.cancelPreconnect();
+            }
             finish();
             return;
         }
+        openDisc(device.getAddress(), device.getName());
+    }
+
+    private void openDisc(String address, String name) {
+        mLastDiscAddress = address;
+        mRegistry.remember(address, name);
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
         startActivity(intent);
     }
 
@@ -231,6 +439,36 @@ public class DeviceScanActivity extends ListActivity {
         } else {
             mScanning = false;
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            scanKnownDiscs(false);
+        }
+        invalidateOptionsMenu();
+    }
+
+    /** Scans for known discs only, filtered in the controller rather than in onLeScan. */
+    private void scanKnownDiscs(final boolean enable) {
+        final BluetoothLeScanner scanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) return;
+        if (enable) {
+            final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+            for (String address : mRegistry.getAddresses()) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            }
+            final ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    scanKnownDiscs(false);
+                    invalidateOptionsMenu();
+                }
+            }, SCAN_PERIOD);
+            mScanning = true;
+            mScanningKnown = true;
+            scanner.startScan(filters, settings, mKnownScanCallback);
+        } else if (mScanningKnown) {
+            mScanning = false;
+            mScanningKnown = false;
+            scanner.stopScan(mKnownScanCallback);
         }
         invalidateOptionsMenu();
     }
@@ -306,17 +544,40 @@ public class DeviceScanActivity extends ListActivity {
             new BluetoothAdapter.LeScanCallback() {
 
                 @Override
-                public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+                public void onLeScan(final BluetoothDevice device, final int rssi,
+                                     byte[] scanRecord) {
                     runOnUiThread(new Runnable() {
                         @Override
                         public void run() {
                             mLeDeviceListAdapter.addDevice(device);
                             mLeDeviceListAdapter.notifyDataSetChanged();
+                            onDeviceSeen(device, rssi);
                         }
                     });
                 }
             };
 
+    private final ScanCallback mKnownScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mLeDeviceListAdapter.addDevice(result.getDevice());
+                    mLeDeviceListAdapter.notifyDataSetChanged();
+                    onDeviceSeen(result.getDevice(), result.getRssi());
+                    // The last used disc is advertising after all, so the direct attempt gave
+                    // up too soon; try it again now that it's in range.  A connect already
+                    // under way is left alone.
+                    if (mBluetoothLeService != null && mQuickConnectFellBack
+                            && result.getDevice().getAddress().equals(mQuickConnectAddress)) {
+                        mBluetoothLeService.connect(mQuickConnectAddress, false);
+                    }
+                }
+            });
+        }
+    };
+
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
@@ -1,4 +0,0 @@
-package com.example.android.bluetoothlegatt;
-
-public class DiscGattAttributes {
-}
@@ -0,0 +1,307 @@
+package com.example.android.bluetoothlegatt;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+
+/**
+ * Headless fragment that keeps one disc session alive across configuration changes.  It holds
+ * the service binding, so rotating the screen neither unbinds nor closes the GATT connection,
+ * and it owns the graph's channel, rings and any replay, so a recreated
+ * {@link DeviceControlActivity} carries on drawing where the old one stopped instead of
+ * starting the graph over.
+ * <p>
+ * Retained until the Activity really finishes; only then is the session torn down.
+ */
+public class DiscSession extends Fragment {
+    private final static String TAG = DiscSession.class.getSimpleName();
+    private static final String FRAGMENT_TAG = "disc_session";
+    private static final String ARG_DEVICE_ADDRESS = "device_address";
+    private static final int BACKFILL_CAPACITY = 16384;
+
+    public static final int GRAPH_POINTS = 400;
+    // A real-time sample further than this from both neighbours is a glitch, not spin.
+    private static final float ANG_RT_MAX_JUMP = 300;
+
+    public static final float[] REPLAY_SPEEDS = { 0.25f, 0.5f, 1, 2, 4, 8 };
+    private static final int DEFAULT_REPLAY_SPEED = 2;
+
+    /** What the session needs from whichever Activity is showing it. */
+    public interface Callbacks {
+        /** The service is bound.  Called once per Activity, however many times it is recreated. */
+        void onServiceReady(BluetoothLeService service);
+
+        /** The service could not reach Bluetooth; the session is no use. */
+        void onServiceFailed();
+
+        /**
+         * New samples are in the graph rings.
+         *
+         * @param tofSeconds The newest time of flight among them, or NaN if there was none.
+         */
+        void onSamplesShown(float tofSeconds);
+    }
+
+    private String mDeviceAddress;
+    private Context mAppContext;
+    private BluetoothLeService mBluetoothLeService;
+    private Callbacks mCallbacks;
+    private boolean mLive = false;
+
+    private final SampleRing mAngVelRt = new SampleRing(GRAPH_POINTS);
+    private final SampleRing mAngVelAvg = new SampleRing(GRAPH_POINTS);
+    // mLastSequence is the newest sample in the rings; backfill starts after it.
+    private long mLastSequence = SampleStore.NO_SEQUENCE;
+    private SampleStore.Batch mBackfill;
+    private boolean mEndOfFlight = false;
+    // Lines the average up with the real-time curve, so both rings advance one row at a time.
+    private final TelemetryFrameAligner mAligner = new TelemetryFrameAligner(BACKFILL_CAPACITY);
+    private final TelemetryFrameAligner.Listener mFrameListener =
+            new TelemetryFrameAligner.Listener() {
+                @Override
+                public void onFrame(TelemetryFrameAligner.Frame frame) {
+                    showFrame(frame);
+                }
+            };
+
+    private FlightPlayer mPlayer;
+    private int mReplaySpeed = DEFAULT_REPLAY_SPEED;
+    private long mLiveSequence;
+
+    private final Handler mHandler = new Handler();
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+    // The graph only needs the newest window, so a slow UI thread drops the oldest samples
+    // instead of falling behind.
+    private final SampleChannel mGraphChannel = SampleChannel.bounded("graph", GRAPH_POINTS,
+            new SampleChannel.Consumer() {
+                @Override
+                public void onSamples(SampleStore.Batch batch) {
+                    showSamples(batch);
+                }
+            }, mUiExecutor);
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                if (mCallbacks != null) mCallbacks.onServiceFailed();
+                return;
+            }
+            // The scan screen may already have connected speculatively, in which case no
+            // ACTION_GATT_CONNECTED is coming.
+            mBluetoothLeService.connect(mDeviceAddress);
+            // Keep recording while the screen is off or another app is in front.
+            mBluetoothLeService.startCapture();
+            if (mLive && mPlayer == null) {
+                mBluetoothLeService.registerChannel(mGraphChannel);
+                backfill();
+            }
+            if (mCallbacks != null) mCallbacks.onServiceReady(mBluetoothLeService);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
+
+    /** Finds the session {@code activity} is showing, starting one for {@code address} if none. */
+    public static DiscSession attach(Activity activity, String address) {
+        final FragmentManager fm = activity.getFragmentManager();
+        DiscSession session = (DiscSession) fm.findFragmentByTag(FRAGMENT_TAG);
+        if (session == null) {
+            session = new DiscSession();
+            final Bundle args = new Bundle();
+            args.putString(ARG_DEVICE_ADDRESS, address);
+            session.setArguments(args);
+            fm.beginTransaction().add(session, FRAGMENT_TAG).commit();
+            // So onCreate has bound before the Activity asks for the service.
+            fm.executePendingTransactions();
+        }
+        return session;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        mDeviceAddress = getArguments().getString(ARG_DEVICE_ADDRESS);
+        // Bound through the application so the binding doesn't go with the Activity.
+        mAppContext = getActivity().getApplicationContext();
+        mAppContext.bindService(new Intent(mAppContext, BluetoothLeService.class),
+                mServiceConnection, Context.BIND_AUTO_CREATE);
+        // Smooth only what the graph shows; the capture store keeps the raw values.
+        mGraphChannel.setFilter(SampleStore.STREAM_ANG_RT, new SignalFilters.Chain(
+                new SignalFilters.OutlierReject(ANG_RT_MAX_JUMP),
+                new SignalFilters.OneEuro(1.0, 0.005, 1.0)));
+    }
+
+    @Override
+    public void onDestroy() {
+        // Only reached when the Activity is finishing: the user is done with this disc.
+        if (mPlayer != null) {
+            mPlayer.close();
+            mPlayer = null;
+        }
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterChannel(mGraphChannel);
+            // Let the service close the connection when we unbind.
+            mBluetoothLeService.stopCapture();
+        }
+        mAppContext.unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+        super.onDestroy();
+    }
+
+    /**
+     * Points the session at a new Activity, or at none with null.  If the service is already
+     * bound the Activity hears {@link Callbacks#onServiceReady} straight away.
+     */
+    public void setCallbacks(Callbacks callbacks) {
+        mCallbacks = callbacks;
+        if (callbacks != null && mBluetoothLeService != null) {
+            callbacks.onServiceReady(mBluetoothLeService);
+        }
+    }
+
+    /** @return The bound service, or null until it is. */
+    public BluetoothLeService getService() {
+        return mBluetoothLeService;
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public SampleRing getAngVelRt() {
+        return mAngVelRt;
+    }
+
+    public SampleRing getAngVelAvg() {
+        return mAngVelAvg;
+    }
+
+    /** Starts feeding the graph from the service, after catching up on what it missed. */
+    public void startLive() {
+        mLive = true;
+        if (mBluetoothLeService != null && mPlayer == null) {
+            mBluetoothLeService.registerChannel(mGraphChannel);
+            backfill();
+        }
+    }
+
+    /** Stops feeding the graph while nothing is drawing it. */
+    public void stopLive() {
+        mLive = false;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterChannel(mGraphChannel);
+        }
+    }
+
+    /**
+     * Catches the graph up with everything the service captured while the session wasn't
+     * listening.
+     */
+    private void backfill() {
+        if (mBackfill == null) {
+            mBackfill = new SampleStore.Batch(BACKFILL_CAPACITY);
+        }
+        if (mBluetoothLeService.getSamplesSince(mLastSequence, mBackfill) > 0) {
+            showSamples(mBackfill);
+        }
+    }
+
+    /** Applies a batch from the graph channel or a backfill, skipping samples already shown. */
+    private void showSamples(SampleStore.Batch b) {
+        for (int i = 0; i < b.count; i++) {
+            if (b.sequences[i] <= mLastSequence) continue;
+            mAligner.add(b.streams[i], b.times[i], b.values[i]);
+            mLastSequence = b.sequences[i];
+        }
+        mAligner.flush(mFrameListener);
+    }
+
+    private void showFrame(TelemetryFrameAligner.Frame frame) {
+        if (frame.count > 0) {
+            if (mEndOfFlight) {
+                mEndOfFlight = false;
+                //mAngVelRt.clear();
+                //mAngVelAvg.clear();
+            }
+            mAngVelRt.add(frame.rt, 0, frame.count);
+            mAngVelAvg.add(frame.avg, 0, frame.count);
+        }
+        if (!Float.isNaN(frame.tof)) {
+            mEndOfFlight = true;
+        }
+        if (mCallbacks != null) mCallbacks.onSamplesShown(frame.tof);
+    }
+
+    /**
+     * Replaces live data in the graph with a replay of {@code flight}.
+     */
+    public void startReplay(File flight) {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.unregisterChannel(mGraphChannel);
+        }
+        mLiveSequence = mLastSequence;
+        mPlayer = new FlightPlayer(flight, mGraphChannel, new FlightPlayer.Listener() {
+            @Override
+            public void onSeek(long firstSequence) {
+                if (mPlayer == null) return;
+                mAligner.reset();
+                mAngVelRt.clear();
+                mAngVelAvg.clear();
+                mLastSequence = firstSequence - 1;
+                if (mCallbacks != null) mCallbacks.onSamplesShown(Float.NaN);
+            }
+        }, mUiExecutor);
+        mPlayer.setSpeed(REPLAY_SPEEDS[mReplaySpeed]);
+        mPlayer.play();
+    }
+
+    /** Goes back to live data. */
+    public void stopReplay() {
+        mPlayer.close();
+        mPlayer = null;
+        mAligner.reset();
+        mAngVelRt.clear();
+        mAngVelAvg.clear();
+        // Anything still queued from the replay has a lower sequence and is skipped.
+        mLastSequence = mLiveSequence;
+        if (mLive) startLive();
+    }
+
+    /** @return The replay in progress, or null while the graph shows live data. */
+    public FlightPlayer getPlayer() {
+        return mPlayer;
+    }
+
+    /** @return Index into {@link #REPLAY_SPEEDS} of the replay speed. */
+    public int getReplaySpeed() {
+        return mReplaySpeed;
+    }
+
+    public void setReplaySpeed(int index) {
+        mReplaySpeed = index;
+        if (mPlayer != null) mPlayer.setSpeed(REPLAY_SPEEDS[index]);
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Computes the metrics of one recorded flight in a single streaming pass over its
+ * {@link FlightLog}: where the throw starts and ends, how fast the spin decays and how much the
+ * disc wobbles.  Bump {@link #ANALYSIS_VERSION} whenever the results would change, so
+ * {@link FlightReanalyzer} knows stored results are stale.
+ * <p>
+ * An instance keeps its buffers and filters between flights; use one per thread.
+ */
+public class FlightAnalyzer {
+    public static final int ANALYSIS_VERSION = 1;
+
+    /** Column names of {@link Result#toCsv()}. */
+    public static final String CSV_HEADER = "flight,version,start_ms,samples,launch_s,duration_s,"
+            + "peak_spin,decay_per_s,tof_s,wobble_hz,wobble_amplitude";
+
+    // Spin above this (deg/s) counts as in flight.
+    private static final float FLIGHT_THRESHOLD = 200;
+    private static final float MAX_JUMP = 300;
+    private static final int BLOCK = 256;
+    private static final int WOBBLE_WINDOW = 64;
+    private static final int WOBBLE_MIN_BIN = 2;
+
+    public static class Result {
+        public String flight;
+        public long startMillis;
+        public long samples;
+        public double launchSeconds;
+        public double durationSeconds;
+        public double peakSpin;
+        /** Exponential decay rate of the spin in flight, from a log-linear fit. */
+        public double decayPerSecond;
+        public double tofSeconds;
+        public double wobbleHz;
+        public double wobbleAmplitude;
+
+        public String toCsv() {
+            return flight + "," + ANALYSIS_VERSION + "," + startMillis + "," + samples + ","
+                    + String.format(Locale.US, "%.4f,%.4f,%.1f,%.5f,%.2f,%.3f,%.2f", launchSeconds,
+                    durationSeconds, peakSpin, decayPerSecond, tofSeconds, wobbleHz,
+                    wobbleAmplitude);
+        }
+    }
+
+    private final long[] mTimes = new long[BLOCK];
+    private final float[] mValues = new float[BLOCK];
+    private final SignalFilter mFilter = new SignalFilters.OutlierReject(MAX_JUMP);
+    private final WobbleAnalyzer mWobble =
+            new WobbleAnalyzer(WOBBLE_WINDOW, WOBBLE_MIN_BIN, WOBBLE_WINDOW / 2);
+    private final WobbleAnalyzer.Result mWobbleResult = new WobbleAnalyzer.Result();
+
+    // Per-flight state.
+    private long mFirstTime;
+    private long mLaunchTime;
+    private long mLandingTime;
+    private boolean mInFlight;
+    private double mPeak;
+    // Sums for the least-squares fit of ln(spin) against time.
+    private long mFitCount;
+    private double mSumT;
+    private double mSumY;
+    private double mSumTT;
+    private double mSumTY;
+
+    public Result analyze(File file) throws IOException {
+        final Result result = new Result();
+        result.flight = file.getName();
+        mFilter.reset();
+        mWobble.reset();
+        mInFlight = false;
+        mPeak = 0;
+        mFitCount = 0;
+        mSumT = mSumY = mSumTT = mSumTY = 0;
+
+        final FlightLog.Reader in = new FlightLog.Reader(file);
+        try {
+            result.startMillis = in.getStartMillis();
+            int n = 0;
+            boolean first = true;
+            while (in.next()) {
+                result.samples++;
+                if (first) {
+                    first = false;
+                    mFirstTime = in.getTime();
+                }
+                if (in.getStream() == SampleStore.STREAM_ANG_RT) {
+                    mTimes[n] = in.getTime();
+                    mValues[n] = in.getValue();
+                    if (++n == BLOCK) {
+                        processBlock(n);
+                        n = 0;
+                    }
+                } else if (in.getStream() == SampleStore.STREAM_TOF) {
+                    result.tofSeconds = in.getValue();
+                }
+            }
+            processBlock(n);
+        } finally {
+            in.close();
+        }
+
+        if (mInFlight) {
+            result.launchSeconds = (mLaunchTime - mFirstTime) * 1e-9;
+            result.durationSeconds = (mLandingTime - mLaunchTime) * 1e-9;
+        }
+        result.peakSpin = mPeak;
+        if (mFitCount > 1) {
+            final double denominator = mFitCount * mSumTT - mSumT * mSumT;
+            if (denominator != 0) {
+                result.decayPerSecond = -(mFitCount * mSumTY - mSumT * mSumY) / denominator;
+            }
+        }
+        if (mWobble.getFlight(mWobbleResult)) {
+            result.wobbleHz = mWobbleResult.frequencyHz;
+            result.wobbleAmplitude = mWobbleResult.amplitude;
+        }
+        return result;
+    }
+
+    private void processBlock(int n) {
+        if (n == 0) return;
+        mFilter.process(mTimes, mValues, mValues, 0, n);
+        for (int i = 0; i < n; i++) {
+            final float spin = Math.abs(mValues[i]);
+            if (spin < FLIGHT_THRESHOLD) continue;
+            if (!mInFlight) {
+                mInFlight = true;
+                mLaunchTime = mTimes[i];
+            }
+            mLandingTime = mTimes[i];
+            mPeak = Math.max(mPeak, spin);
+            // Time relative to launch keeps the sums well conditioned.
+            final double t = (mTimes[i] - mLaunchTime) * 1e-9;
+            final double y = Math.log(spin);
+            mFitCount++;
+            mSumT += t;
+            mSumY += y;
+            mSumTT += t * t;
+            mSumTY += t * y;
+            mWobble.add(mTimes[i], mValues[i]);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * On-disk format for one recorded flight: a small header followed by fixed-size sample records
+ * (stream, time in nanoseconds, value) in arrival order.  Files are written and read
+ * sequentially, so a flight is never held in memory as a whole.  A file cut short by the app
+ * being killed reads back up to its last complete record.
+ * <p>
+ * Since version 2 a closed file ends in a sparse time index: one entry every
+ * {@link #INDEX_INTERVAL} records, giving the record number and the latest time of any record
+ * before it, then the first and latest times, the entry count and {@link #INDEX_MAGIC}.  Times
+ * are not quite in order (a time of flight is stamped with its landing), which is why entries
+ * hold the latest time so far; that is never decreasing, so {@link Reader#seek} can binary
+ * search it and then read at most one interval of records.
+ */
+public final class FlightLog {
+    public static final String EXTENSION = ".dfl";
+    public static final int INDEX_INTERVAL = 256;
+
+    private static final int MAGIC = 0x44464C54; // "DFLT"
+    private static final int INDEX_MAGIC = 0x4446494E; // "DFIN"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 13;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 8 + 8 + 4 + 4;
+
+    private FlightLog() {
+    }
+
+    /** Appends samples to a new flight file. */
+    public static class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private long mCount = 0;
+        private long mFirstTime = 0;
+        private long mLatestTime = Long.MIN_VALUE;
+        private long[] mIndexTimes = new long[64];
+        private int mIndexCount = 0;
+
+        /** @param startMillis Wall-clock time the flight started, for listing flights. */
+        public Writer(File file, long startMillis) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeLong(startMillis);
+        }
+
+        public void write(int stream, long timeNanos, float value) throws IOException {
+            if (mCount % INDEX_INTERVAL == 0) {
+                if (mIndexCount == mIndexTimes.length) {
+                    final long[] grown = new long[mIndexCount * 2];
+                    System.arraycopy(mIndexTimes, 0, grown, 0, mIndexCount);
+                    mIndexTimes = grown;
+                }
+                mIndexTimes[mIndexCount++] = mLatestTime;
+            }
+            if (mCount == 0) mFirstTime = timeNanos;
+            if (timeNanos > mLatestTime) mLatestTime = timeNanos;
+            mOut.writeByte(stream);
+            mOut.writeLong(timeNanos);
+            mOut.writeFloat(value);
+            mCount++;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Writes the time index and closes the file. */
+        @Override
+        public void close() throws IOException {
+            try {
+                for (int i = 0; i < mIndexCount; i++) {
+                    mOut.writeLong(mIndexTimes[i]);
+                    mOut.writeLong((long) i * INDEX_INTERVAL);
+                }
+                mOut.writeLong(mFirstTime);
+                mOut.writeLong(mCount == 0 ? 0 : mLatestTime);
+                mOut.writeInt(mIndexCount);
+                mOut.writeInt(INDEX_MAGIC);
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a flight file one sample at a time.  The current sample is exposed through the
+     * getters rather than as an object, so reading allocates nothing per sample.  Reads version
+     * 1 files, and version 2 files cut short before their index, as well; those only seek by
+     * reading from the start.
+     */
+    public static class Reader implements Closeable {
+        private final FileInputStream mFile;
+        private DataInputStream mIn;
+        private final long mStartMillis;
+        // Records in the file, or -1 if unknown and read until the end.
+        private long mRecordCount = -1;
+        private long mPosition = 0;
+        private long[] mIndexTimes;
+        private long mFirstTime;
+        private long mLatestTime;
+        private boolean mHeld = false;
+        private int mStream;
+        private long mTime;
+        private float mValue;
+
+        public Reader(File file) throws IOException {
+            mFile = new FileInputStream(file);
+            mIn = new DataInputStream(new BufferedInputStream(mFile));
+            try {
+                if (mIn.readInt() != MAGIC) {
+                    throw new IOException("Not a flight log: " + file);
+                }
+                final int version = mIn.readInt();
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("Unsupported flight log version " + version);
+                }
+                mStartMillis = mIn.readLong();
+                if (version >= 2) readIndex();
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+        }
+
+        private void readIndex() throws IOException {
+            final FileChannel channel = mFile.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE) return;
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(channel, trailer, size - TRAILER_SIZE);
+            final long firstTime = trailer.getLong(0);
+            final long latestTime = trailer.getLong(8);
+            final int entries = trailer.getInt(16);
+            if (trailer.getInt(20) != INDEX_MAGIC || entries < 0) return;
+            final long indexStart = size - TRAILER_SIZE - (long) entries * INDEX_ENTRY_SIZE;
+            if (indexStart < HEADER_SIZE || (indexStart - HEADER_SIZE) % RECORD_SIZE != 0) return;
+            final ByteBuffer index = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+            readFully(channel, index, indexStart);
+            mIndexTimes = new long[entries];
+            for (int i = 0; i < entries; i++) {
+                mIndexTimes[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+            }
+            mRecordCount = (indexStart - HEADER_SIZE) / RECORD_SIZE;
+            mFirstTime = firstTime;
+            mLatestTime = latestTime;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /** @return True if the file has a time index, so seeking is cheap. */
+        public boolean hasIndex() {
+            return mIndexTimes != null;
+        }
+
+        /** @return Time of the first record; only known for indexed files. */
+        public long getFirstTime() {
+            return mFirstTime;
+        }
+
+        /** @return Latest time of any record; only known for indexed files. */
+        public long getLatestTime() {
+            return mLatestTime;
+        }
+
+        /**
+         * Positions the reader so that {@link #next()} returns the first record at or after
+         * {@code timeNanos}, skipping only records before it.  With an index that is a binary
+         * search and one read of at most {@link #INDEX_INTERVAL} records; without, the file is
+         * read from the start.
+         *
+         * @return False if no record is that late.
+         */
+        public boolean seek(long timeNanos) throws IOException {
+            long record = 0;
+            if (mIndexTimes != null) {
+                // Last entry whose earlier records are all before timeNanos.
+                int low = 0;
+                int high = mIndexTimes.length - 1;
+                while (low < high) {
+                    final int mid = (low + high + 1) >>> 1;
+                    if (mIndexTimes[mid] < timeNanos) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                record = (long) low * INDEX_INTERVAL;
+            }
+            mFile.getChannel().position(HEADER_SIZE + record * RECORD_SIZE);
+            mIn = new DataInputStream(new BufferedInputStream(mFile));
+            mPosition = record;
+            mHeld = false;
+            while (next()) {
+                if (mTime >= timeNanos) {
+                    mHeld = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Moves to the next sample, returning false at the end of the file. */
+        public boolean next() throws IOException {
+            if (mHeld) {
+                mHeld = false;
+                return true;
+            }
+            if (mRecordCount >= 0 && mPosition >= mRecordCount) return false;
+            try {
+                final int stream = mIn.readUnsignedByte();
+                final long time = mIn.readLong();
+                final float value = mIn.readFloat();
+                mStream = stream;
+                mTime = time;
+                mValue = value;
+                mPosition++;
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public int getStream() {
+            return mStream;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public float getValue() {
+            return mValue;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
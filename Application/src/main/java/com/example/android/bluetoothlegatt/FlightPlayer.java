@@ -0,0 +1,228 @@
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays a recorded {@link FlightLog} back into a {@link SampleChannel}, so a replay is drawn by
+ * the same code as live data.  Samples go out on a thread of the player's own at their
+ * recorded spacing, scaled by the playback speed; seeking uses the file's time index, so
+ * scrubbing through a long session costs one small read per move.
+ * <p>
+ * Sequence numbers keep rising across seeks.  {@link Listener#onSeek} reports the first one
+ * from the new position, so a consumer can drop whatever was still on its way from the old.
+ */
+public class FlightPlayer {
+    private final static String TAG = FlightPlayer.class.getSimpleName();
+
+    private static final long TICK_MS = 16;
+    private static final long NO_SEEK = Long.MIN_VALUE;
+
+    public interface Listener {
+        /** Samples from {@code firstSequence} on come from the new position. */
+        void onSeek(long firstSequence);
+    }
+
+    private final File mFile;
+    private final SampleChannel mChannel;
+    private final Listener mListener;
+    private final Executor mListenerExecutor;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by this; everything else belongs to the player thread.
+    private boolean mPlaying = false;
+    private float mSpeed = 1;
+    // The first tick seeks to the start, so the consumer hears where the replay begins.
+    private long mPendingSeek = 0;
+    private long mPosition = 0;
+    private long mDuration = 0;
+
+    private FlightLog.Reader mReader;
+    private long mFirstTime;
+    private boolean mHasNext;
+    private long mSequence = 0;
+    private long mLastTickNanos;
+    private boolean mWasPlaying = false;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    /** @param listenerExecutor Where {@link Listener} is called, e.g. the UI thread. */
+    public FlightPlayer(File file, SampleChannel channel, Listener listener,
+                        Executor listenerExecutor) {
+        mFile = file;
+        mChannel = channel;
+        mListener = listener;
+        mListenerExecutor = listenerExecutor;
+        mThread = new HandlerThread("Playback", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    private void open() {
+        try {
+            mReader = new FlightLog.Reader(mFile);
+            mHasNext = mReader.next();
+            mFirstTime = mReader.hasIndex() ? mReader.getFirstTime() : mReader.getTime();
+            long latest = mReader.getLatestTime();
+            if (!mReader.hasIndex()) {
+                // No index to say how long it is; find out once, then start over.
+                latest = mReader.getTime();
+                while (mReader.next()) latest = Math.max(latest, mReader.getTime());
+                mHasNext = mReader.seek(mFirstTime) && mReader.next();
+            }
+            synchronized (this) {
+                mDuration = Math.max(0, latest - mFirstTime);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + mFile, e);
+            mHasNext = false;
+        }
+    }
+
+    private void tick() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final boolean playing;
+        final float speed;
+        final long seek;
+        synchronized (this) {
+            playing = mPlaying;
+            speed = mSpeed;
+            seek = mPendingSeek;
+            mPendingSeek = NO_SEEK;
+        }
+        if (seek != NO_SEEK && mReader != null) {
+            try {
+                mHasNext = mReader.seek(mFirstTime + seek) && mReader.next();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to seek in " + mFile, e);
+                mHasNext = false;
+            }
+            synchronized (this) {
+                mPosition = seek;
+            }
+            final long first = mSequence;
+            mListenerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onSeek(first);
+                }
+            });
+        }
+        final long position;
+        synchronized (this) {
+            // Time spent paused doesn't count.
+            if (playing && mWasPlaying) {
+                mPosition = Math.min(mDuration,
+                        mPosition + (long) ((now - mLastTickNanos) * speed));
+            }
+            position = mPosition;
+        }
+        mLastTickNanos = now;
+        mWasPlaying = playing;
+        emitUntil(mFirstTime + position);
+        if (!mHasNext) {
+            synchronized (this) {
+                mPlaying = false;
+            }
+        } else if (playing) {
+            mHandler.postDelayed(mTick, TICK_MS);
+        }
+    }
+
+    /** Runs a tick now rather than waiting for the next, or at all if paused. */
+    private void kick() {
+        mHandler.removeCallbacks(mTick);
+        mHandler.post(mTick);
+    }
+
+    private void emitUntil(long timeNanos) {
+        try {
+            while (mHasNext && mReader.getTime() <= timeNanos) {
+                mChannel.offer(mSequence++, mReader.getStream(), mReader.getTime(),
+                        mReader.getValue());
+                mHasNext = mReader.next();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile, e);
+            mHasNext = false;
+        }
+    }
+
+    public synchronized void play() {
+        if (mPosition >= mDuration && mDuration > 0) {
+            // Played to the end; start over.
+            mPendingSeek = 0;
+        }
+        mPlaying = true;
+        kick();
+    }
+
+    public synchronized void pause() {
+        mPlaying = false;
+    }
+
+    public synchronized boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /** @param speed Playback rate; 1 is real time. */
+    public synchronized void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public synchronized float getSpeed() {
+        return mSpeed;
+    }
+
+    /** Moves to {@code positionNanos} from the start; only the newest of rapid seeks is done. */
+    public synchronized void seek(long positionNanos) {
+        mPendingSeek = Math.max(0, Math.min(positionNanos, mDuration));
+        kick();
+    }
+
+    public synchronized long getPositionNanos() {
+        return mPosition;
+    }
+
+    /** @return Length of the flight, or 0 until the file has been opened. */
+    public synchronized long getDurationNanos() {
+        return mDuration;
+    }
+
+    public void close() {
+        mHandler.removeCallbacks(mTick);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mTick);
+                if (mReader != null) {
+                    try {
+                        mReader.close();
+                    } catch (IOException e) {
+                        // Only ever read.
+                    }
+                }
+            }
+        });
+        mThread.quitSafely();
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recomputes {@link FlightAnalyzer} results for every stored flight after the analytics change.
+ * The flights are split across a fork-join pool; each is streamed from its file by one worker,
+ * and results are written out in order a window of flights at a time, so beyond the list of
+ * file names memory use does not grow with the number or length of flights.  Results go to
+ * {@code flights-v<ANALYSIS_VERSION>.csv} in the results directory, next to those of earlier
+ * versions.
+ * <p>
+ * Uses nothing from Android, so the same code runs over a copy of the flight directory on a
+ * desktop JVM:
+ * <pre>
+ * java -cp classes com.example.android.bluetoothlegatt.FlightReanalyzer flights results
+ * </pre>
+ */
+public class FlightReanalyzer {
+    // Flights per leaf task; small enough to balance, large enough to amortize forking.
+    private static final int LEAF_SIZE = 16;
+    // Flights analyzed between writes, per thread; bounds the results held in memory.
+    private static final int WINDOW_PER_THREAD = LEAF_SIZE * 8;
+
+    private static final ThreadLocal<FlightAnalyzer> sAnalyzers =
+            new ThreadLocal<FlightAnalyzer>() {
+                @Override
+                protected FlightAnalyzer initialValue() {
+                    return new FlightAnalyzer();
+                }
+            };
+
+    private final File[] mFlights;
+    // Results of the current window, indexed from mWindowStart.
+    private final String[] mLines;
+    private int mWindowStart;
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    private FlightReanalyzer(File[] flights, int window) {
+        mFlights = flights;
+        mLines = new String[window];
+    }
+
+    private class AnalyzeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mFrom;
+        private final int mTo;
+
+        AnalyzeTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > LEAF_SIZE) {
+                final int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new AnalyzeTask(mFrom, mid), new AnalyzeTask(mid, mTo));
+                return;
+            }
+            final FlightAnalyzer analyzer = sAnalyzers.get();
+            for (int i = mFrom; i < mTo; i++) {
+                try {
+                    mLines[i - mWindowStart] = analyzer.analyze(mFlights[i]).toCsv();
+                } catch (IOException e) {
+                    // One unreadable flight shouldn't cost the rest of the run.
+                    mFailures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Lists the flight logs in {@code dir}, oldest name first. */
+    public static File[] listFlights(File dir) {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(FlightLog.EXTENSION);
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Analyzes every flight in {@code flightsDir} on {@code pool} and writes the results.
+     *
+     * @return The results file.
+     */
+    public static File reanalyze(File flightsDir, File resultsDir, ForkJoinPool pool)
+            throws IOException {
+        final File[] flights = listFlights(flightsDir);
+        final FlightReanalyzer job = new FlightReanalyzer(flights,
+                Math.min(flights.length, WINDOW_PER_THREAD * pool.getParallelism()));
+
+        if (!resultsDir.isDirectory() && !resultsDir.mkdirs()) {
+            throw new IOException("Unable to create " + resultsDir);
+        }
+        final String name = "flights-v" + FlightAnalyzer.ANALYSIS_VERSION + ".csv";
+        // Written aside and renamed, so a reader never sees half a results file.
+        final File partial = new File(resultsDir, name + ".tmp");
+        final Writer out = new BufferedWriter(new FileWriter(partial));
+        try {
+            out.write(FlightAnalyzer.CSV_HEADER);
+            out.write('\n');
+            for (int from = 0; from < flights.length; from += job.mLines.length) {
+                final int to = Math.min(flights.length, from + job.mLines.length);
+                job.mWindowStart = from;
+                pool.invoke(job.new AnalyzeTask(from, to));
+                for (int i = 0; i < to - from; i++) {
+                    final String line = job.mLines[i];
+                    if (line == null) continue;
+                    job.mLines[i] = null;
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        } finally {
+            out.close();
+        }
+        final File results = new File(resultsDir, name);
+        if (!partial.renameTo(results)) {
+            throw new IOException("Unable to replace " + results);
+        }
+        if (job.mFailures.get() > 0) {
+            System.err.println(job.mFailures.get() + " flights could not be read");
+        }
+        return results;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: FlightReanalyzer <flights dir> <results dir> [threads]");
+            System.exit(2);
+        }
+        final int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final long start = System.nanoTime();
+        final File results = reanalyze(new File(args[0]), new File(args[1]), pool);
+        pool.shutdown();
+        System.out.println("Wrote " + results + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms on " + threads + " threads");
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes each flight to its own {@link FlightLog} file, for {@link FlightReanalyzer} to go back
+ * over later.  A flight starts with the first real-time sample after the previous flight's time
+ * of flight, and ends with its own time of flight.  Runs as a {@link SampleChannel} consumer, so
+ * file I/O stays off the Bluetooth callback thread.
+ * <p>
+ * A flight is written under a temporary name and only given its {@link FlightLog#EXTENSION}
+ * once closed, so readers never pick up a flight still in progress.
+ */
+public class FlightRecorder implements SampleChannel.Consumer {
+    private final static String TAG = FlightRecorder.class.getSimpleName();
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    public interface Listener {
+        /** Called on the recorder's thread when the first sample of a flight arrives. */
+        void onFlightStarted();
+
+        /** Called on the recorder's thread once a flight's file is complete. */
+        void onFlightRecorded(File flight);
+    }
+
+    private final File mDir;
+    private final Listener mListener;
+    private FlightLog.Writer mWriter;
+    private File mFile;
+    private File mPartialFile;
+    private int mFlightCount = 0;
+
+    public FlightRecorder(File dir, Listener listener) {
+        mDir = dir;
+        mListener = listener;
+    }
+
+    @Override
+    public void onSamples(SampleStore.Batch b) {
+        for (int i = 0; i < b.count; i++) {
+            if (mWriter == null) {
+                if (b.streams[i] != SampleStore.STREAM_ANG_RT) continue;
+                open();
+                if (mWriter == null) return;
+            }
+            try {
+                mWriter.write(b.streams[i], b.times[i], b.values[i]);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write " + mPartialFile, e);
+                close();
+                continue;
+            }
+            if (b.streams[i] == SampleStore.STREAM_TOF) {
+                close();
+                mFlightCount++;
+            }
+        }
+    }
+
+    private void open() {
+        mFile = new File(mDir, "flight-" + System.currentTimeMillis() + FlightLog.EXTENSION);
+        mPartialFile = new File(mDir, mFile.getName() + PARTIAL_SUFFIX);
+        try {
+            mWriter = new FlightLog.Writer(mPartialFile, System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to create " + mPartialFile, e);
+            mWriter = null;
+            return;
+        }
+        mListener.onFlightStarted();
+    }
+
+    /** Closes the flight in progress, if any; what was written so far stays readable. */
+    public void close() {
+        final FlightLog.Writer writer = mWriter;
+        if (writer == null) return;
+        mWriter = null;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + mPartialFile, e);
+        }
+        if (!mPartialFile.renameTo(mFile)) {
+            Log.e(TAG, "Unable to rename " + mPartialFile);
+            return;
+        }
+        mListener.onFlightRecorded(mFile);
+    }
+
+    public int getFlightCount() {
+        return mFlightCount;
+    }
+}
@@ -0,0 +1,510 @@
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads recorded flights to an HTTP ingestion endpoint in the background.
+ * <p>
+ * Flights not yet acknowledged are grouped into batches of up to {@link #MAX_BATCH_FLIGHTS}
+ * flights or {@link #MAX_BATCH_BYTES} bytes, gzipped and POSTed at no more than the configured
+ * rate.  Each batch carries an {@code Idempotency-Key} derived from the flights in it, so a
+ * retry of a batch whose response got lost cannot be stored twice.  Failed attempts are retried
+ * with jittered exponential backoff.  Every acknowledged flight is appended to a ledger file, so
+ * an interrupted run picks up after the last acknowledged batch.
+ * <p>
+ * A flight whose batch the server refused, or gave up on after every retry, is sent on its own
+ * from then on, so it can't hold up the flights batched with it.  Once the server refuses it on
+ * its own, or it has failed {@link #MAX_FLIGHT_FAILURES} passes, it is quarantined: recorded in
+ * the ledger with a {@code !} in front and never sent again, so newer flights keep moving.
+ * Failing to reach the server at all is not held against any flight.
+ * <p>
+ * The worker thread runs at the lowest priority and is paused by {@link #setPaused} while a
+ * disc is in the air, mid-batch included, so it never competes with the live Bluetooth
+ * pipeline.
+ * <p>
+ * Batch body, before compression: the int "DFLB", the flight count, then per flight its name
+ * (modified UTF-8), its length as a long and its {@link FlightLog} bytes.
+ */
+public class FlightUploader {
+    private final static String TAG = FlightUploader.class.getSimpleName();
+
+    public static final int MAX_BATCH_FLIGHTS = 20;
+    public static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private static final int BATCH_MAGIC = 0x44464C42; // "DFLB"
+    private static final int MAX_ATTEMPTS = 6;
+    static final int MAX_FLIGHT_FAILURES = 5;
+    private static final String QUARANTINE_PREFIX = "!";
+    private static final long INITIAL_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int CHUNK = 4096;
+
+    private final File mFlightsDir;
+    private final File mLedgerFile;
+    private final URL mEndpoint;
+    private final long mBytesPerSecond;
+    private final Random mRandom = new Random();
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private boolean mRequested = false;
+    private boolean mPaused = false;
+    private boolean mRunning = false;
+    private Thread mThread;
+
+    // Only touched by the worker thread.
+    private final Set<String> mAcknowledged = new HashSet<String>();
+    private final Set<String> mQuarantined = new HashSet<String>();
+    // Failed passes per flight not yet acknowledged; kept in memory only.
+    private final HashMap<String, Integer> mFailures = new HashMap<String, Integer>();
+    private final byte[] mCopyBuffer = new byte[CHUNK];
+
+    private volatile long mUploadedFlights = 0;
+    private volatile long mUploadedBytes = 0;
+    private volatile long mFailedAttempts = 0;
+    private volatile long mQuarantinedFlights = 0;
+
+    /** How one batch went. */
+    private static final int SENT = 0;
+    /** The server refused the batch itself; retrying it as it is won't help. */
+    private static final int REJECTED = 1;
+    /** The server kept failing it. */
+    private static final int FAILED = 2;
+    /** The server couldn't be reached; not the flights' fault. */
+    private static final int UNREACHABLE = 3;
+
+    /**
+     * @param ledgerFile     Where acknowledged flight names are kept.
+     * @param bytesPerSecond Upload rate limit for compressed bytes.
+     */
+    public FlightUploader(File flightsDir, File ledgerFile, URL endpoint, long bytesPerSecond) {
+        mFlightsDir = flightsDir;
+        mLedgerFile = ledgerFile;
+        mEndpoint = endpoint;
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) return;
+            mRunning = true;
+            mRequested = true;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "FlightUploader");
+            // Android maps this to the lowest (background) scheduling priority.
+            mThread.setPriority(Thread.MIN_PRIORITY);
+            mThread.start();
+        }
+    }
+
+    public void stop() {
+        final Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) return;
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+        thread.interrupt();
+    }
+
+    /** Asks for a pass over the flights directory, e.g. once a new flight is recorded. */
+    public void requestUpload() {
+        synchronized (mLock) {
+            mRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /** While paused nothing is sent, not even the rest of a batch; call with true when a flight begins. */
+    public void setPaused(boolean paused) {
+        synchronized (mLock) {
+            mPaused = paused;
+            mLock.notifyAll();
+        }
+    }
+
+    public long getUploadedFlights() {
+        return mUploadedFlights;
+    }
+
+    public long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    public long getFailedAttempts() {
+        return mFailedAttempts;
+    }
+
+    /** @return Flights given up on for good since this uploader started. */
+    public long getQuarantinedFlights() {
+        return mQuarantinedFlights;
+    }
+
+    private void work() {
+        try {
+            loadLedger();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read upload ledger " + mLedgerFile, e);
+            return;
+        }
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    while (mRunning && !mRequested) {
+                        mLock.wait();
+                    }
+                    if (!mRunning) return;
+                    mRequested = false;
+                }
+                uploadPending();
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        }
+    }
+
+    /**
+     * Sends batches until everything is acknowledged or quarantined, the server can't be
+     * reached, or a batch keeps failing; the last two wait for the next pass.
+     */
+    private void uploadPending() throws InterruptedException {
+        while (true) {
+            awaitUnpaused();
+            final List<File> batch = nextBatch();
+            if (batch.isEmpty()) return;
+            final int result = sendWithRetries(batch);
+            if (result == REJECTED) {
+                blame(batch, true);
+            } else if (result == FAILED) {
+                blame(batch, false);
+                return;
+            } else if (result == UNREACHABLE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Counts a failed pass against every flight in {@code batch}.  A flight on its own is
+     * quarantined if the server refused it or it has used up its passes.
+     */
+    private void blame(List<File> batch, boolean rejected) {
+        for (File flight : batch) {
+            final String name = flight.getName();
+            final Integer previous = mFailures.get(name);
+            final int failures = previous != null ? previous + 1 : 1;
+            if (batch.size() == 1 && (rejected || failures >= MAX_FLIGHT_FAILURES)) {
+                Log.e(TAG, "Giving up on uploading " + name + " after " + failures + " passes");
+                mFailures.remove(name);
+                quarantine(name);
+            } else {
+                mFailures.put(name, failures);
+            }
+        }
+    }
+
+    private void awaitUnpaused() throws InterruptedException {
+        synchronized (mLock) {
+            while (mRunning && mPaused) {
+                mLock.wait();
+            }
+            if (!mRunning) throw new InterruptedException();
+        }
+    }
+
+    private List<File> nextBatch() {
+        final List<File> batch = new ArrayList<File>();
+        long bytes = 0;
+        for (File flight : FlightReanalyzer.listFlights(mFlightsDir)) {
+            final String name = flight.getName();
+            if (mAcknowledged.contains(name) || mQuarantined.contains(name)) continue;
+            if (mFailures.containsKey(name)) {
+                // Failed before, so it goes alone and can only hold itself up.
+                if (batch.isEmpty()) batch.add(flight);
+                break;
+            }
+            // Always take at least one flight, however large, so nothing is stuck forever.
+            if (!batch.isEmpty() && bytes + flight.length() > MAX_BATCH_BYTES) break;
+            batch.add(flight);
+            bytes += flight.length();
+            if (batch.size() == MAX_BATCH_FLIGHTS) break;
+        }
+        return batch;
+    }
+
+    /** @return {@link #SENT}, {@link #REJECTED}, {@link #FAILED} or {@link #UNREACHABLE}. */
+    private int sendWithRetries(List<File> batch) throws InterruptedException {
+        final byte[] body;
+        try {
+            body = encode(batch);
+        } catch (IOException e) {
+            // Held against the flights like a refusal, so an unreadable one gets quarantined.
+            Log.e(TAG, "Unable to read flights for upload", e);
+            return REJECTED;
+        }
+        final String key = idempotencyKey(batch);
+        long backoff = INITIAL_BACKOFF_MS;
+        boolean answered = false;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            final int status;
+            try {
+                status = post(body, key);
+            } catch (IOException e) {
+                Log.w(TAG, "Upload attempt " + attempt + " failed", e);
+                mFailedAttempts++;
+                sleepBackoff(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                continue;
+            }
+            if (status >= 200 && status < 300) {
+                acknowledge(batch);
+                mUploadedFlights += batch.size();
+                mUploadedBytes += body.length;
+                return SENT;
+            }
+            mFailedAttempts++;
+            if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                // The server rejected the batch itself; retrying won't change its mind.
+                Log.e(TAG, "Upload rejected with HTTP " + status);
+                return REJECTED;
+            }
+            answered = true;
+            Log.w(TAG, "Upload attempt " + attempt + " got HTTP " + status);
+            sleepBackoff(backoff);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+        return answered ? FAILED : UNREACHABLE;
+    }
+
+    private void sleepBackoff(long backoff) throws InterruptedException {
+        // Full jitter, so a fleet of phones coming back online doesn't retry in lockstep.
+        final long delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+        synchronized (mLock) {
+            final long end = System.currentTimeMillis() + delay;
+            long remaining = delay;
+            while (mRunning && remaining > 0) {
+                mLock.wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+            if (!mRunning) throw new InterruptedException();
+        }
+    }
+
+    private byte[] encode(List<File> batch) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(BATCH_MAGIC);
+        out.writeInt(batch.size());
+        for (File flight : batch) {
+            out.writeUTF(flight.getName());
+            out.writeLong(flight.length());
+            final InputStream in = new FileInputStream(flight);
+            try {
+                long remaining = flight.length();
+                while (remaining > 0) {
+                    final int n = in.read(mCopyBuffer, 0,
+                            (int) Math.min(mCopyBuffer.length, remaining));
+                    if (n < 0) throw new IOException(flight + " shrank while uploading");
+                    out.write(mCopyBuffer, 0, n);
+                    remaining -= n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String idempotencyKey(List<File> batch) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (File flight : batch) {
+                digest.update(flight.getName().getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+            final StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b & 0xff));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int post(byte[] body, String key) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Idempotency-Key", key);
+            final OutputStream out = new ThrottledOutputStream(connection.getOutputStream(),
+                    mBytesPerSecond);
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            final int status = connection.getResponseCode();
+            final InputStream response = status < 400 ? connection.getInputStream()
+                    : connection.getErrorStream();
+            if (response != null) {
+                // Drain it so the connection can be reused.
+                while (response.read(mCopyBuffer) >= 0) {
+                }
+                response.close();
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void loadLedger() throws IOException {
+        if (!mLedgerFile.exists()) return;
+        final BufferedReader in = new BufferedReader(new FileReader(mLedgerFile));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(QUARANTINE_PREFIX)) {
+                    mQuarantined.add(line.substring(QUARANTINE_PREFIX.length()));
+                } else if (line.length() > 0) {
+                    mAcknowledged.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void acknowledge(List<File> batch) {
+        try {
+            final Writer out = new FileWriter(mLedgerFile, true);
+            try {
+                for (File flight : batch) {
+                    out.write(flight.getName());
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // The server dedupes by idempotency key, so at worst this batch is sent again.
+            Log.w(TAG, "Unable to update upload ledger", e);
+        }
+        for (File flight : batch) {
+            mAcknowledged.add(flight.getName());
+            mFailures.remove(flight.getName());
+        }
+    }
+
+    private void quarantine(String name) {
+        try {
+            final Writer out = new FileWriter(mLedgerFile, true);
+            try {
+                out.write(QUARANTINE_PREFIX);
+                out.write(name);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // Only costs another few passes after a restart.
+            Log.w(TAG, "Unable to update upload ledger", e);
+        }
+        mQuarantined.add(name);
+        mQuarantinedFlights++;
+    }
+
+    /**
+     * Paces writes so the average rate stays under a limit, and holds them while the uploader
+     * is paused.
+     */
+    private class ThrottledOutputStream extends FilterOutputStream {
+        private final long mBytesPerSecond;
+        private long mStart = System.nanoTime();
+        private long mWritten = 0;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final int n = Math.min(len, CHUNK);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+                mWritten += n;
+                pace();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mWritten++;
+            pace();
+        }
+
+        private void pace() throws IOException {
+            try {
+                // A flight started mid-batch; the rest waits until the disc lands, and the time
+                // spent waiting doesn't count towards the rate.
+                final long before = System.nanoTime();
+                awaitUnpaused();
+                mStart += System.nanoTime() - before;
+                if (mBytesPerSecond <= 0) return;
+                final long due = mStart + mWritten * 1000000000L / mBytesPerSecond;
+                final long wait = due - System.nanoTime();
+                if (wait <= 0) return;
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading");
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Serializes GATT operations.  Android drops a read, write or descriptor write issued while
+ * another is still outstanding, so every such operation goes through this queue and the next
+ * one starts only when the callback of the previous one calls {@link #onComplete()}.  An
+ * operation whose callback never comes is given up on after {@link #OPERATION_TIMEOUT_MS}.
+ * <p>
+ * Writes queued with {@link #enqueueLatest} coalesce: while one is waiting, a newer value for
+ * the same characteristic replaces it rather than queueing behind it.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long OPERATION_TIMEOUT_MS = 5000;
+
+    /** One GATT request.  Values are applied when the operation runs, not when queued. */
+    public abstract static class Operation {
+        private final String mName;
+
+        protected Operation(String name) {
+            mName = name;
+        }
+
+        /** @return False if the request could not be issued, so no callback will come. */
+        abstract boolean execute(BluetoothGatt gatt);
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    public static Operation read(final BluetoothGattCharacteristic c) {
+        return new Operation("read " + c.getUuid()) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(c);
+            }
+        };
+    }
+
+    public static Operation write(final BluetoothGattCharacteristic c, final byte[] value,
+                                  final int writeType) {
+        return new Operation("write " + c.getUuid()) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                c.setWriteType(writeType);
+                c.setValue(value);
+                return gatt.writeCharacteristic(c);
+            }
+        };
+    }
+
+    public static Operation writeDescriptor(final BluetoothGattDescriptor d, final byte[] value) {
+        return new Operation("write descriptor " + d.getUuid()) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                d.setValue(value);
+                return gatt.writeDescriptor(d);
+            }
+        };
+    }
+
+    public static Operation requestMtu(final int mtu) {
+        return new Operation("request MTU " + mtu) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        };
+    }
+
+    public static Operation readRssi() {
+        return new Operation("read RSSI") {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readRemoteRssi();
+            }
+        };
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private BluetoothGatt mGatt;
+    private Operation mCurrent;
+    private long mTimeouts = 0;
+    // Values for coalescing writes that are queued but not yet started.
+    private final HashMap<BluetoothGattCharacteristic, byte[]> mLatest =
+            new HashMap<BluetoothGattCharacteristic, byte[]>();
+    private long mCoalesced = 0;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent == null) return;
+                Log.w(TAG, "No callback for " + mCurrent + ", moving on");
+                mTimeouts++;
+                mCurrent = null;
+                next();
+            }
+        }
+    };
+
+    /** @param handler Where operation timeouts are posted. */
+    public GattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /** Drops everything queued and starts over on {@code gatt}, which may be null. */
+    public synchronized void reset(BluetoothGatt gatt) {
+        mPending.clear();
+        mLatest.clear();
+        mCurrent = null;
+        mHandler.removeCallbacks(mTimeout);
+        mGatt = gatt;
+    }
+
+    public synchronized void enqueue(Operation operation) {
+        mPending.addLast(operation);
+        if (mCurrent == null) next();
+    }
+
+    /** Queues an operation ahead of everything not yet started. */
+    public synchronized void enqueueFirst(Operation operation) {
+        mPending.addFirst(operation);
+        if (mCurrent == null) next();
+    }
+
+    /**
+     * Queues a write of {@code value} to {@code c}, unless one is already waiting, in which
+     * case that one will write {@code value} instead.  Meant for controls that only care about
+     * their latest setting.  Uses write without response where the characteristic allows it.
+     */
+    public synchronized void enqueueLatest(final BluetoothGattCharacteristic c, byte[] value) {
+        if (mLatest.put(c, value) != null) {
+            mCoalesced++;
+            return;
+        }
+        final int writeType =
+                (c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                        ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                        : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        enqueue(new Operation("write latest " + c.getUuid()) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                // Runs with the queue's lock held, so the value can't change under us.
+                c.setWriteType(writeType);
+                c.setValue(mLatest.remove(c));
+                return gatt.writeCharacteristic(c);
+            }
+        });
+    }
+
+    /** Called from every GATT callback that finishes a queued operation. */
+    public synchronized void onComplete() {
+        if (mCurrent == null) return;
+        mHandler.removeCallbacks(mTimeout);
+        mCurrent = null;
+        next();
+    }
+
+    private void next() {
+        while (mGatt != null && !mPending.isEmpty()) {
+            final Operation operation = mPending.pollFirst();
+            if (operation.execute(mGatt)) {
+                mCurrent = operation;
+                mHandler.postDelayed(mTimeout, OPERATION_TIMEOUT_MS);
+                return;
+            }
+            Log.w(TAG, "Unable to start " + operation);
+        }
+    }
+
+    /** @return Operations queued or in progress. */
+    public synchronized int getPendingCount() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /** @return Writes that were replaced by a newer value before they went out. */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Tells when a connected disc is lying still between throws, so the service can turn off what
+ * it doesn't need meanwhile.  The disc counts as idle once its spin has stayed under
+ * {@link #IDLE_SPIN} for {@link #IDLE_AFTER_MS}, and as moving again on the first sample at or
+ * above {@link #MOTION_SPIN}.  The real-time stream stays on while idle as the motion
+ * trigger, so the worst-case resume latency is one idle sample interval plus one connection
+ * interval.
+ * <p>
+ * Also counts the notifications that still wake the phone while idle.
+ */
+public class IdleScheduler {
+    public static final int NONE = 0;
+    public static final int ENTER_IDLE = 1;
+    public static final int EXIT_IDLE = 2;
+
+    static final float IDLE_SPIN = 30;
+    static final float MOTION_SPIN = 100;
+    static final long IDLE_AFTER_MS = 20000;
+
+    private boolean mIdle = false;
+    private long mStillSinceMs = -1;
+    private long mIdleSinceMs;
+    private long mIdleMillis = 0;
+    private long mIdleWakeups = 0;
+    private long mIdlePeriods = 0;
+
+    /**
+     * Feeds one real-time angular velocity sample.
+     *
+     * @return {@link #ENTER_IDLE} or {@link #EXIT_IDLE} on a transition, otherwise {@link #NONE}.
+     */
+    public synchronized int onSpin(long nowMs, float spin) {
+        final float magnitude = Math.abs(spin);
+        if (mIdle) {
+            return magnitude < MOTION_SPIN ? NONE : wake(nowMs);
+        }
+        if (magnitude >= IDLE_SPIN) {
+            mStillSinceMs = -1;
+            return NONE;
+        }
+        if (mStillSinceMs < 0) {
+            mStillSinceMs = nowMs;
+        } else if (nowMs - mStillSinceMs >= IDLE_AFTER_MS) {
+            mIdle = true;
+            mIdleSinceMs = nowMs;
+            mIdlePeriods++;
+            return ENTER_IDLE;
+        }
+        return NONE;
+    }
+
+    /**
+     * Leaves idle on something other than spin, e.g. a time of flight from the disc.
+     *
+     * @return {@link #EXIT_IDLE} if the disc was idle, otherwise {@link #NONE}.
+     */
+    public synchronized int wake(long nowMs) {
+        if (!mIdle) return NONE;
+        mIdle = false;
+        mIdleMillis += nowMs - mIdleSinceMs;
+        mStillSinceMs = -1;
+        return EXIT_IDLE;
+    }
+
+    /** Counts one notification callback; only those while idle are kept. */
+    public synchronized void onWakeup() {
+        if (mIdle) mIdleWakeups++;
+    }
+
+    public synchronized boolean isIdle() {
+        return mIdle;
+    }
+
+    /** @return Notifications per minute over all idle time so far, or 0 if never idle. */
+    public synchronized double getIdleWakeupsPerMinute(long nowMs) {
+        final long idle = mIdleMillis + (mIdle ? nowMs - mIdleSinceMs : 0);
+        return idle <= 0 ? 0 : mIdleWakeups * 60000.0 / idle;
+    }
+
+    public synchronized long getIdlePeriodCount() {
+        return mIdlePeriods;
+    }
+
+    /** Starts over as active, e.g. after a reconnect re-enabled every notification. */
+    public synchronized void reset(long nowMs) {
+        if (mIdle) {
+            mIdleMillis += nowMs - mIdleSinceMs;
+        }
+        mIdle = false;
+        mStillSinceMs = -1;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Discs this phone has connected to before, kept in the app's preferences so a session can go
+ * straight to the last one by address instead of scanning for it.  Also keeps how long getting
+ * connected took, per path, to show whether skipping the scan pays off.
+ */
+public class KnownDiscRegistry {
+    /** Connected by address without scanning. */
+    public static final int PATH_DIRECT = 0;
+    /** Connected after the direct attempt timed out and a scan found the disc. */
+    public static final int PATH_SCAN = 1;
+
+    private static final String PREFS_NAME = "disc_prefs";
+    private static final String PREF_ADDRESSES = "known_discs";
+    private static final String PREF_LAST = "last_disc_address";
+    private static final String PREF_AUTO_CONNECT = "auto_connect";
+    private static final String PREFIX_NAME = "disc_name_";
+    private static final String PREFIX_SEEN = "disc_seen_";
+    private static final String[] PATH_NAMES = { "direct", "scan" };
+
+    private final SharedPreferences mPrefs;
+
+    public KnownDiscRegistry(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Adds or refreshes a disc, making it the last one used. */
+    public void remember(String address, String name) {
+        final Set<String> addresses =
+                new HashSet<String>(mPrefs.getStringSet(PREF_ADDRESSES, new HashSet<String>()));
+        addresses.add(address);
+        final SharedPreferences.Editor editor = mPrefs.edit()
+                .putStringSet(PREF_ADDRESSES, addresses)
+                .putString(PREF_LAST, address)
+                .putLong(PREFIX_SEEN + address, System.currentTimeMillis());
+        if (name != null && name.length() > 0) {
+            editor.putString(PREFIX_NAME + address, name);
+        }
+        editor.apply();
+    }
+
+    public void forget(String address) {
+        final Set<String> addresses =
+                new HashSet<String>(mPrefs.getStringSet(PREF_ADDRESSES, new HashSet<String>()));
+        addresses.remove(address);
+        final SharedPreferences.Editor editor = mPrefs.edit()
+                .putStringSet(PREF_ADDRESSES, addresses)
+                .remove(PREFIX_NAME + address)
+                .remove(PREFIX_SEEN + address);
+        if (address.equals(getLastAddress())) editor.remove(PREF_LAST);
+        editor.apply();
+    }
+
+    /** @return The disc connected to most recently, or null if there is none. */
+    public String getLastAddress() {
+        return mPrefs.getString(PREF_LAST, null);
+    }
+
+    /** @return Name the disc advertised when last connected, or null. */
+    public String getName(String address) {
+        return mPrefs.getString(PREFIX_NAME + address, null);
+    }
+
+    /** @return Every known disc, most recently used first. */
+    public List<String> getAddresses() {
+        final List<String> addresses = new ArrayList<String>(
+                mPrefs.getStringSet(PREF_ADDRESSES, new HashSet<String>()));
+        // Discs remembered only as the last one, before there was a registry.
+        final String last = getLastAddress();
+        if (last != null && !addresses.contains(last)) addresses.add(last);
+        Collections.sort(addresses, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                final long seenA = mPrefs.getLong(PREFIX_SEEN + a, 0);
+                final long seenB = mPrefs.getLong(PREFIX_SEEN + b, 0);
+                return seenA < seenB ? 1 : (seenA > seenB ? -1 : 0);
+            }
+        });
+        return addresses;
+    }
+
+    /** Whether to connect with autoConnect, letting the stack wait for the disc in the background. */
+    public boolean isAutoConnect() {
+        return mPrefs.getBoolean(PREF_AUTO_CONNECT, false);
+    }
+
+    public void setAutoConnect(boolean autoConnect) {
+        mPrefs.edit().putBoolean(PREF_AUTO_CONNECT, autoConnect).apply();
+    }
+
+    /** Records one session's time from opening the app to being connected. */
+    public void recordConnect(int path, long millis) {
+        final String count = "connect_" + PATH_NAMES[path] + "_count";
+        final String total = "connect_" + PATH_NAMES[path] + "_ms";
+        mPrefs.edit()
+                .putLong(count, mPrefs.getLong(count, 0) + 1)
+                .putLong(total, mPrefs.getLong(total, 0) + millis)
+                .apply();
+    }
+
+    public long getConnectCount(int path) {
+        return mPrefs.getLong("connect_" + PATH_NAMES[path] + "_count", 0);
+    }
+
+    /** @return Mean time to connected over every session on {@code path}, or 0 if none. */
+    public long getMeanConnectMillis(int path) {
+        final long count = getConnectCount(path);
+        return count == 0 ? 0 : mPrefs.getLong("connect_" + PATH_NAMES[path] + "_ms", 0) / count;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decides what notification rate to ask the disc for.  The ceiling comes from the flight
+ * phase: fast while the disc is in the air, slow while it sits still.  Below that, the rate
+ * backs off multiplicatively whenever a consumer falls behind and creeps back up additively
+ * once things have been calm for a while, like TCP's congestion window.  A weak link halves the
+ * ceiling, since notifications lost there only cost retransmissions.
+ * <p>
+ * Pure bookkeeping, so it can be driven from a timer and checked off-device.
+ */
+public class RateController {
+    public static final int IDLE_RATE_HZ = 5;
+    public static final int FLIGHT_RATE_HZ = 100;
+    public static final int MIN_FLIGHT_RATE_HZ = 20;
+    public static final int NO_CHANGE = -1;
+
+    /** Backlog fraction of the fullest channel above which we slow down. */
+    static final float CONGESTED_BACKLOG = 0.5f;
+    static final int WEAK_RSSI = -85;
+    static final long RECOVERY_DELAY_MS = 1000;
+    static final long MIN_WRITE_INTERVAL_MS = 500;
+    /** Smallest relative change worth a write. */
+    static final float MIN_CHANGE = 0.1f;
+
+    private boolean mInFlight = false;
+    private int mTarget = IDLE_RATE_HZ;
+    private int mWritten = 0;
+    private long mLastWriteMs = Long.MIN_VALUE / 2;
+    private long mLastDecreaseMs = Long.MIN_VALUE / 2;
+    private long mLastOverflow = 0;
+    private long mWrites = 0;
+    private long mDecreases = 0;
+
+    /**
+     * Feeds one observation of the pipeline.
+     *
+     * @param backlog  Fullest consumer backlog, as a fraction of its capacity.
+     * @param overflow Total samples ever overwritten in consumer channels.
+     * @param rssi     Latest link RSSI in dBm, or 0 if unknown.
+     * @return The rate to write to the disc, or {@link #NO_CHANGE}.
+     */
+    public synchronized int update(long nowMs, boolean inFlight, float backlog, long overflow,
+                                   int rssi) {
+        final boolean phaseChanged = inFlight != mInFlight;
+        mInFlight = inFlight;
+        int ceiling = inFlight ? FLIGHT_RATE_HZ : IDLE_RATE_HZ;
+        if (rssi != 0 && rssi < WEAK_RSSI) {
+            ceiling = Math.max(IDLE_RATE_HZ, ceiling / 2);
+        }
+        final int floor = inFlight ? MIN_FLIGHT_RATE_HZ : IDLE_RATE_HZ;
+
+        final boolean congested = backlog > CONGESTED_BACKLOG || overflow > mLastOverflow;
+        mLastOverflow = overflow;
+        if (phaseChanged) {
+            // Go straight to the new phase's ceiling; waiting to ramp would miss the launch.
+            mTarget = ceiling;
+        } else if (congested) {
+            mTarget = Math.max(floor, mTarget / 2);
+            mLastDecreaseMs = nowMs;
+            mDecreases++;
+        } else if (nowMs - mLastDecreaseMs >= RECOVERY_DELAY_MS) {
+            mTarget += Math.max(1, ceiling / 10);
+        }
+        mTarget = Math.max(floor, Math.min(ceiling, mTarget));
+
+        if (mTarget == mWritten) return NO_CHANGE;
+        if (!phaseChanged) {
+            if (nowMs - mLastWriteMs < MIN_WRITE_INTERVAL_MS) return NO_CHANGE;
+            if (mWritten != 0 && Math.abs(mTarget - mWritten) < mWritten * MIN_CHANGE) {
+                return NO_CHANGE;
+            }
+        }
+        mWritten = mTarget;
+        mLastWriteMs = nowMs;
+        mWrites++;
+        return mTarget;
+    }
+
+    /** Forgets what the disc was told, e.g. after a reconnect. */
+    public synchronized void reset() {
+        mInFlight = false;
+        mTarget = IDLE_RATE_HZ;
+        mWritten = 0;
+        mLastWriteMs = Long.MIN_VALUE / 2;
+        mLastDecreaseMs = Long.MIN_VALUE / 2;
+    }
+
+    /** @return Rate last written to the disc, or 0 if none yet. */
+    public synchronized int getWrittenRate() {
+        return mWritten;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    /** @return Times congestion made us slow down. */
+    public synchronized long getDecreaseCount() {
+        return mDecreases;
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.Random;
+
+/**
+ * Decides when to try getting a dropped disc back, and keeps score of how long it was gone.
+ * The first attempt goes out at once, since most drops are a throw taking the disc briefly out
+ * of range; after that attempts back off exponentially from {@link #BASE_DELAY_MS} up to
+ * {@link #MAX_DELAY_MS}, each delay jittered to between half and all of itself so a phone with
+ * several apps reconnecting doesn't retry in lockstep.
+ * <p>
+ * An outage runs from the link going down to the first notification after it comes back, so
+ * it measures the gap in telemetry rather than in the connection.
+ */
+public class ReconnectSupervisor {
+    /** Android's catch-all GATT_ERROR, usually a client left in a bad state by the stack. */
+    public static final int STATUS_GATT_ERROR = 133;
+
+    static final long BASE_DELAY_MS = 250;
+    static final long MAX_DELAY_MS = 30000;
+
+    private final Random mRandom;
+    private volatile boolean mActive = false;
+    private int mAttempt = 0;
+    private long mLostAtMs = -1;
+    private long mOutages = 0;
+    private long mOutageTotalMs = 0;
+    private long mOutageMaxMs = 0;
+    private long mLastOutageMs = 0;
+
+    public ReconnectSupervisor(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * @return Whether a failure with {@code status} means the client is stale, and has to be
+     * closed and replaced rather than asked to connect again.
+     */
+    public static boolean isStale(int status) {
+        return status == STATUS_GATT_ERROR || status == BluetoothGatt.GATT_FAILURE;
+    }
+
+    /** The link went down without anyone asking; starts an outage if one isn't running. */
+    public synchronized void onLinkLost(long nowMs) {
+        if (!mActive) {
+            mActive = true;
+            mAttempt = 0;
+            mLostAtMs = nowMs;
+        }
+    }
+
+    /** @return How long to wait before the next attempt; counts the attempt. */
+    public synchronized long nextDelayMs() {
+        final int attempt = mAttempt++;
+        if (attempt == 0) return 0;
+        final long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt - 1, 16));
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /** @return Attempts made in the current outage. */
+    public synchronized int getAttempt() {
+        return mAttempt;
+    }
+
+    /** Whether an outage is running; cheap enough to ask on every notification. */
+    public boolean isReconnecting() {
+        return mActive;
+    }
+
+    /**
+     * Telemetry is flowing again, which ends the outage.
+     *
+     * @return The outage's length, or -1 if none was running.
+     */
+    public synchronized long onDataResumed(long nowMs) {
+        if (!mActive) return -1;
+        mActive = false;
+        mLastOutageMs = nowMs - mLostAtMs;
+        mLostAtMs = -1;
+        mOutages++;
+        mOutageTotalMs += mLastOutageMs;
+        if (mLastOutageMs > mOutageMaxMs) mOutageMaxMs = mLastOutageMs;
+        return mLastOutageMs;
+    }
+
+    /** Gives up on the current outage, e.g. because the user disconnected; it isn't counted. */
+    public synchronized void stop() {
+        mActive = false;
+        mLostAtMs = -1;
+    }
+
+    public synchronized long getOutageCount() {
+        return mOutages;
+    }
+
+    public synchronized long getLastOutageMillis() {
+        return mLastOutageMs;
+    }
+
+    /** @return Mean outage length, or 0 if there hasn't been one. */
+    public synchronized long getMeanOutageMillis() {
+        return mOutages == 0 ? 0 : mOutageTotalMs / mOutages;
+    }
+
+    public synchronized long getMaxOutageMillis() {
+        return mOutageMaxMs;
+    }
+}
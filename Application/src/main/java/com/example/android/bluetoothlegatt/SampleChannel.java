@@ -0,0 +1,263 @@
+package com.example.android.bluetoothlegatt;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Bounded hand-off of decoded samples from {@link BluetoothLeService} to one consumer.  The
+ * service offers every sample on its callback thread; the consumer receives them in batches on
+ * its own executor.  How a slow consumer is treated is chosen per channel:
+ * <ul>
+ * <li>{@link #POLICY_LATEST}: only the newest value of each stream is kept.</li>
+ * <li>{@link #POLICY_DECIMATE}: every n-th sample of each stream is kept.</li>
+ * <li>{@link #POLICY_BUFFER}: everything is kept up to a capacity.</li>
+ * </ul>
+ * When the buffer is full the oldest samples are overwritten and counted, so memory and latency
+ * stay bounded whatever the consumer does.  A recorder gets a buffer large enough that the
+ * overflow counter should stay at zero; a graph gets a small one and always sees fresh data.
+ * The consumer's executor must run tasks one at a time, like a Handler does.
+ * <p>
+ * Each stream can also be given a {@link SignalFilter}, run on the consumer's executor over the
+ * values of a batch before the consumer sees them, so one consumer can smooth a stream without
+ * changing what the others receive.
+ */
+public class SampleChannel {
+    public static final int POLICY_LATEST = 0;
+    public static final int POLICY_DECIMATE = 1;
+    public static final int POLICY_BUFFER = 2;
+
+    private static final int STREAM_COUNT = 3;
+
+    public interface Consumer {
+        /**
+         * Called on the channel's executor.  The batch is reused after this returns.
+         */
+        void onSamples(SampleStore.Batch batch);
+    }
+
+    private final String mName;
+    private final int mPolicy;
+    private final int mRatio;
+    private final Consumer mConsumer;
+    private final Executor mExecutor;
+
+    // Ring of pending samples, guarded by this.
+    private final long[] mSequences;
+    private final long[] mTimes;
+    private final int[] mStreams;
+    private final float[] mValues;
+    private int mHead = 0;
+    private int mSize = 0;
+    private final int[] mDecimation = new int[STREAM_COUNT];
+    private boolean mDrainPosted = false;
+
+    private final SampleStore.Batch mBatch;
+    private final SignalFilter[] mFilters = new SignalFilter[STREAM_COUNT];
+    // Scratch for one stream of a batch while it is filtered, used only by drain().
+    private final long[] mFilterTimes;
+    private final float[] mFilterValues;
+    private long mFilterNanos = 0;
+    private long mFiltered = 0;
+    private long mOffered = 0;
+    private long mDelivered = 0;
+    private long mOverflow = 0;
+    private long mSkipped = 0;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /** Keeps only the newest value of each stream. */
+    public static SampleChannel latest(String name, Consumer consumer, Executor executor) {
+        return new SampleChannel(name, POLICY_LATEST, 1, STREAM_COUNT, consumer, executor);
+    }
+
+    /** Keeps one of every {@code ratio} samples of each stream, buffering up to capacity. */
+    public static SampleChannel decimated(String name, int ratio, int capacity, Consumer consumer,
+                                          Executor executor) {
+        return new SampleChannel(name, POLICY_DECIMATE, ratio, capacity, consumer, executor);
+    }
+
+    /** Keeps every sample, buffering up to capacity. */
+    public static SampleChannel bounded(String name, int capacity, Consumer consumer,
+                                        Executor executor) {
+        return new SampleChannel(name, POLICY_BUFFER, 1, capacity, consumer, executor);
+    }
+
+    private SampleChannel(String name, int policy, int ratio, int capacity, Consumer consumer,
+                          Executor executor) {
+        mName = name;
+        mPolicy = policy;
+        mRatio = Math.max(1, ratio);
+        mConsumer = consumer;
+        mExecutor = executor;
+        mSequences = new long[capacity];
+        mTimes = new long[capacity];
+        mStreams = new int[capacity];
+        mValues = new float[capacity];
+        mBatch = new SampleStore.Batch(capacity);
+        mFilterTimes = new long[capacity];
+        mFilterValues = new float[capacity];
+    }
+
+    /**
+     * Sets the filter applied to one stream for this consumer, or null for raw values.  The
+     * filter is only ever run on the consumer's executor.
+     */
+    public synchronized void setFilter(int stream, SignalFilter filter) {
+        mFilters[stream] = filter;
+    }
+
+    /** Called by the producer for every sample; never blocks on the consumer. */
+    public void offer(long sequence, int stream, long timeNanos, float value) {
+        final boolean post;
+        synchronized (this) {
+            mOffered++;
+            if (mPolicy == POLICY_DECIMATE && stream < STREAM_COUNT) {
+                if (mDecimation[stream]++ % mRatio != 0) {
+                    mSkipped++;
+                    return;
+                }
+            }
+            if (mPolicy == POLICY_LATEST) {
+                final int slot = findPendingStream(stream);
+                if (slot >= 0) {
+                    mOverflow++;
+                    // Newest value replaces the pending one in place.
+                    put(slot, sequence, stream, timeNanos, value);
+                    return;
+                }
+            }
+            if (mSize == mTimes.length) {
+                mHead = (mHead + 1) % mTimes.length;
+                mSize--;
+                mOverflow++;
+            }
+            put((mHead + mSize) % mTimes.length, sequence, stream, timeNanos, value);
+            mSize++;
+            post = !mDrainPosted;
+            mDrainPosted = true;
+        }
+        if (post) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    private int findPendingStream(int stream) {
+        for (int k = 0; k < mSize; k++) {
+            final int i = (mHead + k) % mTimes.length;
+            if (mStreams[i] == stream) return i;
+        }
+        return -1;
+    }
+
+    private void put(int i, long sequence, int stream, long timeNanos, float value) {
+        mSequences[i] = sequence;
+        mTimes[i] = timeNanos;
+        mStreams[i] = stream;
+        mValues[i] = value;
+    }
+
+    private void drain() {
+        final SampleStore.Batch b = mBatch;
+        boolean filtered = false;
+        synchronized (this) {
+            mDrainPosted = false;
+            for (int k = 0; k < mSize; k++) {
+                final int i = (mHead + k) % mTimes.length;
+                b.sequences[k] = mSequences[i];
+                b.times[k] = mTimes[i];
+                b.streams[k] = mStreams[i];
+                b.values[k] = mValues[i];
+            }
+            b.count = mSize;
+            b.dropped = mOverflow;
+            mHead = 0;
+            mSize = 0;
+            mDelivered += b.count;
+            for (SignalFilter filter : mFilters) {
+                filtered |= filter != null;
+            }
+        }
+        if (filtered && b.count > 0) {
+            filter(b);
+        }
+        if (b.count > 0) {
+            mConsumer.onSamples(b);
+        }
+    }
+
+    /** Runs each stream's filter over its values in the batch, in place. */
+    private void filter(SampleStore.Batch b) {
+        final long start = System.nanoTime();
+        int filteredCount = 0;
+        for (int stream = 0; stream < STREAM_COUNT; stream++) {
+            final SignalFilter filter;
+            synchronized (this) {
+                filter = mFilters[stream];
+            }
+            if (filter == null) continue;
+            int n = 0;
+            for (int k = 0; k < b.count; k++) {
+                if (b.streams[k] != stream) continue;
+                mFilterTimes[n] = b.times[k];
+                mFilterValues[n] = b.values[k];
+                n++;
+            }
+            if (n == 0) continue;
+            filter.process(mFilterTimes, mFilterValues, mFilterValues, 0, n);
+            int j = 0;
+            for (int k = 0; k < b.count; k++) {
+                if (b.streams[k] == stream) b.values[k] = mFilterValues[j++];
+            }
+            filteredCount += n;
+        }
+        final long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            mFilterNanos += elapsed;
+            mFiltered += filteredCount;
+        }
+    }
+
+    /** @return Mean time spent filtering per filtered sample, gathering included. */
+    public synchronized double getFilterNanosPerSample() {
+        return mFiltered == 0 ? 0 : mFilterNanos / (double) mFiltered;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /** @return Samples overwritten before the consumer got to them. */
+    public synchronized long getOverflowCount() {
+        return mOverflow;
+    }
+
+    /** @return Samples left out on purpose by decimation. */
+    public synchronized long getSkippedCount() {
+        return mSkipped;
+    }
+
+    /** @return Samples waiting for the consumer right now. */
+    public synchronized int getBacklog() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+}
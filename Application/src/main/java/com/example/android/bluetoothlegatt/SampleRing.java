@@ -0,0 +1,56 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Fixed-size ring of float samples shared between the thread that receives data and the
+ * thread that renders it.  Nothing is allocated after construction.
+ */
+public class SampleRing {
+    private final float[] mValues;
+    private long mTotal = 0;
+
+    public SampleRing(int capacity) {
+        mValues = new float[capacity];
+    }
+
+    public synchronized void add(float value) {
+        mValues[(int) (mTotal % mValues.length)] = value;
+        mTotal++;
+    }
+
+    public synchronized void add(float[] values, int offset, int count) {
+        // Anything beyond capacity would be overwritten straight away.
+        final int skip = Math.max(0, count - mValues.length);
+        mTotal += skip;
+        for (int i = offset + skip; i < offset + count; i++) {
+            mValues[(int) (mTotal % mValues.length)] = values[i];
+            mTotal++;
+        }
+    }
+
+    /**
+     * Copies up to {@code max} of the newest samples into {@code dst}, oldest first.
+     *
+     * @return The number of samples copied.
+     */
+    public synchronized int copyLatest(float[] dst, int max) {
+        final int n = (int) Math.min(Math.min(max, dst.length), Math.min(mTotal, mValues.length));
+        long seq = mTotal - n;
+        for (int i = 0; i < n; i++, seq++) {
+            dst[i] = mValues[(int) (seq % mValues.length)];
+        }
+        return n;
+    }
+
+    /** @return Number of samples ever added, including those since overwritten. */
+    public synchronized long getTotal() {
+        return mTotal;
+    }
+
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    public synchronized void clear() {
+        mTotal = 0;
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Bounded store of decoded Disc Statistics samples.  Every sample gets a sequence number so
+ * a consumer that was away can ask for everything after the last one it saw and receive it
+ * in one bulk copy.  Once full, the oldest samples are overwritten.
+ */
+public class SampleStore {
+    public static final int STREAM_ANG_RT = 0;
+    public static final int STREAM_ANG_AVG = 1;
+    public static final int STREAM_TOF = 2;
+
+    /** Sequence number that precedes every stored sample. */
+    public static final long NO_SEQUENCE = -1;
+
+    /** Reusable destination for {@link #copySince(long, Batch)} and {@link SampleChannel}s. */
+    public static class Batch {
+        public final long[] sequences;
+        public final long[] times;
+        public final int[] streams;
+        public final float[] values;
+        public int count;
+        /** Samples the caller asked for that had already been overwritten. */
+        public long dropped;
+
+        public Batch(int capacity) {
+            sequences = new long[capacity];
+            times = new long[capacity];
+            streams = new int[capacity];
+            values = new float[capacity];
+        }
+
+        public long lastSequence() {
+            return count == 0 ? NO_SEQUENCE : sequences[count - 1];
+        }
+    }
+
+    private final long[] mTimes;
+    private final int[] mStreams;
+    private final float[] mValues;
+    private long mNextSequence = 0;
+
+    public SampleStore(int capacity) {
+        mTimes = new long[capacity];
+        mStreams = new int[capacity];
+        mValues = new float[capacity];
+    }
+
+    /**
+     * Stores one sample.
+     *
+     * @param timeNanos When the disc took the sample, mapped onto the
+     *                  {@code SystemClock.elapsedRealtimeNanos} clock by {@link ClockSync}.
+     *
+     * @return The sequence number assigned to the sample.
+     */
+    public synchronized long append(int stream, long timeNanos, float value) {
+        final int i = (int) (mNextSequence % mTimes.length);
+        mTimes[i] = timeNanos;
+        mStreams[i] = stream;
+        mValues[i] = value;
+        return mNextSequence++;
+    }
+
+    /**
+     * Copies the samples after {@code afterSequence} into {@code out}, oldest first, up to the
+     * batch capacity.
+     *
+     * @return The number of samples copied.
+     */
+    public synchronized int copySince(long afterSequence, Batch out) {
+        final int capacity = mTimes.length;
+        final long oldest = Math.max(0, mNextSequence - capacity);
+        long first = Math.max(afterSequence + 1, oldest);
+        out.dropped = first - (afterSequence + 1);
+        // Only the newest samples fit if the batch is smaller than the backlog.
+        if (mNextSequence - first > out.times.length) {
+            out.dropped += mNextSequence - out.times.length - first;
+            first = mNextSequence - out.times.length;
+        }
+        int n = 0;
+        for (long seq = first; seq < mNextSequence; seq++) {
+            final int i = (int) (seq % capacity);
+            out.sequences[n] = seq;
+            out.times[n] = mTimes[i];
+            out.streams[n] = mStreams[i];
+            out.values[n] = mValues[i];
+            n++;
+        }
+        out.count = n;
+        return n;
+    }
+
+    public synchronized long getLastSequence() {
+        return mNextSequence - 1;
+    }
+}
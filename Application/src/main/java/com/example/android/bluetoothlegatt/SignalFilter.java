@@ -0,0 +1,19 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * A filter stage over one stream of samples, run on blocks of primitive arrays.
+ * Implementations keep their state between blocks and never allocate in {@link #process}.
+ * See {@link SignalFilters} for the stock stages.
+ */
+public interface SignalFilter {
+    /**
+     * Filters {@code count} samples starting at {@code offset}.  {@code in} and {@code out} may
+     * be the same array.
+     *
+     * @param times Sample times in nanoseconds, for filters that depend on the sample rate.
+     */
+    void process(long[] times, float[] in, float[] out, int offset, int count);
+
+    /** Forgets all history, e.g. at the start of a new flight. */
+    void reset();
+}
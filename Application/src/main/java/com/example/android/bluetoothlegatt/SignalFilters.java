@@ -0,0 +1,263 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Stock {@link SignalFilter} stages for the angular velocity streams.  All state is
+ * preallocated, so the stages can run on the notification path.
+ */
+public final class SignalFilters {
+    private SignalFilters() {
+    }
+
+    /** Runs stages one after the other, in place. */
+    public static class Chain implements SignalFilter {
+        private final SignalFilter[] mStages;
+
+        public Chain(SignalFilter... stages) {
+            mStages = stages.clone();
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            if (mStages.length == 0) {
+                if (in != out) System.arraycopy(in, offset, out, offset, count);
+                return;
+            }
+            mStages[0].process(times, in, out, offset, count);
+            for (int i = 1; i < mStages.length; i++) {
+                mStages[i].process(times, out, out, offset, count);
+            }
+        }
+
+        @Override
+        public void reset() {
+            for (SignalFilter stage : mStages) {
+                stage.reset();
+            }
+        }
+    }
+
+    /** Mean of the last {@code window} samples. */
+    public static class MovingAverage implements SignalFilter {
+        private final float[] mHistory;
+        private int mNext = 0;
+        private int mSize = 0;
+        private double mSum = 0;
+
+        public MovingAverage(int window) {
+            mHistory = new float[window];
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                final float x = in[i];
+                if (mSize == mHistory.length) {
+                    mSum -= mHistory[mNext];
+                } else {
+                    mSize++;
+                }
+                mHistory[mNext] = x;
+                mNext = (mNext + 1) % mHistory.length;
+                mSum += x;
+                out[i] = (float) (mSum / mSize);
+            }
+        }
+
+        @Override
+        public void reset() {
+            mNext = 0;
+            mSize = 0;
+            mSum = 0;
+        }
+    }
+
+    /** Median of the last {@code window} samples, for short windows. */
+    public static class Median implements SignalFilter {
+        private final float[] mHistory;
+        private final float[] mSorted;
+        private int mNext = 0;
+        private int mSize = 0;
+
+        public Median(int window) {
+            mHistory = new float[window];
+            mSorted = new float[window];
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                final float x = in[i];
+                if (mSize == mHistory.length) {
+                    removeSorted(mHistory[mNext]);
+                } else {
+                    mSize++;
+                }
+                mHistory[mNext] = x;
+                mNext = (mNext + 1) % mHistory.length;
+                insertSorted(x, mSize - 1);
+                out[i] = (mSize & 1) == 1 ? mSorted[mSize / 2]
+                        : (mSorted[mSize / 2 - 1] + mSorted[mSize / 2]) * 0.5f;
+            }
+        }
+
+        /** Inserts into the first {@code n} sorted entries. */
+        private void insertSorted(float x, int n) {
+            int j = n;
+            while (j > 0 && mSorted[j - 1] > x) {
+                mSorted[j] = mSorted[j - 1];
+                j--;
+            }
+            mSorted[j] = x;
+        }
+
+        private void removeSorted(float x) {
+            int j = 0;
+            while (j < mSize - 1 && mSorted[j] != x) j++;
+            for (; j < mSize - 1; j++) {
+                mSorted[j] = mSorted[j + 1];
+            }
+        }
+
+        @Override
+        public void reset() {
+            mNext = 0;
+            mSize = 0;
+        }
+    }
+
+    /** First-order IIR low-pass with a cutoff in Hz, following the actual sample spacing. */
+    public static class LowPass implements SignalFilter {
+        private final double mTau;
+        private float mLast;
+        private long mLastTime;
+        private boolean mPrimed = false;
+
+        public LowPass(double cutoffHz) {
+            mTau = 1.0 / (2 * Math.PI * cutoffHz);
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                if (!mPrimed) {
+                    mPrimed = true;
+                    mLast = in[i];
+                } else {
+                    final double dt = Math.max(1e-6, (times[i] - mLastTime) * 1e-9);
+                    final float alpha = (float) (dt / (mTau + dt));
+                    mLast += alpha * (in[i] - mLast);
+                }
+                mLastTime = times[i];
+                out[i] = mLast;
+            }
+        }
+
+        @Override
+        public void reset() {
+            mPrimed = false;
+        }
+    }
+
+    /**
+     * One Euro filter (Casiez et al.): a low-pass whose cutoff rises with the rate of change, so
+     * it smooths jitter at rest without lagging behind fast spin changes.
+     */
+    public static class OneEuro implements SignalFilter {
+        private final double mMinCutoff;
+        private final double mBeta;
+        private final double mDerivativeCutoff;
+        private double mLast;
+        private double mLastDerivative;
+        private long mLastTime;
+        private boolean mPrimed = false;
+
+        public OneEuro(double minCutoffHz, double beta, double derivativeCutoffHz) {
+            mMinCutoff = minCutoffHz;
+            mBeta = beta;
+            mDerivativeCutoff = derivativeCutoffHz;
+        }
+
+        private static double alpha(double cutoff, double dt) {
+            final double tau = 1.0 / (2 * Math.PI * cutoff);
+            return dt / (tau + dt);
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                final double x = in[i];
+                if (!mPrimed) {
+                    mPrimed = true;
+                    mLast = x;
+                    mLastDerivative = 0;
+                } else {
+                    final double dt = Math.max(1e-6, (times[i] - mLastTime) * 1e-9);
+                    final double dx = (x - mLast) / dt;
+                    mLastDerivative += alpha(mDerivativeCutoff, dt) * (dx - mLastDerivative);
+                    final double cutoff = mMinCutoff + mBeta * Math.abs(mLastDerivative);
+                    mLast += alpha(cutoff, dt) * (x - mLast);
+                }
+                mLastTime = times[i];
+                out[i] = (float) mLast;
+            }
+        }
+
+        @Override
+        public void reset() {
+            mPrimed = false;
+        }
+    }
+
+    /**
+     * Drops samples that jump more than {@code maxJump} away from both neighbours and replaces
+     * them with the midpoint of those neighbours.  Deciding needs the next sample, so output is
+     * one sample behind input; the first output repeats the first input.
+     */
+    public static class OutlierReject implements SignalFilter {
+        private final float mMaxJump;
+        private float mPrevious;
+        private float mPending;
+        private int mPrimed = 0;
+        private long mRejected = 0;
+
+        public OutlierReject(float maxJump) {
+            mMaxJump = maxJump;
+        }
+
+        @Override
+        public void process(long[] times, float[] in, float[] out, int offset, int count) {
+            for (int i = offset; i < offset + count; i++) {
+                final float x = in[i];
+                if (mPrimed == 0) {
+                    mPrimed = 1;
+                    mPrevious = x;
+                    mPending = x;
+                    out[i] = x;
+                    continue;
+                }
+                float decided = mPending;
+                if (mPrimed == 2
+                        && Math.abs(mPending - mPrevious) > mMaxJump
+                        && Math.abs(mPending - x) > mMaxJump
+                        && Math.abs(x - mPrevious) <= mMaxJump) {
+                    decided = (mPrevious + x) * 0.5f;
+                    mRejected++;
+                }
+                mPrimed = 2;
+                mPrevious = decided;
+                mPending = x;
+                out[i] = decided;
+            }
+        }
+
+        /** @return Number of samples replaced so far. */
+        public long getRejectedCount() {
+            return mRejected;
+        }
+
+        @Override
+        public void reset() {
+            mPrimed = 0;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Joins the real-time, average and time of flight streams by device time into columnar
+ * frames, so a consumer gets one update with every stream lined up instead of three
+ * interleaved kinds of sample.
+ * <p>
+ * Each real-time sample is a row; its average column is the newest average at or before the
+ * row's device time.  A row waits until an average at least as new has arrived, so a late
+ * average notification still lands on the right rows, but never longer than
+ * {@link #MAX_SKEW_NANOS} behind the newest real-time sample, so a stalled average stream
+ * doesn't hold up the spin curve.  A time of flight is an event, not a column; it goes out
+ * with the frame it arrived in, and since it ends the flight, that frame also takes every row
+ * still waiting.
+ * <p>
+ * Otherwise the skew is measured against the newest real-time sample, not the clock, so if the
+ * real-time stream pauses, its last {@link #MAX_SKEW_NANOS} of rows stay held until it resumes,
+ * an average as new as them arrives, or a time of flight does.
+ * <p>
+ * Not thread-safe; feed it from one thread.  Nothing is allocated after construction.
+ */
+public class TelemetryFrameAligner {
+    /** Longest a row waits for the average stream to catch up. */
+    public static final long MAX_SKEW_NANOS = 100000000L;
+
+    /** One tick's worth of aligned rows.  Reused; valid only during {@link Listener#onFrame}. */
+    public static class Frame {
+        public final long[] times;
+        public final float[] rt;
+        /** Average held at each row's time; 0 until the first average arrives. */
+        public final float[] avg;
+        public int count;
+        /** Time of flight that arrived with this frame, or NaN. */
+        public float tof = Float.NaN;
+        public long tofTime;
+
+        Frame(int capacity) {
+            times = new long[capacity];
+            rt = new float[capacity];
+            avg = new float[capacity];
+        }
+    }
+
+    public interface Listener {
+        void onFrame(Frame frame);
+    }
+
+    private final Frame mFrame;
+
+    // Real-time rows not yet emitted, oldest at mRowHead.
+    private final long[] mRowTimes;
+    private final float[] mRowValues;
+    private int mRowHead = 0;
+    private int mRowCount = 0;
+    private long mNewestRt = Long.MIN_VALUE;
+
+    // Averages not yet joined, oldest at mAvgHead, and the one currently held.
+    private final long[] mAvgTimes;
+    private final float[] mAvgValues;
+    private int mAvgHead = 0;
+    private int mAvgCount = 0;
+    private long mNewestAvg = Long.MIN_VALUE;
+    private float mHeldAvg = 0;
+
+    private float mTof = Float.NaN;
+    private long mTofTime;
+
+    private long mRowsDropped = 0;
+
+    /** @param capacity Rows held back at most, and rows per frame. */
+    public TelemetryFrameAligner(int capacity) {
+        mFrame = new Frame(capacity);
+        mRowTimes = new long[capacity];
+        mRowValues = new float[capacity];
+        mAvgTimes = new long[capacity];
+        mAvgValues = new float[capacity];
+    }
+
+    /** Takes one decoded sample; nothing goes out until {@link #flush}. */
+    public void add(int stream, long timeNanos, float value) {
+        if (stream == SampleStore.STREAM_ANG_RT) {
+            if (mRowCount == mRowTimes.length) {
+                // Held back for longer than there is room for; only after a long stall.
+                mRowHead = (mRowHead + 1) % mRowTimes.length;
+                mRowCount--;
+                mRowsDropped++;
+            }
+            final int at = (mRowHead + mRowCount) % mRowTimes.length;
+            mRowTimes[at] = timeNanos;
+            mRowValues[at] = value;
+            mRowCount++;
+            if (timeNanos > mNewestRt) mNewestRt = timeNanos;
+        } else if (stream == SampleStore.STREAM_ANG_AVG) {
+            if (mAvgCount == mAvgTimes.length) {
+                // Older than any row still waiting could need.
+                mHeldAvg = mAvgValues[mAvgHead];
+                mAvgHead = (mAvgHead + 1) % mAvgTimes.length;
+                mAvgCount--;
+            }
+            final int at = (mAvgHead + mAvgCount) % mAvgTimes.length;
+            mAvgTimes[at] = timeNanos;
+            mAvgValues[at] = value;
+            mAvgCount++;
+            if (timeNanos > mNewestAvg) mNewestAvg = timeNanos;
+        } else if (stream == SampleStore.STREAM_TOF) {
+            mTof = value;
+            mTofTime = timeNanos;
+        }
+    }
+
+    /**
+     * Hands every row that is ready to {@code listener}, in as few frames as fit, then a
+     * frame for a pending time of flight if no row frame carried it.
+     */
+    public void flush(Listener listener) {
+        final long watermark;
+        if (!Float.isNaN(mTof)) {
+            // The flight is over; nothing newer is coming for its tail to wait on.
+            watermark = Long.MAX_VALUE;
+        } else if (mNewestRt == Long.MIN_VALUE) {
+            watermark = Long.MIN_VALUE;
+        } else {
+            watermark = Math.max(Math.min(mNewestRt, mNewestAvg), mNewestRt - MAX_SKEW_NANOS);
+        }
+        final Frame f = mFrame;
+        f.count = 0;
+        while (mRowCount > 0 && mRowTimes[mRowHead] <= watermark) {
+            final long t = mRowTimes[mRowHead];
+            while (mAvgCount > 0 && mAvgTimes[mAvgHead] <= t) {
+                mHeldAvg = mAvgValues[mAvgHead];
+                mAvgHead = (mAvgHead + 1) % mAvgTimes.length;
+                mAvgCount--;
+            }
+            f.times[f.count] = t;
+            f.rt[f.count] = mRowValues[mRowHead];
+            f.avg[f.count] = mHeldAvg;
+            f.count++;
+            mRowHead = (mRowHead + 1) % mRowTimes.length;
+            mRowCount--;
+            if (f.count == f.times.length) emit(listener);
+        }
+        if (f.count > 0 || !Float.isNaN(mTof)) emit(listener);
+    }
+
+    private void emit(Listener listener) {
+        final Frame f = mFrame;
+        f.tof = mTof;
+        f.tofTime = mTofTime;
+        mTof = Float.NaN;
+        listener.onFrame(f);
+        f.count = 0;
+    }
+
+    /** Forgets everything pending, e.g. when a replay jumps to another point. */
+    public void reset() {
+        mRowHead = mRowCount = 0;
+        mAvgHead = mAvgCount = 0;
+        mNewestRt = mNewestAvg = Long.MIN_VALUE;
+        mHeldAvg = 0;
+        mTof = Float.NaN;
+    }
+
+    /** @return Rows waiting for the average stream. */
+    public int getPendingRows() {
+        return mRowCount;
+    }
+
+    /** @return Rows lost because more were waiting than there was room for. */
+    public long getRowsDropped() {
+        return mRowsDropped;
+    }
+}
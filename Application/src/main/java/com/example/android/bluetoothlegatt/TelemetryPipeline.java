@@ -0,0 +1,190 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * What becomes of a Disc Statistics notification: decoded, stamped with the disc's own clock
+ * mapped onto the local one by {@link ClockSync}, segmented into flights, stored, offered to
+ * every registered {@link SampleChannel} and the shared {@link TelemetryRing}, and run past the
+ * telemetry rules.  The parts that need Android, the idle link settings, ring wake-ups and the
+ * time of flight broadcast, are left to a {@link Listener}.
+ * <p>
+ * Times are {@code SystemClock.elapsedRealtimeNanos} on the device.  Notifications are handled
+ * on one thread at a time; channels, the ring and the rules may be swapped from any thread.
+ */
+public class TelemetryPipeline {
+    public static final float FLIGHT_SPIN_THRESHOLD = TelemetryRules.FLIGHT_SPIN_THRESHOLD;
+    /** The disc counts time of flight in steps of this many seconds. */
+    public static final float TOF_RESOLUTION = 0.5f;
+
+    public interface Listener {
+        /** @param transition From {@link IdleScheduler}, never {@link IdleScheduler#NONE}. */
+        void onIdleTransition(int transition);
+
+        /** Samples went into the ring; called for every one, so keep it cheap. */
+        void onRingWritten();
+
+        /** A flight ended with a time of flight of {@code data} in the disc's own units. */
+        void onTimeOfFlight(long sequence, int data);
+    }
+
+    /** Rules and what acts on them, swapped as one. */
+    private static final class Rules {
+        final TelemetryRules rules;
+        final TelemetryRules.Listener listener;
+
+        Rules(TelemetryRules rules, TelemetryRules.Listener listener) {
+            this.rules = rules;
+            this.listener = listener;
+        }
+    }
+
+    private final SampleStore mStore;
+    private final IdleScheduler mIdleScheduler;
+    private final TraceJournal mTrace;
+    private final Listener mListener;
+    private final ClockSync mClockSync = new ClockSync();
+    // Launch and landing of the flight in progress, from the stamped spin samples.
+    private volatile long mLaunchNanos = 0;
+    private long mLandingNanos = 0;
+    // Copied on write so the notification path can walk them without locking or allocating.
+    private volatile SampleChannel[] mChannels = new SampleChannel[0];
+    private volatile TelemetryRing mRing;
+    private volatile Rules mRules;
+
+    public TelemetryPipeline(SampleStore store, IdleScheduler idleScheduler, TraceJournal trace,
+                             Listener listener) {
+        mStore = store;
+        mIdleScheduler = idleScheduler;
+        mTrace = trace;
+        mListener = listener;
+    }
+
+    /** Handles a real-time angular velocity notification that arrived at {@code arrivalNanos}. */
+    public void onAngRt(byte[] value, long arrivalNanos) {
+        final int data = DiscGattAttributes.decodeDiscAngRt(value);
+        mTrace.record(TraceJournal.EVENT_NOTIFICATION, SampleStore.STREAM_ANG_RT, data);
+        final long t = deviceTime(DiscGattAttributes.decodeDiscAngRtTimestamp(value), arrivalNanos);
+        if (Math.abs(data) >= FLIGHT_SPIN_THRESHOLD) {
+            if (mLaunchNanos == 0) mLaunchNanos = t;
+            mLandingNanos = t;
+        }
+        idleTransition(mIdleScheduler.onSpin(arrivalNanos / 1000000, data));
+        deliver(SampleStore.STREAM_ANG_RT, t, data, arrivalNanos);
+    }
+
+    public void onAngAvg(byte[] value, long arrivalNanos) {
+        final int data = DiscGattAttributes.decodeDiscAngAvg(value);
+        mTrace.record(TraceJournal.EVENT_NOTIFICATION, SampleStore.STREAM_ANG_AVG, data);
+        final long t = deviceTime(DiscGattAttributes.decodeDiscAngAvgTimestamp(value),
+                arrivalNanos);
+        deliver(SampleStore.STREAM_ANG_AVG, t, data, arrivalNanos);
+    }
+
+    /**
+     * Handles the time of flight that ends a flight.  It is refined from the stamped launch and
+     * landing, and stamped with the landing, where those agree with the disc's own figure.
+     */
+    public void onTof(byte[] value, long arrivalNanos) {
+        final int data = DiscGattAttributes.decodeDiscTof(value);
+        mTrace.record(TraceJournal.EVENT_NOTIFICATION, SampleStore.STREAM_TOF, data);
+        float tof = DiscGattAttributes.decodeDiscTofScaled(value);
+        idleTransition(mIdleScheduler.wake(arrivalNanos / 1000000));
+        long t = arrivalNanos;
+        if (mLandingNanos > mLaunchNanos && mLaunchNanos != 0) {
+            final float measured = (mLandingNanos - mLaunchNanos) * 1e-9f;
+            // Only trust our own segmentation where it agrees with the disc's.
+            if (Math.abs(measured - tof) <= TOF_RESOLUTION) {
+                tof = measured;
+                t = mLandingNanos;
+            }
+        }
+        mLaunchNanos = 0;
+        mLandingNanos = 0;
+        final long seq = deliver(SampleStore.STREAM_TOF, t, tof, arrivalNanos);
+        mListener.onTimeOfFlight(seq, data);
+    }
+
+    /** Forgets the disc's clock, which may have been reset while the link was down. */
+    public void resetClock() {
+        mClockSync.reset();
+    }
+
+    /** @return Whether the disc has been seen spinning since the last time of flight. */
+    public boolean isInFlight() {
+        return mLaunchNanos != 0;
+    }
+
+    /**
+     * Starts delivering every decoded sample to {@code channel}, subject to the channel's
+     * backpressure policy.
+     */
+    public synchronized void registerChannel(SampleChannel channel) {
+        final SampleChannel[] old = mChannels;
+        for (SampleChannel c : old) {
+            if (c == channel) return;
+        }
+        final SampleChannel[] channels = new SampleChannel[old.length + 1];
+        System.arraycopy(old, 0, channels, 0, old.length);
+        channels[old.length] = channel;
+        mChannels = channels;
+    }
+
+    /** @return False if {@code channel} was not registered. */
+    public synchronized boolean unregisterChannel(SampleChannel channel) {
+        final SampleChannel[] old = mChannels;
+        int n = 0;
+        final SampleChannel[] channels = new SampleChannel[old.length];
+        for (SampleChannel c : old) {
+            if (c != channel) channels[n++] = c;
+        }
+        if (n == old.length) return false;
+        final SampleChannel[] trimmed = new SampleChannel[n];
+        System.arraycopy(channels, 0, trimmed, 0, n);
+        mChannels = trimmed;
+        return true;
+    }
+
+    /** @return The registered channels; don't modify. */
+    public SampleChannel[] getChannels() {
+        return mChannels;
+    }
+
+    /** @param ring Where every sample is also written, or null for nowhere. */
+    public void setRing(TelemetryRing ring) {
+        mRing = ring;
+    }
+
+    /**
+     * @param rules    Evaluated against every sample, or null for none.
+     * @param listener Told when one of {@code rules} fires, with the notification's arrival
+     *                 time as the trigger time.
+     */
+    public void setRules(TelemetryRules rules, TelemetryRules.Listener listener) {
+        mRules = rules != null ? new Rules(rules, listener) : null;
+    }
+
+    /** Maps a disc timestamp onto the local clock, learning from its arrival time. */
+    private long deviceTime(long deviceMs, long arrivalNanos) {
+        mClockSync.add(deviceMs, arrivalNanos);
+        return mClockSync.toLocalNanos(deviceMs);
+    }
+
+    private void idleTransition(int transition) {
+        if (transition != IdleScheduler.NONE) mListener.onIdleTransition(transition);
+    }
+
+    private long deliver(int stream, long timeNanos, float value, long arrivalNanos) {
+        final long seq = mStore.append(stream, timeNanos, value);
+        final SampleChannel[] channels = mChannels;
+        for (int i = 0; i < channels.length; i++) {
+            channels[i].offer(seq, stream, timeNanos, value);
+        }
+        final TelemetryRing ring = mRing;
+        if (ring != null) {
+            ring.write(stream, timeNanos, value);
+            mListener.onRingWritten();
+        }
+        final Rules rules = mRules;
+        if (rules != null) rules.rules.onSample(stream, value, arrivalNanos, rules.listener);
+        return seq;
+    }
+}
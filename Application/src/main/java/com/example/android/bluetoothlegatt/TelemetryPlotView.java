@@ -0,0 +1,224 @@
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.SurfaceTexture;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.TextureView;
+
+/**
+ * Real-time plot of the angular velocity traces.  Frames are drawn on a dedicated render
+ * thread straight from {@link SampleRing}s, with all drawing buffers allocated up front, so
+ * high sample rates neither block the UI thread nor churn the garbage collector.
+ */
+public class TelemetryPlotView extends TextureView implements TextureView.SurfaceTextureListener {
+    private static final long FRAME_NANOS = 16666667L;
+    private static final int DEFAULT_WINDOW = 400;
+    private static final int GRID_DIVISIONS = 4;
+
+    private final Object mLock = new Object();
+    private final Paint mRtPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mAvgPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mGridPaint = new Paint();
+
+    // Guarded by mLock.
+    private SampleRing mRt;
+    private SampleRing mAvg;
+    private int mWindow;
+    private float[] mScratch;
+    private float[] mLines;
+    private final float[] mGrid = new float[(GRID_DIVISIONS + 1) * 4];
+    private float mMinY = -2000;
+    private float mMaxY = 2000;
+    private int mWidth;
+    private int mHeight;
+    private boolean mDirty;
+
+    private RenderThread mRenderThread;
+
+    public TelemetryPlotView(Context context) {
+        super(context);
+        init();
+    }
+
+    public TelemetryPlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        mRtPaint.setColor(Color.RED);
+        mRtPaint.setStrokeWidth(3);
+        mAvgPaint.setColor(Color.GREEN);
+        mAvgPaint.setStrokeWidth(3);
+        mGridPaint.setColor(Color.LTGRAY);
+        setWindow(DEFAULT_WINDOW);
+        setOpaque(true);
+        setSurfaceTextureListener(this);
+    }
+
+    /** Sets the rings the real-time (red) and average (green) traces are drawn from. */
+    public void setSources(SampleRing rt, SampleRing avg) {
+        synchronized (mLock) {
+            mRt = rt;
+            mAvg = avg;
+        }
+        requestRender();
+    }
+
+    /** Sets how many of the newest samples span the width of the plot. */
+    public void setWindow(int samples) {
+        synchronized (mLock) {
+            mWindow = samples;
+            mScratch = new float[samples];
+            mLines = new float[samples * 4];
+        }
+        requestRender();
+    }
+
+    public void setYRange(float min, float max) {
+        synchronized (mLock) {
+            mMinY = min;
+            mMaxY = max;
+            layoutGrid();
+        }
+        requestRender();
+    }
+
+    /** Asks for a new frame; cheap enough to call for every sample. */
+    public void requestRender() {
+        synchronized (mLock) {
+            mDirty = true;
+            mLock.notify();
+        }
+    }
+
+    @Override
+    public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+        synchronized (mLock) {
+            mWidth = width;
+            mHeight = height;
+            layoutGrid();
+            mDirty = true;
+        }
+        mRenderThread = new RenderThread();
+        mRenderThread.start();
+    }
+
+    @Override
+    public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+        synchronized (mLock) {
+            mWidth = width;
+            mHeight = height;
+            layoutGrid();
+        }
+        requestRender();
+    }
+
+    @Override
+    public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+        if (mRenderThread != null) {
+            mRenderThread.quit();
+            mRenderThread = null;
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+    }
+
+    private void layoutGrid() {
+        int k = 0;
+        for (int i = 0; i <= GRID_DIVISIONS; i++) {
+            float y = mHeight * i / (float) GRID_DIVISIONS;
+            mGrid[k++] = 0;
+            mGrid[k++] = y;
+            mGrid[k++] = mWidth;
+            mGrid[k++] = y;
+        }
+    }
+
+    private void drawFrame(Canvas canvas) {
+        canvas.drawColor(Color.WHITE);
+        canvas.drawLines(mGrid, 0, mGrid.length, mGridPaint);
+        drawTrace(canvas, mAvg, mAvgPaint);
+        drawTrace(canvas, mRt, mRtPaint);
+    }
+
+    private void drawTrace(Canvas canvas, SampleRing ring, Paint paint) {
+        if (ring == null) return;
+        final int n = ring.copyLatest(mScratch, mWindow);
+        if (n < 2) return;
+        final float dx = mWidth / (float) (mWindow - 1);
+        final float scale = mHeight / (mMaxY - mMinY);
+        // Newest sample sits on the right edge.
+        float x = (mWindow - n) * dx;
+        float y = mHeight - (mScratch[0] - mMinY) * scale;
+        int k = 0;
+        for (int i = 1; i < n; i++) {
+            mLines[k++] = x;
+            mLines[k++] = y;
+            x += dx;
+            y = mHeight - (mScratch[i] - mMinY) * scale;
+            mLines[k++] = x;
+            mLines[k++] = y;
+        }
+        canvas.drawLines(mLines, 0, k, paint);
+    }
+
+    private class RenderThread extends Thread {
+        private volatile boolean mRunning = true;
+
+        RenderThread() {
+            super("TelemetryPlot");
+        }
+
+        void quit() {
+            mRunning = false;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            long nextFrame = System.nanoTime();
+            while (mRunning) {
+                try {
+                    synchronized (mLock) {
+                        while (!mDirty && mRunning) {
+                            mLock.wait();
+                        }
+                    }
+                    // Collapse everything that arrives within one frame into a single draw.
+                    long wait = nextFrame - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                nextFrame = System.nanoTime() + FRAME_NANOS;
+
+                final Canvas canvas = lockCanvas();
+                if (canvas == null) continue;
+                try {
+                    synchronized (mLock) {
+                        mDirty = false;
+                        drawFrame(canvas);
+                    }
+                } finally {
+                    unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.bluetoothlegatt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Ring of decoded samples in a buffer shared with other processes, written by the service and
+ * read by any number of clients without a Binder call per sample.
+ * <p>
+ * Layout, native byte order:
+ * <pre>
+ * header  [magic u32 "DTRG"][version u32][capacity u32][record size u32][write sequence u64]...
+ * record  [stamp u64][time ns u64][stream u32][value f32]
+ * </pre>
+ * Records start at {@link #HEADER_SIZE}; sample {@code n} lives at slot {@code n % capacity}
+ * and is complete when its stamp reads {@code n + 1}.  The writer clears the stamp before
+ * filling a slot, so a reader that finds the stamp changed after copying the fields knows the
+ * slot was overwritten under it.  The write sequence is the number of samples ever written.
+ * <p>
+ * Clients copy {@link Reader}; it needs nothing but the mapped buffer.
+ */
+public class TelemetryRing {
+    public static final int MAGIC = 0x44545247;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 24;
+
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_SEQUENCE = 16;
+
+    /** @return Bytes needed for a ring of {@code capacity} samples. */
+    public static int sizeFor(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mSequence = 0;
+    // Volatile writes are full store barriers on ART, which is what orders the stamp after
+    // the fields; ByteBuffer puts alone promise nothing to another process.
+    private volatile long mFence;
+
+    /** Formats {@code buffer}, which must be at least {@link #sizeFor} bytes, as a new ring. */
+    public TelemetryRing(ByteBuffer buffer) {
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+        mCapacity = (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+        for (int i = 0; i < mCapacity; i++) {
+            mBuffer.putLong(HEADER_SIZE + i * RECORD_SIZE, 0);
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, mCapacity);
+        mBuffer.putInt(12, RECORD_SIZE);
+        mBuffer.putLong(OFFSET_SEQUENCE, 0);
+    }
+
+    /** Appends one sample. */
+    public synchronized void write(int stream, long timeNanos, float value) {
+        final int at = HEADER_SIZE + (int) (mSequence % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(at, 0);
+        mFence = mSequence;
+        mBuffer.putLong(at + 8, timeNanos);
+        mBuffer.putInt(at + 16, stream);
+        mBuffer.putFloat(at + 20, value);
+        mFence = mSequence;
+        mBuffer.putLong(at, ++mSequence);
+        mBuffer.putLong(OFFSET_SEQUENCE, mSequence);
+    }
+
+    /** @return Samples written so far. */
+    public synchronized long getWriteSequence() {
+        return mSequence;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** One consumer's cursor into a ring, possibly mapped in another process. */
+    public static class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mNext;
+        private long mDropped = 0;
+        // Read, never written: a volatile read keeps later loads from moving ahead of it.
+        private volatile long mFence;
+
+        /** Starts at the newest sample; older ones are not delivered. */
+        public Reader(ByteBuffer buffer) {
+            mBuffer = buffer.order(ByteOrder.nativeOrder());
+            if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("Not a telemetry ring");
+            }
+            mCapacity = mBuffer.getInt(OFFSET_CAPACITY);
+            mNext = mBuffer.getLong(OFFSET_SEQUENCE);
+        }
+
+        /**
+         * Copies out up to {@code max} samples not yet read.  Samples overwritten before they
+         * could be read are skipped and counted.
+         *
+         * @return Samples copied.
+         */
+        public int read(int[] streams, long[] times, float[] values, int max) {
+            final long written = mBuffer.getLong(OFFSET_SEQUENCE);
+            long fence = mFence;
+            if (written - mNext > mCapacity) {
+                mDropped += written - mCapacity - mNext;
+                mNext = written - mCapacity;
+            }
+            int n = 0;
+            while (n < max && mNext < written) {
+                final int at = HEADER_SIZE + (int) (mNext % mCapacity) * RECORD_SIZE;
+                final long stamp = mBuffer.getLong(at);
+                fence += mFence;
+                streams[n] = mBuffer.getInt(at + 16);
+                times[n] = mBuffer.getLong(at + 8);
+                values[n] = mBuffer.getFloat(at + 20);
+                fence += mFence;
+                if (stamp == mNext + 1 && mBuffer.getLong(at) == stamp) {
+                    n++;
+                } else {
+                    // Lapped by the writer while copying.
+                    mDropped++;
+                }
+                mNext++;
+            }
+            return n;
+        }
+
+        /** @return Samples that were overwritten before this reader got to them. */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+    }
+}
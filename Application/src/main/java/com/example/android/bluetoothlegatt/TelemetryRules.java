@@ -0,0 +1,238 @@
+package com.example.android.bluetoothlegatt;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Rules that give feedback on the disc itself when the telemetry says so.  One rule per line,
+ * {@code #} starts a comment:
+ * <pre>
+ * spin &lt; 50% -&gt; led_blink_rate 4
+ * tof &gt; 3 -&gt; speaker_pitch 80
+ * </pre>
+ * The metric is {@code spin} (real-time angular velocity, either direction), {@code avg} or
+ * {@code tof}; the comparison one of {@code < <= > >=}; the threshold a number, or with
+ * {@code %} a percentage of the metric's peak in the current flight.  The action writes one
+ * byte to an LED or speaker control.
+ * <p>
+ * Rules are compiled once into flat arrays and evaluated on every sample without allocating.
+ * A spin or average rule fires when its condition becomes true, not for as long as it stays
+ * true; a time of flight rule fires on every time of flight that satisfies it.  Peaks and rule
+ * states start over with each flight.  A flight begins once spin reaches
+ * {@link #FLIGHT_SPIN_THRESHOLD}; until then no peak is tracked and percentage rules are not
+ * evaluated, so the noise of a disc sitting still can't fire them.
+ */
+public class TelemetryRules {
+    /** Notification-to-write latency we aim for, one connection interval at balanced priority. */
+    public static final long LATENCY_BUDGET_NANOS = 30000000L;
+    /** Spin, in either direction, from which the disc counts as thrown. */
+    public static final float FLIGHT_SPIN_THRESHOLD = 200;
+
+    private static final String[] METRICS = { "spin", "avg", "tof" };
+    private static final int[] METRIC_STREAMS = {
+            SampleStore.STREAM_ANG_RT, SampleStore.STREAM_ANG_AVG, SampleStore.STREAM_TOF };
+    private static final String[] TARGETS = {
+            "led_on_off", "led_blink_rate", "led_duration",
+            "speaker_on_off", "speaker_pitch", "speaker_volume" };
+    private static final UUID[] TARGET_SERVICES = {
+            DiscGattAttributes.LED_CONTROL_UUID, DiscGattAttributes.LED_CONTROL_UUID,
+            DiscGattAttributes.LED_CONTROL_UUID, DiscGattAttributes.SPEAKER_CONTROL_UUID,
+            DiscGattAttributes.SPEAKER_CONTROL_UUID, DiscGattAttributes.SPEAKER_CONTROL_UUID };
+    private static final UUID[] TARGET_CHARACTERISTICS = {
+            DiscGattAttributes.LED_ON_OFF_UUID, DiscGattAttributes.LED_BLINK_RATE_UUID,
+            DiscGattAttributes.LED_DURATION_UUID, DiscGattAttributes.SPEAKER_ON_OFF_UUID,
+            DiscGattAttributes.SPEAKER_PITCH_UUID, DiscGattAttributes.SPEAKER_VOLUME_UUID };
+
+    public interface Listener {
+        /**
+         * Called on the evaluating thread when rule {@code rule} fires; must not block.
+         *
+         * @param triggerNanos Arrival time of the notification that made it fire.
+         */
+        void onRuleFired(int rule, long triggerNanos);
+    }
+
+    // One entry per rule.
+    private final int[] mStream;
+    private final boolean[] mBelow;
+    private final boolean[] mInclusive;
+    private final float[] mThreshold;
+    private final boolean[] mOfPeak;
+    private final int[] mTarget;
+    private final byte[][] mValue;
+    private final boolean[] mHolding;
+
+    private final float[] mPeak = new float[METRICS.length];
+    private boolean mInFlight = false;
+
+    private long mFired = 0;
+    private long mLatencyCount = 0;
+    private long mLatencyTotalNanos = 0;
+    private long mLatencyMaxNanos = 0;
+    private long mOverBudget = 0;
+
+    private TelemetryRules(int count) {
+        mStream = new int[count];
+        mBelow = new boolean[count];
+        mInclusive = new boolean[count];
+        mThreshold = new float[count];
+        mOfPeak = new boolean[count];
+        mTarget = new int[count];
+        mValue = new byte[count][];
+        mHolding = new boolean[count];
+    }
+
+    /** Compiles rule source; see the class comment for the syntax. */
+    public static TelemetryRules compile(String source) throws ParseException {
+        final List<String[]> parsed = new ArrayList<String[]>();
+        final List<Integer> offsets = new ArrayList<Integer>();
+        int offset = 0;
+        for (String line : source.split("\n", -1)) {
+            final int hash = line.indexOf('#');
+            final String text = (hash >= 0 ? line.substring(0, hash) : line).trim();
+            if (!text.isEmpty()) {
+                parsed.add(text.toLowerCase(Locale.US).split("\\s+"));
+                offsets.add(offset);
+            }
+            offset += line.length() + 1;
+        }
+        final TelemetryRules rules = new TelemetryRules(parsed.size());
+        for (int i = 0; i < parsed.size(); i++) {
+            rules.compileRule(i, parsed.get(i), offsets.get(i));
+        }
+        return rules;
+    }
+
+    private void compileRule(int i, String[] tokens, int offset) throws ParseException {
+        // metric op threshold -> target value
+        if (tokens.length != 6 || !"->".equals(tokens[3])) {
+            throw new ParseException("Expected <metric> <op> <threshold> -> <target> <value>",
+                    offset);
+        }
+        final int metric = indexOf(METRICS, tokens[0]);
+        if (metric < 0) throw new ParseException("Unknown metric " + tokens[0], offset);
+        mStream[i] = METRIC_STREAMS[metric];
+
+        final String op = tokens[1];
+        if (!op.equals("<") && !op.equals("<=") && !op.equals(">") && !op.equals(">=")) {
+            throw new ParseException("Unknown comparison " + op, offset);
+        }
+        mBelow[i] = op.charAt(0) == '<';
+        mInclusive[i] = op.length() == 2;
+
+        String threshold = tokens[2];
+        mOfPeak[i] = threshold.endsWith("%");
+        if (mOfPeak[i]) threshold = threshold.substring(0, threshold.length() - 1);
+        try {
+            mThreshold[i] = Float.parseFloat(threshold);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad threshold " + tokens[2], offset);
+        }
+        if (mOfPeak[i]) mThreshold[i] /= 100;
+
+        mTarget[i] = indexOf(TARGETS, tokens[4]);
+        if (mTarget[i] < 0) throw new ParseException("Unknown target " + tokens[4], offset);
+        final int value;
+        try {
+            value = Integer.parseInt(tokens[5]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad value " + tokens[5], offset);
+        }
+        if (value < 0 || value > 255) {
+            throw new ParseException("Value out of range " + tokens[5], offset);
+        }
+        mValue[i] = new byte[] { (byte) value };
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return mStream.length;
+    }
+
+    public UUID getService(int rule) {
+        return TARGET_SERVICES[mTarget[rule]];
+    }
+
+    public UUID getCharacteristic(int rule) {
+        return TARGET_CHARACTERISTICS[mTarget[rule]];
+    }
+
+    /** @return The byte rule {@code rule} writes; shared, not to be modified. */
+    public byte[] getValue(int rule) {
+        return mValue[rule];
+    }
+
+    /** Evaluates every rule on one decoded sample. */
+    public void onSample(int stream, float value, long arrivalNanos, Listener listener) {
+        final int metric = metricOf(stream);
+        if (metric < 0) return;
+        final float magnitude = Math.abs(value);
+        if (stream == SampleStore.STREAM_ANG_RT && magnitude >= FLIGHT_SPIN_THRESHOLD) {
+            mInFlight = true;
+        }
+        if (mInFlight && magnitude > mPeak[metric]) mPeak[metric] = magnitude;
+        for (int i = 0; i < mStream.length; i++) {
+            if (mStream[i] != stream) continue;
+            float threshold = mThreshold[i];
+            if (mOfPeak[i]) {
+                if (!mInFlight || mPeak[metric] <= 0) continue;
+                threshold *= mPeak[metric];
+            }
+            final boolean holds = mBelow[i]
+                    ? (mInclusive[i] ? magnitude <= threshold : magnitude < threshold)
+                    : (mInclusive[i] ? magnitude >= threshold : magnitude > threshold);
+            if (holds && (!mHolding[i] || stream == SampleStore.STREAM_TOF)) {
+                mFired++;
+                listener.onRuleFired(i, arrivalNanos);
+            }
+            mHolding[i] = holds;
+        }
+        if (stream == SampleStore.STREAM_TOF) {
+            // The flight is over.
+            mInFlight = false;
+            for (int m = 0; m < mPeak.length; m++) mPeak[m] = 0;
+            for (int i = 0; i < mHolding.length; i++) mHolding[i] = false;
+        }
+    }
+
+    private static int metricOf(int stream) {
+        for (int m = 0; m < METRIC_STREAMS.length; m++) {
+            if (METRIC_STREAMS[m] == stream) return m;
+        }
+        return -1;
+    }
+
+    /** Records how long a fired rule took from notification to its write going out. */
+    public synchronized void recordLatency(long nanos) {
+        mLatencyCount++;
+        mLatencyTotalNanos += nanos;
+        if (nanos > mLatencyMaxNanos) mLatencyMaxNanos = nanos;
+        if (nanos > LATENCY_BUDGET_NANOS) mOverBudget++;
+    }
+
+    public long getFiredCount() {
+        return mFired;
+    }
+
+    public synchronized long getMeanLatencyNanos() {
+        return mLatencyCount == 0 ? 0 : mLatencyTotalNanos / mLatencyCount;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mLatencyMaxNanos;
+    }
+
+    /** @return Writes that went out later than {@link #LATENCY_BUDGET_NANOS}. */
+    public synchronized long getOverBudgetCount() {
+        return mOverBudget;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Fixed-size ring of typed GATT events with nanosecond timestamps.  Recording writes four
+ * primitives into preallocated arrays, so it is cheap enough for the notification path.  The
+ * ring can be dumped in the Chrome trace event format, which Perfetto and chrome://tracing
+ * both open.
+ */
+public class TraceJournal {
+    public static final int EVENT_CONNECT = 0;
+    public static final int EVENT_CONNECTED = 1;
+    public static final int EVENT_DISCONNECTED = 2;
+    public static final int EVENT_DISCOVER = 3;
+    public static final int EVENT_DISCOVERED = 4;
+    public static final int EVENT_CCCD_WRITE = 5;
+    public static final int EVENT_CCCD_WRITTEN = 6;
+    public static final int EVENT_NOTIFICATION = 7;
+    public static final int EVENT_READ = 8;
+    public static final int EVENT_READ_COMPLETE = 9;
+    public static final int EVENT_WRITE = 10;
+    public static final int EVENT_WRITE_COMPLETE = 11;
+    public static final int EVENT_RSSI = 12;
+    public static final int EVENT_CACHE_HIT = 13;
+    public static final int EVENT_RATE = 14;
+    public static final int EVENT_MTU = 15;
+
+    private static final String[] EVENT_NAMES = {
+            "connect", "connected", "disconnected", "discover", "discovered", "cccd_write",
+            "cccd_written", "notification", "read", "read_complete", "write", "write_complete",
+            "rssi", "cache_hit", "rate", "mtu"
+    };
+
+    private static final String[] STREAM_NAMES = { "ang_rt", "ang_avg", "tof" };
+
+    private final long[] mTimes;
+    private final int[] mTypes;
+    private final int[] mArg0;
+    private final int[] mArg1;
+    private long mCount = 0;
+
+    public TraceJournal(int capacity) {
+        mTimes = new long[capacity];
+        mTypes = new int[capacity];
+        mArg0 = new int[capacity];
+        mArg1 = new int[capacity];
+    }
+
+    public synchronized void record(int type, int arg0, int arg1) {
+        final int i = (int) (mCount % mTimes.length);
+        mTimes[i] = System.nanoTime();
+        mTypes[i] = type;
+        mArg0[i] = arg0;
+        mArg1[i] = arg1;
+        mCount++;
+    }
+
+    public void record(int type, int arg0) {
+        record(type, arg0, 0);
+    }
+
+    public void record(int type) {
+        record(type, 0, 0);
+    }
+
+    /** @return Number of events ever recorded, including those since overwritten. */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Writes the retained events as a Chrome trace JSON document.  Notifications become
+     * counter tracks per stream, everything else an instant event carrying its two arguments.
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        final long[] times;
+        final int[] types;
+        final int[] arg0;
+        final int[] arg1;
+        final int n;
+        synchronized (this) {
+            n = (int) Math.min(mCount, mTimes.length);
+            times = new long[n];
+            types = new int[n];
+            arg0 = new int[n];
+            arg1 = new int[n];
+            long seq = mCount - n;
+            for (int k = 0; k < n; k++, seq++) {
+                final int i = (int) (seq % mTimes.length);
+                times[k] = mTimes[i];
+                types[k] = mTypes[i];
+                arg0[k] = mArg0[i];
+                arg1[k] = mArg1[i];
+            }
+        }
+
+        final long origin = n > 0 ? times[0] : 0;
+        out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+        for (int k = 0; k < n; k++) {
+            // Chrome trace timestamps are microseconds; keep the nanoseconds as decimals.
+            final long ns = times[k] - origin;
+            final String ts = (ns / 1000) + "." + String.format("%03d", ns % 1000);
+            if (types[k] == EVENT_NOTIFICATION) {
+                out.write("{\"name\":\"" + streamName(arg0[k]) + "\",\"ph\":\"C\",\"ts\":" + ts
+                        + ",\"pid\":1,\"tid\":1,\"args\":{\"value\":" + arg1[k] + "}}");
+            } else {
+                out.write("{\"name\":\"" + EVENT_NAMES[types[k]] + "\",\"ph\":\"i\",\"s\":\"t\""
+                        + ",\"ts\":" + ts + ",\"pid\":1,\"tid\":1,\"args\":{\"a\":" + arg0[k]
+                        + ",\"b\":" + arg1[k] + "}}");
+            }
+            out.write(k < n - 1 ? ",\n" : "\n");
+        }
+        out.write("]}\n");
+    }
+
+    private static String streamName(int stream) {
+        return stream >= 0 && stream < STREAM_NAMES.length ? STREAM_NAMES[stream] : "stream" + stream;
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Finds the dominant wobble riding on the real-time angular velocity: the frequency and
+ * amplitude of the strongest oscillation in a sliding window of samples.
+ * <p>
+ * A bank of sliding DFT bins is updated once per sample in O(bins), rather than transforming
+ * the whole window again, and nothing is allocated after construction.  The bins are slightly
+ * damped ({@code r < 1}) so rounding errors die out instead of accumulating over a long
+ * session.  The bins run over the sample-to-sample differences, which turns the spin and its
+ * slow decay into a near-constant that bin 0 (left out) absorbs instead of leaking into the
+ * wobble bins; each bin's magnitude is scaled back by the known gain of the difference.
+ */
+public class WobbleAnalyzer {
+    private static final double DAMPING = 0.99999;
+    // Weight of a new interval in the running sample interval.
+    private static final double INTERVAL_WEIGHT = 0.05;
+
+    /** Dominant wobble; filled in by the getters so callers can reuse one instance. */
+    public static class Result {
+        public float frequencyHz;
+        public float amplitude;
+    }
+
+    private final int mWindow;
+    private final int mMinBin;
+    private final double[] mCos;
+    private final double[] mSin;
+    private final double[] mRe;
+    private final double[] mIm;
+    // Inverse power gain of differencing at each bin.
+    private final double[] mScale;
+    private final float[] mHistory;
+    private final double mDampingN;
+    private final double mGain;
+    private int mNext = 0;
+    private long mCount = 0;
+    private long mLastTime;
+    private double mInterval = 0;
+    private float mLastValue;
+
+    // Dominant bin after the latest sample.
+    private int mPeakBin = -1;
+    private double mPeakMagnitude = 0;
+
+    // Per-flight aggregates.
+    private long mFlightSamples = 0;
+    private double mFlightPeakAmplitude = 0;
+    private double mFlightPeakFrequency = 0;
+    private double mFlightWeightedFrequency = 0;
+    private double mFlightAmplitudeSum = 0;
+
+    /**
+     * @param window Samples per window; the frequency resolution is the sample rate / window.
+     * @param minBin Lowest bin considered, to keep slow spin decay out of the result.
+     * @param maxBin Highest bin considered, at most {@code window / 2}.
+     */
+    public WobbleAnalyzer(int window, int minBin, int maxBin) {
+        mWindow = window;
+        mMinBin = Math.max(1, minBin);
+        final int bins = Math.min(maxBin, window / 2) - mMinBin + 1;
+        mCos = new double[bins];
+        mSin = new double[bins];
+        mRe = new double[bins];
+        mIm = new double[bins];
+        mScale = new double[bins];
+        for (int b = 0; b < bins; b++) {
+            final double w = 2 * Math.PI * (mMinBin + b) / window;
+            mCos[b] = DAMPING * Math.cos(w);
+            mSin[b] = DAMPING * Math.sin(w);
+            final double gain = 2 * Math.sin(w / 2);
+            mScale[b] = 1 / (gain * gain);
+        }
+        mHistory = new float[window];
+        mDampingN = Math.pow(DAMPING, window);
+        double gain = 0;
+        for (int m = 0; m < window; m++) {
+            gain += Math.pow(DAMPING, m);
+        }
+        mGain = gain;
+    }
+
+    /** Adds one sample.  Samples must arrive in time order. */
+    public void add(long timeNanos, float value) {
+        if (mCount > 0) {
+            final double dt = (timeNanos - mLastTime) * 1e-9;
+            if (dt > 0) {
+                mInterval = mInterval == 0 ? dt : mInterval + INTERVAL_WEIGHT * (dt - mInterval);
+            }
+        } else {
+            mLastValue = value;
+        }
+        mLastTime = timeNanos;
+
+        final float x = value - mLastValue;
+        mLastValue = value;
+        final double delta = x - mDampingN * mHistory[mNext];
+        mHistory[mNext] = x;
+        mNext = (mNext + 1) % mWindow;
+        mCount++;
+
+        int peak = -1;
+        double peakMagnitude = 0;
+        for (int b = 0; b < mRe.length; b++) {
+            final double re = mRe[b] + delta;
+            final double im = mIm[b];
+            mRe[b] = re * mCos[b] - im * mSin[b];
+            mIm[b] = re * mSin[b] + im * mCos[b];
+            final double magnitude = (mRe[b] * mRe[b] + mIm[b] * mIm[b]) * mScale[b];
+            if (magnitude > peakMagnitude) {
+                peakMagnitude = magnitude;
+                peak = b;
+            }
+        }
+        if (mCount < mWindow) return;
+        mPeakBin = peak;
+        mPeakMagnitude = peakMagnitude;
+
+        if (peak >= 0 && mInterval > 0) {
+            final double amplitude = amplitude();
+            final double frequency = frequency();
+            mFlightSamples++;
+            mFlightAmplitudeSum += amplitude;
+            mFlightWeightedFrequency += amplitude * frequency;
+            if (amplitude > mFlightPeakAmplitude) {
+                mFlightPeakAmplitude = amplitude;
+                mFlightPeakFrequency = frequency;
+            }
+        }
+    }
+
+    private double amplitude() {
+        return 2 * Math.sqrt(mPeakMagnitude) / mGain;
+    }
+
+    private double frequency() {
+        return (mMinBin + mPeakBin) / (mWindow * mInterval);
+    }
+
+    /**
+     * Reads the wobble over the latest window.
+     *
+     * @return False until a full window has been seen.
+     */
+    public boolean getLive(Result out) {
+        if (mPeakBin < 0 || mInterval == 0) return false;
+        out.frequencyHz = (float) frequency();
+        out.amplitude = (float) amplitude();
+        return true;
+    }
+
+    /**
+     * Reads the wobble over the flight so far: the amplitude-weighted mean frequency and the
+     * peak amplitude.
+     *
+     * @return False if no full window fell within the flight.
+     */
+    public boolean getFlight(Result out) {
+        if (mFlightSamples == 0 || mFlightAmplitudeSum == 0) return false;
+        out.frequencyHz = (float) (mFlightWeightedFrequency / mFlightAmplitudeSum);
+        out.amplitude = (float) mFlightPeakAmplitude;
+        return true;
+    }
+
+    /** @return Frequency at which the flight's peak amplitude was seen. */
+    public float getFlightPeakFrequency() {
+        return (float) mFlightPeakFrequency;
+    }
+
+    /** Clears the window and the flight aggregates for a new throw. */
+    public void reset() {
+        for (int b = 0; b < mRe.length; b++) {
+            mRe[b] = 0;
+            mIm[b] = 0;
+        }
+        for (int i = 0; i < mWindow; i++) {
+            mHistory[i] = 0;
+        }
+        mNext = 0;
+        mCount = 0;
+        mInterval = 0;
+        mPeakBin = -1;
+        mPeakMagnitude = 0;
+        mFlightSamples = 0;
+        mFlightPeakAmplitude = 0;
+        mFlightPeakFrequency = 0;
+        mFlightWeightedFrequency = 0;
+        mFlightAmplitudeSum = 0;
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Runs the bulk download against a simulated go-back-N disc on a lossy link. */
+public class BulkTransferTest {
+    private static final int WINDOW = 16;
+    private static final int MAX_STEPS = 1000000;
+
+    private File mDir;
+    private File mFile;
+    private SimulatedDisc mDisc;
+    private final List<byte[]> mWrites = new ArrayList<byte[]>();
+    private byte[] mStored;
+    private boolean mStoreFails = false;
+    private int mCompletions = 0;
+    private String mFailure;
+
+    private final BulkTransfer.Listener mListener = new BulkTransfer.Listener() {
+        @Override
+        public void sendControl(byte[] value) {
+            mWrites.add(value.clone());
+        }
+
+        @Override
+        public boolean onTransferComplete(File data, long length, double kilobytesPerSecond) {
+            mCompletions++;
+            if (mStoreFails) return false;
+            try {
+                mStored = readFile(data);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return true;
+        }
+
+        @Override
+        public void onTransferFailed(String reason) {
+            mFailure = reason;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("bulk", "");
+        assertTrue(mDir.delete() && mDir.mkdirs());
+        mFile = new File(mDir, "disc.bulk");
+        mDisc = new SimulatedDisc(flightBuffer(60000), 247 - BulkTransfer.PACKET_OVERHEAD, 0.02);
+    }
+
+    @After
+    public void tearDown() {
+        FlightReanalyzerTest.deleteTree(mDir);
+    }
+
+    @Test
+    public void resumesThroughLossAndADisconnect() throws IOException {
+        BulkTransfer transfer = new BulkTransfer(mFile, WINDOW, mListener);
+        transfer.start();
+        boolean disconnected = false;
+        int steps = 0;
+        while (mCompletions == 0 && steps++ < MAX_STEPS) {
+            step(transfer);
+            if (!disconnected && transfer.getOffset() > mDisc.mBuffer.length / 2) {
+                // Out of range mid-download: everything in flight is lost.
+                disconnected = true;
+                transfer.cancel();
+                mDisc.disconnect();
+                mWrites.clear();
+                transfer = new BulkTransfer(mFile, WINDOW, mListener);
+                transfer.start();
+            }
+        }
+        deliverWrites();
+
+        assertNull(mFailure);
+        assertArrayEquals(mDisc.mBuffer, mStored);
+        assertTrue(transfer.getRewindCount() > 0);
+        assertEquals(1, mDisc.mDoneCount);
+        assertFalse(mFile.exists());
+        assertFalse(new File(mFile.getPath() + ".info").exists());
+        // Each loss costs at most a window resent, well short of going round twice.
+        assertTrue(mDisc.mPackets < 2 * mDisc.mBuffer.length / mDisc.mPayload);
+
+        final File flight = new File(mDir, "flight.dfl");
+        mFile = new File(mDir, "stored.bulk");
+        writeFile(mFile, mStored);
+        assertEquals((mDisc.mBuffer.length - 4) / 2,
+                BulkTransfer.writeFlightLog(mFile, flight, 0));
+        assertNotNull(new FlightAnalyzer().analyze(flight));
+    }
+
+    @Test
+    public void keepsTheDownloadUntilTheFlightIsStored() throws IOException {
+        mStoreFails = true;
+        BulkTransfer transfer = new BulkTransfer(mFile, WINDOW, mListener);
+        transfer.start();
+        runToCompletion(transfer);
+
+        assertEquals(1, mCompletions);
+        assertEquals(0, mDisc.mDoneCount);
+        assertEquals(mDisc.mBuffer.length, mFile.length());
+        assertTrue(new File(mFile.getPath() + ".info").exists());
+
+        // The next attempt finishes from the file without asking for a byte more.
+        mStoreFails = false;
+        final long packets = mDisc.mPackets;
+        transfer = new BulkTransfer(mFile, WINDOW, mListener);
+        transfer.start();
+        runToCompletion(transfer);
+
+        assertEquals(2, mCompletions);
+        assertEquals(packets, mDisc.mPackets);
+        assertEquals(1, mDisc.mDoneCount);
+        assertArrayEquals(mDisc.mBuffer, mStored);
+        assertFalse(mFile.exists());
+    }
+
+    private void runToCompletion(BulkTransfer transfer) {
+        final int completions = mCompletions;
+        int steps = 0;
+        while (mCompletions == completions && steps++ < MAX_STEPS) {
+            step(transfer);
+        }
+        deliverWrites();
+    }
+
+    /** One round trip: our writes reach the disc, it sends what its window allows, we read it. */
+    private void step(BulkTransfer transfer) {
+        final boolean wrote = !mWrites.isEmpty();
+        deliverWrites();
+        mDisc.pump();
+        final List<Packet> arrived = new ArrayList<Packet>(mDisc.mToApp);
+        mDisc.mToApp.clear();
+        for (Packet packet : arrived) {
+            if (packet.control) {
+                transfer.onControl(packet.value);
+            } else {
+                transfer.onData(packet.value);
+            }
+        }
+        if (arrived.isEmpty() && !wrote && mWrites.isEmpty()) {
+            // Both sides waiting: the stall timer fires.
+            transfer.checkStalled(0);
+        }
+    }
+
+    private void deliverWrites() {
+        for (byte[] value : mWrites) mDisc.onWrite(value);
+        mWrites.clear();
+    }
+
+    /** A decaying spin sampled every millisecond, as the disc buffers it. */
+    private static byte[] flightBuffer(int samples) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLittleEndian(out, 1000, 4);
+        for (int i = 0; i < samples; i++) {
+            writeLittleEndian(out, (short) (1500 * Math.exp(-i / 30000.0)), 2);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeLittleEndian(ByteArrayOutputStream out, long value, int width) {
+        for (int i = 0; i < width; i++) out.write((int) (value >> (8 * i)));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Packet {
+        final boolean control;
+        final byte[] value;
+
+        Packet(boolean control, byte[] value) {
+            this.control = control;
+            this.value = value;
+        }
+    }
+
+    /** The disc's side of the protocol: go-back-N from the last ACK, dropping some packets. */
+    private static class SimulatedDisc {
+        final byte[] mBuffer;
+        final int mPayload;
+        final double mLoss;
+        final long mCrc;
+        final Random mRandom = new Random(3);
+        final List<Packet> mToApp = new ArrayList<Packet>();
+        boolean mStarted = false;
+        int mWindow;
+        long mSent;
+        long mAcknowledged;
+        long mPackets = 0;
+        int mDoneCount = 0;
+
+        SimulatedDisc(byte[] buffer, int payload, double loss) {
+            mBuffer = buffer;
+            mPayload = payload;
+            mLoss = loss;
+            final CRC32 crc = new CRC32();
+            crc.update(buffer);
+            mCrc = crc.getValue();
+        }
+
+        void onWrite(byte[] value) {
+            final int opcode = value[0] & 0xff;
+            if (opcode == BulkTransfer.OP_DONE) {
+                mStarted = false;
+                mDoneCount++;
+                return;
+            }
+            final long offset = (value[1] & 0xffL) | (value[2] & 0xffL) << 8
+                    | (value[3] & 0xffL) << 16 | (value[4] & 0xffL) << 24;
+            if (opcode == BulkTransfer.OP_START) {
+                mWindow = value[5] & 0xff;
+                mSent = offset;
+                mAcknowledged = offset;
+                mStarted = true;
+                final byte[] info = new byte[9];
+                info[0] = (byte) BulkTransfer.OP_INFO;
+                for (int i = 0; i < 4; i++) {
+                    info[1 + i] = (byte) (mBuffer.length >> (8 * i));
+                    info[5 + i] = (byte) (mCrc >> (8 * i));
+                }
+                mToApp.add(new Packet(true, info));
+            } else if (opcode == BulkTransfer.OP_ACK) {
+                mAcknowledged = offset;
+                if (offset < mSent) mSent = offset;
+            }
+        }
+
+        void pump() {
+            while (mStarted && mSent < mBuffer.length
+                    && mSent - mAcknowledged < (long) mWindow * mPayload) {
+                final int n = (int) Math.min(mPayload, mBuffer.length - mSent);
+                final byte[] packet = new byte[4 + n];
+                for (int i = 0; i < 4; i++) packet[i] = (byte) (mSent >> (8 * i));
+                System.arraycopy(mBuffer, (int) mSent, packet, 4, n);
+                mSent += n;
+                mPackets++;
+                if (mRandom.nextDouble() >= mLoss) mToApp.add(new Packet(false, packet));
+            }
+        }
+
+        void disconnect() {
+            mStarted = false;
+            mToApp.clear();
+        }
+    }
+}
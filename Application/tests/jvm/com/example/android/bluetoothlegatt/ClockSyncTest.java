@@ -0,0 +1,89 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the clock sync a disc whose crystal runs 40 ppm fast, notifying every 20 ms through a
+ * link with a 3 ms floor, exponential jitter and the odd connection-interval delay.
+ */
+public class ClockSyncTest {
+    private static final double DRIFT = 40e-6;
+    private static final long OFFSET_NANOS = 123456789000L;
+    private static final long MIN_LATENCY_NANOS = 3000000L;
+    private static final long BUDGET_NANOS_PER_ADD = 2000;
+
+    @Test
+    public void tracksOffsetAndDriftThroughJitter() {
+        final ClockSync sync = new ClockSync();
+        final Random random = new Random(5);
+        double sumError = 0;
+        double maxError = 0;
+        int count = 0;
+        for (int i = 0; i < 20000; i++) {
+            final long deviceMs = 5000 + i * 20L;
+            final long truth = taken(deviceMs);
+            final long arrival = truth + MIN_LATENCY_NANOS
+                    + (long) (-Math.log(1 - random.nextDouble()) * 8e6)
+                    + (random.nextInt(4) == 0 ? 7500000L * random.nextInt(4) : 0);
+            sync.add(deviceMs, arrival);
+            if (i > 2000) {
+                // Against the earliest a notification could arrive, which is what it can see.
+                final double error = Math.abs(sync.toLocalNanos(deviceMs)
+                        - (truth + MIN_LATENCY_NANOS)) / 1e6;
+                sumError += error;
+                maxError = Math.max(maxError, error);
+                count++;
+            }
+        }
+        System.out.println(String.format("drift %.1f ppm, error mean %.2f ms, max %.2f ms",
+                sync.getDriftPpm(), sumError / count, maxError));
+        // The fit spans ten seconds of block minima, so drift itself is only roughly known;
+        // what counts is the error in time, which it keeps well under a sample interval.
+        assertEquals(DRIFT * 1e6, sync.getDriftPpm(), 20);
+        assertTrue("mean error " + sumError / count + " ms", sumError / count < 1);
+        assertTrue("max error " + maxError + " ms", maxError < 3);
+    }
+
+    @Test
+    public void startsOverWhenTheDiscClockRestarts() {
+        final ClockSync sync = new ClockSync();
+        for (int i = 0; i < 1000; i++) {
+            sync.add(5000 + i * 20L, taken(5000 + i * 20L) + MIN_LATENCY_NANOS);
+        }
+        // Rebooted: its clock starts again from zero, now.
+        final long rebootNanos = taken(5000 + 1000 * 20L);
+        sync.add(0, rebootNanos + MIN_LATENCY_NANOS);
+        assertEquals(1, sync.getResetCount());
+        assertEquals(rebootNanos + MIN_LATENCY_NANOS, sync.toLocalNanos(0));
+
+        sync.reset();
+        assertFalse(sync.isSynced());
+    }
+
+    @Test
+    public void addStaysWithinBudget() {
+        final ClockSync sync = new ClockSync();
+        final int warmup = 200000;
+        final int measured = 1000000;
+        long start = 0;
+        for (int i = 0; i < warmup + measured; i++) {
+            if (i == warmup) start = System.nanoTime();
+            final long deviceMs = 5000 + i * 20L;
+            sync.add(deviceMs, taken(deviceMs) + MIN_LATENCY_NANOS);
+        }
+        final double nanos = (System.nanoTime() - start) / (double) measured;
+        System.out.println(String.format("ClockSync.add: %.1f ns", nanos));
+        assertTrue("add takes " + nanos + " ns", nanos < BUDGET_NANOS_PER_ADD);
+    }
+
+    /** When the disc really read {@code deviceMs}, on the phone's clock. */
+    private static long taken(long deviceMs) {
+        return OFFSET_NANOS + (long) (deviceMs * 1e6 * (1 + DRIFT));
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Talks to the server over loopback the way a browser would. */
+public class DashboardServerTest {
+    // The example handshake from RFC 6455.
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long BASE_NANOS = 1000000000L;
+    private static final long INTERVAL_NANOS = 5000000L;
+
+    private DashboardServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new DashboardServer(0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void servesThePageAndNothingElse() throws IOException {
+        assertEquals("HTTP/1.1 200 OK", get("/"));
+        assertEquals("HTTP/1.1 404 Not Found", get("/favicon.ico"));
+        assertEquals(ACCEPT, DashboardServer.acceptKey(KEY));
+    }
+
+    @Test
+    public void everyClientGetsEverySample() throws Exception {
+        final Socket[] clients = new Socket[3];
+        for (int i = 0; i < clients.length; i++) clients[i] = open();
+        awaitClients(clients.length);
+
+        // Fewer batches than a client queues, so none should be dropped.
+        final int batches = DashboardServer.CLIENT_QUEUE - 4;
+        final int perBatch = 20;
+        final SampleStore.Batch batch = new SampleStore.Batch(perBatch);
+        for (int b = 0; b < batches; b++) {
+            for (int k = 0; k < perBatch; k++) {
+                final int i = b * perBatch + k;
+                batch.streams[k] = i % 3;
+                batch.times[k] = BASE_NANOS + i * INTERVAL_NANOS;
+                batch.values[k] = i;
+            }
+            batch.count = perBatch;
+            mServer.onSamples(batch);
+        }
+        assertEquals(batches, mServer.getMessageCount());
+
+        for (Socket client : clients) {
+            assertEquals(batches * perBatch, readSamples(client));
+        }
+        assertEquals(0, mServer.getDroppedCount());
+
+        // Closing handshake: a masked, empty close frame is answered and the client dropped.
+        final OutputStream out = clients[0].getOutputStream();
+        out.write(new byte[] { (byte) 0x88, (byte) 0x80, 1, 2, 3, 4 });
+        out.flush();
+        final InputStream in = clients[0].getInputStream();
+        assertEquals(0x88, in.read());
+        assertEquals(0, in.read());
+        assertEquals(-1, in.read());
+        awaitClients(clients.length - 1);
+        for (Socket client : clients) client.close();
+    }
+
+    @Test
+    public void idleConnectionsAreCappedAndTimedOut() throws Exception {
+        final Socket[] idle = new Socket[DashboardServer.MAX_CONNECTIONS];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new Socket("127.0.0.1", mServer.getLocalPort());
+        }
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (mServer.getConnectionCount() < idle.length) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // One more is turned away at once.
+        final Socket extra = new Socket("127.0.0.1", mServer.getLocalPort());
+        extra.setSoTimeout(1000);
+        assertEquals(-1, extra.getInputStream().read());
+        extra.close();
+
+        // The idle ones are dropped once they have had their chance to send a request.
+        for (Socket socket : idle) {
+            socket.setSoTimeout(DashboardServer.HANDSHAKE_TIMEOUT_MS * 2);
+            assertEquals(-1, socket.getInputStream().read());
+            socket.close();
+        }
+        final Socket client = open();
+        awaitClients(1);
+        client.close();
+    }
+
+    /** @return The status line of {@code path}. */
+    private String get(String path) throws IOException {
+        final Socket socket = new Socket("127.0.0.1", mServer.getLocalPort());
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes(ASCII));
+        final BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), ASCII));
+        final String status = in.readLine();
+        socket.close();
+        return status;
+    }
+
+    private Socket open() throws IOException {
+        final Socket socket = new Socket("127.0.0.1", mServer.getLocalPort());
+        socket.getOutputStream().write(("GET /ws HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + KEY + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(ASCII));
+        final InputStream in = socket.getInputStream();
+        final StringBuilder response = new StringBuilder();
+        while (response.indexOf("\r\n\r\n") < 0) {
+            final int b = in.read();
+            assertTrue(b >= 0);
+            response.append((char) b);
+        }
+        assertTrue(response.toString(), response.indexOf("101 Switching Protocols") > 0);
+        assertTrue(response.toString(), response.indexOf("Sec-WebSocket-Accept: " + ACCEPT) > 0);
+        return socket;
+    }
+
+    private void awaitClients(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (mServer.getClientCount() != count) {
+            assertTrue("clients " + mServer.getClientCount(),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /** @return Samples read until the server goes quiet, each checked against its index. */
+    private static int readSamples(Socket socket) throws IOException {
+        socket.setSoTimeout(500);
+        final DataInputStream in = new DataInputStream(socket.getInputStream());
+        int samples = 0;
+        try {
+            while (true) {
+                assertEquals(0x82, in.readUnsignedByte());
+                int length = in.readUnsignedByte();
+                if (length == 126) length = in.readUnsignedShort();
+                final byte[] body = new byte[length];
+                in.readFully(body);
+                final ByteBuffer message = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+                final int count = message.getInt();
+                final long base = message.getLong();
+                for (int k = 0; k < count; k++) {
+                    final int stream = message.get();
+                    final long time = base + message.getInt() * 1000L;
+                    final float value = message.getFloat();
+                    assertEquals(samples, (int) value);
+                    assertEquals(samples % 3, stream);
+                    assertEquals(BASE_NANOS + samples * INTERVAL_NANOS, time);
+                    samples++;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // All sent.
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeks in a long flight sampled every 5 ms, with a time of flight stamped 1.5 s back at its
+ * landing every 500 records, against a linear scan for the same sample.
+ */
+public class FlightLogTest {
+    private static final int RECORDS = 500000;
+    private static final long INTERVAL_NANOS = 5000000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("flight", FlightLog.EXTENSION);
+        final FlightLog.Writer out = new FlightLog.Writer(mFile, 1234);
+        try {
+            for (int i = 0; i < RECORDS; i++) {
+                final long time = i * INTERVAL_NANOS;
+                if (i % 500 == 499) {
+                    out.write(SampleStore.STREAM_TOF, time - 1500000000L, 1.2f);
+                } else {
+                    out.write(SampleStore.STREAM_ANG_RT, time, i);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void seekFindsWhatALinearScanFinds() throws IOException {
+        final Random random = new Random(1);
+        long seekNanos = 0;
+        long scanNanos = 0;
+        final int trials = 50;
+        for (int k = 0; k < trials; k++) {
+            final long target = (long) (random.nextDouble() * RECORDS) * INTERVAL_NANOS + 1234;
+
+            final FlightLog.Reader seeking = new FlightLog.Reader(mFile);
+            long start = System.nanoTime();
+            final long found = seeking.seek(target) && seeking.next() ? seeking.getTime() : -1;
+            seekNanos += System.nanoTime() - start;
+            assertTrue(seeking.hasIndex());
+            seeking.close();
+
+            final FlightLog.Reader scanning = new FlightLog.Reader(mFile);
+            start = System.nanoTime();
+            long wanted = -1;
+            while (scanning.next()) {
+                if (scanning.getTime() >= target) {
+                    wanted = scanning.getTime();
+                    break;
+                }
+            }
+            scanNanos += System.nanoTime() - start;
+            scanning.close();
+
+            assertEquals(wanted, found);
+        }
+        System.out.println(String.format("FlightLog seek %d us, scan %d us",
+                seekNanos / trials / 1000, scanNanos / trials / 1000));
+    }
+
+    @Test
+    public void seekPastTheEndFindsNothing() throws IOException {
+        final FlightLog.Reader reader = new FlightLog.Reader(mFile);
+        assertFalse(reader.seek(RECORDS * INTERVAL_NANOS));
+        assertEquals(1234, reader.getStartMillis());
+        reader.close();
+    }
+
+    @Test
+    public void truncatedFileSeeksWithoutAnIndex() throws IOException {
+        // Killed before close(): no index, and the last record cut short.
+        final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 1000);
+        file.close();
+
+        final FlightLog.Reader reader = new FlightLog.Reader(mFile);
+        assertFalse(reader.hasIndex());
+        assertTrue(reader.seek(1000 * INTERVAL_NANOS) && reader.next());
+        assertEquals(1000 * INTERVAL_NANOS, reader.getTime());
+        reader.close();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlightReanalyzerTest {
+    private File mDir;
+    private ForkJoinPool mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("reanalyze", "");
+        assertTrue(mDir.delete() && mDir.mkdirs());
+        mPool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+        deleteTree(mDir);
+    }
+
+    @Test
+    public void writesEveryFlightInOrderAcrossWindows() throws IOException {
+        final File flights = new File(mDir, "flights");
+        assertTrue(flights.mkdirs());
+        // More flights than one window of two threads holds.
+        final int count = 600;
+        for (int f = 0; f < count; f++) {
+            writeFlight(new File(flights, String.format("flight-%05d%s", f, FlightLog.EXTENSION)),
+                    1000 + f);
+        }
+        // Unreadable, so left out rather than failing the run.
+        final FileWriter junk = new FileWriter(new File(flights, "flight-00300-bad.dfl"));
+        junk.write("not a flight");
+        junk.close();
+
+        final File results = FlightReanalyzer.reanalyze(flights, new File(mDir, "results"), mPool);
+
+        final List<String> lines = readLines(results);
+        assertEquals(FlightAnalyzer.CSV_HEADER, lines.get(0));
+        assertEquals(count + 1, lines.size());
+        for (int f = 0; f < count; f++) {
+            final String[] columns = lines.get(f + 1).split(",");
+            assertEquals(String.format("flight-%05d%s", f, FlightLog.EXTENSION), columns[0]);
+            assertEquals(Integer.toString(FlightAnalyzer.ANALYSIS_VERSION), columns[1]);
+            assertEquals(Long.toString(1000 + f), columns[2]);
+        }
+        assertFalse(new File(results.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void emptyDirectoryGivesHeaderOnly() throws IOException {
+        final File results = FlightReanalyzer.reanalyze(mDir, new File(mDir, "results"), mPool);
+        final List<String> lines = readLines(results);
+        assertEquals(1, lines.size());
+    }
+
+    /** A short throw: spin up, decay, time of flight. */
+    private static void writeFlight(File file, long startMillis) throws IOException {
+        final FlightLog.Writer out = new FlightLog.Writer(file, startMillis);
+        try {
+            for (int i = 0; i < 100; i++) {
+                out.write(SampleStore.STREAM_ANG_RT, i * 20000000L,
+                        (float) (1500 * Math.exp(-i / 200.0)));
+            }
+            out.write(SampleStore.STREAM_TOF, 99 * 20000000L, 2.0f);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteTree(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.android.bluetoothlegatt;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Runs the uploader against a stub ingestion server on the loopback interface. */
+public class FlightUploaderTest {
+    private static final long TIMEOUT_NANOS = 20 * 1000000000L;
+
+    private File mDir;
+    private File mFlights;
+    private File mLedger;
+    private HttpServer mServer;
+    private URL mEndpoint;
+
+    // Written by the server thread.
+    private final List<String> mKeys = new ArrayList<String>();
+    private final List<String> mStored = new ArrayList<String>();
+    private volatile long mBytesReceived = 0;
+    private volatile int mFailCall = -1;
+    private volatile String mRefusedFlight;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("upload", "");
+        assertTrue(mDir.delete() && mDir.mkdirs());
+        mFlights = new File(mDir, "flights");
+        assertTrue(mFlights.mkdirs());
+        mLedger = new File(mDir, "uploaded.txt");
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/ingest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ingest(exchange);
+            }
+        });
+        mServer.start();
+        mEndpoint = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/ingest");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        FlightReanalyzerTest.deleteTree(mDir);
+    }
+
+    @Test
+    public void uploadsEveryFlightOnceThroughAServerError() throws Exception {
+        for (int f = 0; f < 45; f++) writeFlight(1000 + f, 500);
+        // Still being recorded, so not for upload.
+        assertTrue(new File(mFlights, "flight-9999.dfl.part").createNewFile());
+        mFailCall = 1;
+
+        final FlightUploader uploader = new FlightUploader(mFlights, mLedger, mEndpoint, 0);
+        uploader.start();
+        awaitUploaded(uploader, 45);
+        uploader.stop();
+
+        assertEquals(45, stored().size());
+        assertEquals(45, new HashSet<String>(stored()).size());
+        assertEquals(1, uploader.getFailedAttempts());
+        synchronized (mKeys) {
+            // The batch that got the 503 went again with the same key.
+            assertEquals(mKeys.get(1), mKeys.get(2));
+        }
+
+        // A restart finds everything in the ledger.
+        final int calls = calls();
+        final FlightUploader restarted = new FlightUploader(mFlights, mLedger, mEndpoint, 0);
+        restarted.start();
+        Thread.sleep(300);
+        restarted.stop();
+        assertEquals(calls, calls());
+    }
+
+    @Test
+    public void quarantinesAFlightTheServerRefuses() throws Exception {
+        for (int f = 0; f < 5; f++) writeFlight(1000 + f, 200);
+        mRefusedFlight = "flight-1002.dfl";
+
+        final FlightUploader uploader = new FlightUploader(mFlights, mLedger, mEndpoint, 0);
+        uploader.start();
+        awaitUploaded(uploader, 4);
+        final long start = System.nanoTime();
+        while (uploader.getQuarantinedFlights() < 1 && System.nanoTime() - start < TIMEOUT_NANOS) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, uploader.getQuarantinedFlights());
+        assertFalse(stored().contains(mRefusedFlight));
+        assertTrue(readLines(mLedger).contains("!" + mRefusedFlight));
+
+        // Newer flights still go, and the refused one is not tried again.
+        writeFlight(1005, 200);
+        final int calls = calls();
+        uploader.requestUpload();
+        awaitUploaded(uploader, 5);
+        uploader.stop();
+        assertEquals(calls + 1, calls());
+        assertTrue(stored().contains("flight-1005.dfl"));
+
+        final FlightUploader restarted = new FlightUploader(mFlights, mLedger, mEndpoint, 0);
+        restarted.start();
+        Thread.sleep(300);
+        restarted.stop();
+        assertEquals(calls + 1, calls());
+    }
+
+    @Test
+    public void pauseHoldsABatchAlreadyUnderway() throws Exception {
+        // Random samples barely compress, so this takes a couple of seconds at the rate below.
+        writeFlight(1000, 40000);
+        final FlightUploader uploader = new FlightUploader(mFlights, mLedger, mEndpoint,
+                200 * 1024);
+        uploader.start();
+        final long start = System.nanoTime();
+        while (mBytesReceived == 0 && System.nanoTime() - start < TIMEOUT_NANOS) {
+            Thread.sleep(5);
+        }
+        uploader.setPaused(true);
+        // Let whatever was already on the wire arrive.
+        Thread.sleep(300);
+        final long held = mBytesReceived;
+        Thread.sleep(700);
+        assertEquals(held, mBytesReceived);
+        assertEquals(0, uploader.getUploadedFlights());
+
+        uploader.setPaused(false);
+        awaitUploaded(uploader, 1);
+        uploader.stop();
+        assertEquals(1, calls());
+    }
+
+    private void ingest(HttpExchange exchange) throws IOException {
+        final int call;
+        synchronized (mKeys) {
+            call = mKeys.size();
+            mKeys.add(exchange.getRequestHeaders().getFirst("Idempotency-Key"));
+        }
+        final InputStream body = new CountingInputStream(exchange.getRequestBody());
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(body));
+        assertEquals(0x44464C42, in.readInt());
+        final int count = in.readInt();
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+            in.readFully(new byte[(int) in.readLong()]);
+        }
+        final int status;
+        if (call == mFailCall) {
+            status = 503;
+        } else if (names.contains(mRefusedFlight)) {
+            status = 413;
+        } else {
+            status = 200;
+            synchronized (mStored) {
+                mStored.addAll(names);
+            }
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private int calls() {
+        synchronized (mKeys) {
+            return mKeys.size();
+        }
+    }
+
+    private List<String> stored() {
+        synchronized (mStored) {
+            return new ArrayList<String>(mStored);
+        }
+    }
+
+    private static void awaitUploaded(FlightUploader uploader, int flights)
+            throws InterruptedException {
+        final long start = System.nanoTime();
+        while (uploader.getUploadedFlights() < flights
+                && System.nanoTime() - start < TIMEOUT_NANOS) {
+            Thread.sleep(20);
+        }
+        assertEquals(flights, uploader.getUploadedFlights());
+    }
+
+    private void writeFlight(long startMillis, int samples) throws IOException {
+        final Random random = new Random(startMillis);
+        final FlightLog.Writer out = new FlightLog.Writer(
+                new File(mFlights, "flight-" + startMillis + FlightLog.EXTENSION), startMillis);
+        try {
+            long time = 0;
+            for (int i = 0; i < samples; i++) {
+                time += 1 + random.nextInt(20000000);
+                out.write(SampleStore.STREAM_ANG_RT, time, random.nextFloat() * 2000);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) lines.add(line);
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private class CountingInputStream extends InputStream {
+        private final InputStream mIn;
+
+        CountingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = mIn.read();
+            if (b >= 0) mBytesReceived++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = mIn.read(b, off, len);
+            if (n > 0) mBytesReceived += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller from a 250 ms tick against a consumer that only keeps up with 60 Hz,
+ * through a throw from 5 s to 20 s with a weak link from 12 s to 15 s.
+ */
+public class RateControllerTest {
+    private static final long TICK_MS = 250;
+    private static final int CAPACITY = 200;
+    private static final double CONSUMER_HZ = 60;
+
+    private final RateController mController = new RateController();
+    private int mRate = 0;
+    private double mBacklog = 0;
+    private long mOverflow = 0;
+    // Lowest and highest rate in effect during the last run().
+    private int mMinRate;
+    private int mMaxRate;
+
+    @Test
+    public void followsTheFlightAndBacksOffForASlowConsumer() {
+        run(0, 5000, false, -60);
+        assertEquals(RateController.IDLE_RATE_HZ, mRate);
+
+        // Straight to full rate at launch, then halved as the consumer falls behind.
+        assertEquals(RateController.FLIGHT_RATE_HZ, tick(5000, true, -60));
+        run(5250, 12000, true, -60);
+        assertTrue(mController.getDecreaseCount() > 0);
+        assertTrue(mMinRate >= RateController.MIN_FLIGHT_RATE_HZ);
+        assertTrue(mMinRate < RateController.FLIGHT_RATE_HZ);
+
+        // A weak link halves the ceiling.
+        run(12000, 15000, true, -90);
+        assertTrue(mMaxRate <= RateController.FLIGHT_RATE_HZ / 2);
+
+        run(15000, 20000, true, -60);
+        assertEquals(RateController.IDLE_RATE_HZ, tick(20000, false, -60));
+        run(20250, 30000, false, -60);
+        assertEquals(RateController.IDLE_RATE_HZ, mRate);
+
+        // No more than one write per MIN_WRITE_INTERVAL_MS outside phase changes.
+        assertTrue(mController.getWriteCount() <= 30000 / RateController.MIN_WRITE_INTERVAL_MS);
+        assertTrue("overflowed " + mOverflow, mOverflow < CAPACITY);
+    }
+
+    @Test
+    public void resetForgetsTheWrittenRate() {
+        run(0, 1000, true, -60);
+        mController.reset();
+        assertEquals(0, mController.getWrittenRate());
+        assertEquals(RateController.IDLE_RATE_HZ, mController.update(1000, false, 0, 0, -60));
+    }
+
+    private void run(long fromMs, long toMs, boolean inFlight, int rssi) {
+        mMinRate = Integer.MAX_VALUE;
+        mMaxRate = 0;
+        for (long t = fromMs; t < toMs; t += TICK_MS) {
+            tick(t, inFlight, rssi);
+            mMinRate = Math.min(mMinRate, mRate);
+            mMaxRate = Math.max(mMaxRate, mRate);
+        }
+    }
+
+    private int tick(long nowMs, boolean inFlight, int rssi) {
+        final double in = (mRate == 0 ? RateController.IDLE_RATE_HZ : mRate) * TICK_MS / 1000.0;
+        mBacklog = Math.max(0, mBacklog + in - CONSUMER_HZ * TICK_MS / 1000.0);
+        if (mBacklog > CAPACITY) {
+            mOverflow += (long) (mBacklog - CAPACITY);
+            mBacklog = CAPACITY;
+        }
+        final int written = mController.update(nowMs, inFlight, (float) (mBacklog / CAPACITY),
+                mOverflow, rssi);
+        if (written != RateController.NO_CHANGE) mRate = written;
+        return written;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectSupervisorTest {
+    @Test
+    public void delaysBackOffWithJitterUpToTheCap() {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(new Random(1));
+        final ReconnectSupervisor twin = new ReconnectSupervisor(new Random(1));
+        supervisor.onLinkLost(0);
+        twin.onLinkLost(0);
+        assertTrue(supervisor.isReconnecting());
+
+        // The first attempt goes out at once.
+        assertEquals(0, supervisor.nextDelayMs());
+        twin.nextDelayMs();
+        long nominal = ReconnectSupervisor.BASE_DELAY_MS;
+        for (int attempt = 1; attempt < 20; attempt++) {
+            final long delay = supervisor.nextDelayMs();
+            assertTrue("attempt " + attempt + ": " + delay, delay >= nominal / 2);
+            assertTrue("attempt " + attempt + ": " + delay, delay <= nominal);
+            // Seeded, so the jitter is the same every time.
+            assertEquals(delay, twin.nextDelayMs());
+            nominal = Math.min(ReconnectSupervisor.MAX_DELAY_MS, nominal * 2);
+        }
+        assertEquals(20, supervisor.getAttempt());
+        // Long since at the cap.
+        final long capped = supervisor.nextDelayMs();
+        assertTrue(capped >= ReconnectSupervisor.MAX_DELAY_MS / 2);
+        assertTrue(capped <= ReconnectSupervisor.MAX_DELAY_MS);
+    }
+
+    @Test
+    public void delayStartsOverAfterTelemetryResumes() {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(new Random(2));
+        supervisor.onLinkLost(0);
+        for (int i = 0; i < 8; i++) supervisor.nextDelayMs();
+        assertEquals(5000, supervisor.onDataResumed(5000));
+        assertFalse(supervisor.isReconnecting());
+
+        supervisor.onLinkLost(9000);
+        assertEquals(0, supervisor.getAttempt());
+        assertEquals(0, supervisor.nextDelayMs());
+        assertTrue(supervisor.nextDelayMs() <= ReconnectSupervisor.BASE_DELAY_MS);
+
+        // A second drop before the data is back doesn't restart the outage or the backoff.
+        supervisor.onLinkLost(9500);
+        assertEquals(2, supervisor.getAttempt());
+        assertEquals(1000, supervisor.onDataResumed(10000));
+    }
+
+    @Test
+    public void accountsForOutages() {
+        final ReconnectSupervisor supervisor = new ReconnectSupervisor(new Random(3));
+        assertEquals(-1, supervisor.onDataResumed(100));
+        assertEquals(0, supervisor.getMeanOutageMillis());
+
+        supervisor.onLinkLost(1000);
+        supervisor.onDataResumed(1500);
+        supervisor.onLinkLost(5000);
+        supervisor.onDataResumed(7000);
+        // Given up on, e.g. the user disconnected, so not an outage.
+        supervisor.onLinkLost(8000);
+        supervisor.stop();
+        assertFalse(supervisor.isReconnecting());
+        assertEquals(-1, supervisor.onDataResumed(60000));
+
+        assertEquals(2, supervisor.getOutageCount());
+        assertEquals(1250, supervisor.getMeanOutageMillis());
+        assertEquals(2000, supervisor.getMaxOutageMillis());
+        assertEquals(2000, supervisor.getLastOutageMillis());
+    }
+}
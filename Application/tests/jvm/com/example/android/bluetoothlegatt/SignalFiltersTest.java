@@ -0,0 +1,113 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the stock filter stages and benchmarks them on 100 Hz blocks like the graph channel
+ * gets, against the budget of a few microseconds per sample.
+ */
+public class SignalFiltersTest {
+    private static final long BUDGET_NANOS_PER_SAMPLE = 2000;
+    private static final int BLOCK = 64;
+    private static final int WARMUP_BLOCKS = 20000;
+    private static final int MEASURED_BLOCKS = 60000;
+
+    @Test
+    public void outlierRejectInterpolatesSingleSampleGlitches() {
+        final SignalFilters.OutlierReject filter = new SignalFilters.OutlierReject(300);
+        final float[] in = { 100, 101, 900, 102, 103 };
+        final float[] out = new float[in.length];
+        filter.process(new long[in.length], in, out, 0, in.length);
+        // One sample behind, with the glitch replaced by the midpoint of its neighbours.
+        assertArrayEquals(new float[] { 100, 100, 101, 101.5f, 102 }, out, 0);
+        assertEquals(1, filter.getRejectedCount());
+    }
+
+    @Test
+    public void outlierRejectKeepsRealSteps() {
+        final SignalFilters.OutlierReject filter = new SignalFilters.OutlierReject(300);
+        final float[] in = { 100, 100, 900, 900, 900 };
+        final float[] out = new float[in.length];
+        filter.process(new long[in.length], in, out, 0, in.length);
+        assertArrayEquals(new float[] { 100, 100, 100, 900, 900 }, out, 0);
+        assertEquals(0, filter.getRejectedCount());
+    }
+
+    @Test
+    public void movingAverageAndMedianCarryAcrossBlocks() {
+        final SignalFilters.MovingAverage average = new SignalFilters.MovingAverage(3);
+        final SignalFilters.Median median = new SignalFilters.Median(3);
+        final float[] in = { 3, 6, 9, 0, 30 };
+        final float[] averaged = new float[in.length];
+        final float[] medians = new float[in.length];
+        final long[] times = new long[in.length];
+        average.process(times, in, averaged, 0, 2);
+        average.process(times, in, averaged, 2, 3);
+        median.process(times, in, medians, 0, 2);
+        median.process(times, in, medians, 2, 3);
+        assertArrayEquals(new float[] { 3, 4.5f, 6, 5, 13 }, averaged, 1e-4f);
+        assertEquals(6, medians[2], 0);
+        assertEquals(6, medians[3], 0);
+        assertEquals(9, medians[4], 0);
+    }
+
+    @Test
+    public void lowPassSettlesOnAConstant() {
+        final SignalFilters.LowPass filter = new SignalFilters.LowPass(5);
+        final long[] times = new long[BLOCK];
+        final float[] values = new float[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            times[i] = i * 10000000L;
+            values[i] = i == 0 ? 0 : 1000;
+        }
+        filter.process(times, values, values, 0, BLOCK);
+        assertEquals(1000, values[BLOCK - 1], 1);
+    }
+
+    @Test
+    public void everyStageStaysWithinBudget() {
+        final SignalFilter[] filters = {
+                new SignalFilters.MovingAverage(8),
+                new SignalFilters.Median(7),
+                new SignalFilters.LowPass(5),
+                new SignalFilters.OneEuro(1.0, 0.005, 1.0),
+                new SignalFilters.OutlierReject(300),
+                new SignalFilters.Chain(new SignalFilters.OutlierReject(300),
+                        new SignalFilters.OneEuro(1.0, 0.005, 1.0)) };
+        for (SignalFilter filter : filters) {
+            final double nanos = nanosPerSample(filter);
+            System.out.println(String.format("%s: %.1f ns/sample",
+                    filter.getClass().getSimpleName(), nanos));
+            assertTrue(filter.getClass().getSimpleName() + " takes " + nanos + " ns/sample",
+                    nanos < BUDGET_NANOS_PER_SAMPLE);
+        }
+    }
+
+    /** Spin around 1000 deg/s with sensor noise and one glitch in fifty, at 100 Hz. */
+    private static double nanosPerSample(SignalFilter filter) {
+        final Random random = new Random(1);
+        final long[] times = new long[BLOCK];
+        final float[] in = new float[BLOCK];
+        final float[] out = new float[BLOCK];
+        long time = 0;
+        long elapsed = 0;
+        for (int block = 0; block < WARMUP_BLOCKS + MEASURED_BLOCKS; block++) {
+            for (int i = 0; i < BLOCK; i++) {
+                time += 10000000L;
+                times[i] = time;
+                in[i] = 1000 + (float) random.nextGaussian() * 20
+                        + (random.nextInt(50) == 0 ? 800 : 0);
+            }
+            final long start = System.nanoTime();
+            filter.process(times, in, out, 0, BLOCK);
+            if (block >= WARMUP_BLOCKS) elapsed += System.nanoTime() - start;
+        }
+        return elapsed / (double) (MEASURED_BLOCKS * BLOCK);
+    }
+}
@@ -0,0 +1,471 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link TelemetryPipeline}, the same one {@link BluetoothLeService} hands its
+ * notifications to, through a long simulated session flat out, and checks that nothing in it
+ * slowly grows.  Raw notification bytes go in; behind the pipeline sit the graph, wobble,
+ * recorder and dashboard channels, the shared ring and the rules.  The link drops and comes back
+ * every {@link #WINDOW_MINUTES} of simulated time, and what the service redoes on a reconnect is
+ * redone, a dashboard client dropping and rejoining included.  Broadcasts, GATT writes and the
+ * GATT client itself only exist on a device, so aren't covered here.
+ * <p>
+ * After each window it records the heap after a full GC, bytes allocated per notification,
+ * live threads and the 99th percentile time to handle one notification, then compares every
+ * window with the first warm one.  Four windows by default; for a real soak run longer with
+ * {@code ./gradlew test -Psoak.windows=24}.  Allocation is read from the JVM's per-thread
+ * counters, where there are some.
+ */
+public class SoakTest {
+    static final int RT_HZ = 50;
+    static final int AVG_HZ = 5;
+    static final int WINDOW_MINUTES = 10;
+    static final long OUTAGE_MS = 3000;
+    static final long FLIGHT_EVERY_MS = 30000;
+    static final long FLIGHT_MS = 2000;
+    // Where the disc's clock starts on the phone's.
+    static final long PHONE_OFFSET_MS = 1000000;
+
+    /** Heap after GC may grow this much past the first warm window. */
+    static final long HEAP_GROWTH_LIMIT = 4L * 1024 * 1024;
+    /** Allocation per notification may grow by this factor, plus a few bytes of slack. */
+    static final double ALLOC_GROWTH_LIMIT = 1.25;
+    static final double ALLOC_SLACK_BYTES = 16;
+    static final int THREAD_GROWTH_LIMIT = 0;
+    /** p99 handling time may grow by this factor, plus slack for scheduler noise. */
+    static final double P99_GROWTH_LIMIT = 2.0;
+    static final long P99_SLACK_NANOS = 5000;
+
+    private static final String RULES = "spin < 50% -> led_blink_rate 4\n"
+            + "tof > 3 -> speaker_pitch 80";
+    private static final int CAPACITY = 16384;
+
+    /** What one window measured. */
+    static class Window {
+        long simMinutes;
+        long heapAfterGc;
+        double allocPerNotification = Double.NaN;
+        int threads;
+        long p99Nanos;
+        long notifications;
+    }
+
+    private File mWorkDir;
+    private final Random mRandom = new Random(1);
+
+    // Put together as BluetoothLeService and DiscSession do.
+    private final SampleStore mSampleStore = new SampleStore(CAPACITY);
+    private final TraceJournal mTrace = new TraceJournal(32768);
+    private final IdleScheduler mIdleScheduler = new IdleScheduler();
+    private final ReconnectSupervisor mReconnect = new ReconnectSupervisor(new Random(2));
+    private int mIdleTransitions = 0;
+    private int mTimesOfFlight = 0;
+    private final TelemetryPipeline mPipeline = new TelemetryPipeline(mSampleStore,
+            mIdleScheduler, mTrace, new TelemetryPipeline.Listener() {
+                @Override
+                public void onIdleTransition(int transition) {
+                    mIdleTransitions++;
+                }
+
+                @Override
+                public void onRingWritten() {
+                }
+
+                @Override
+                public void onTimeOfFlight(long sequence, int data) {
+                    mTimesOfFlight++;
+                }
+            });
+    private int mRulesFired = 0;
+    private final TelemetryRules.Listener mRuleListener = new TelemetryRules.Listener() {
+        @Override
+        public void onRuleFired(int rule, long triggerNanos) {
+            mRulesFired++;
+        }
+    };
+    private final ExecutorService mAnalysis = Executors.newSingleThreadExecutor();
+    private final WobbleAnalyzer mWobble = new WobbleAnalyzer(64, 2, 32);
+    private final WobbleAnalyzer.Result mWobbleResult = new WobbleAnalyzer.Result();
+    private final TelemetryFrameAligner mAligner = new TelemetryFrameAligner(CAPACITY);
+    private final SampleRing mAngVelRt = new SampleRing(400);
+    private final SampleRing mAngVelAvg = new SampleRing(400);
+    private final TelemetryFrameAligner.Listener mFrameListener =
+            new TelemetryFrameAligner.Listener() {
+                @Override
+                public void onFrame(TelemetryFrameAligner.Frame frame) {
+                    mAngVelRt.add(frame.rt, 0, frame.count);
+                    mAngVelAvg.add(frame.avg, 0, frame.count);
+                }
+            };
+    private FlightRecorder mRecorder;
+    private final DashboardServer mDashboard = new DashboardServer(0);
+    private Socket mDashboardClient;
+
+    private final byte[] mRtValue = new byte[6];
+    private final byte[] mAvgValue = new byte[6];
+    private final byte[] mTofValue = new byte[1];
+
+    private long[] mLatencies = new long[1024];
+    private int mLatencyCount = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        mWorkDir = File.createTempFile("soak", "");
+        mWorkDir.delete();
+        mWorkDir.mkdir();
+        mRecorder = new FlightRecorder(mWorkDir, new FlightRecorder.Listener() {
+            @Override
+            public void onFlightStarted() {
+            }
+
+            @Override
+            public void onFlightRecorded(File flight) {
+                // Only the writing is under test; hours of flights would fill the disk.
+                flight.delete();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mAnalysis.shutdown();
+        mAnalysis.awaitTermination(5, TimeUnit.SECONDS);
+        mDashboard.stop();
+        FlightReanalyzerTest.deleteTree(mWorkDir);
+    }
+
+    @Test
+    public void nothingGrowsOverALongSession() throws Exception {
+        final long windowCount = Long.getLong("soak.windows", 4);
+        final List<Window> windows = run(windowCount);
+        final long flights = windowCount * WINDOW_MINUTES * 60000 / FLIGHT_EVERY_MS;
+        System.out.println(String.format("%d flights, %d times of flight, %d recorded, "
+                + "%d rules fired, %d idle transitions", flights, mTimesOfFlight,
+                mRecorder.getFlightCount(), mRulesFired, mIdleTransitions));
+        assertTrue(mTimesOfFlight >= flights - windowCount);
+        assertTrue(mRecorder.getFlightCount() > 0);
+        assertTrue(mRulesFired > 0);
+        final List<String> failures = check(windows);
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private List<Window> run(long windowCount)
+            throws IOException, ParseException, InterruptedException, ExecutionException {
+        mDashboard.start();
+        connectDashboardClient();
+        bindRules();
+        final SampleChannel graph = SampleChannel.bounded("graph", 400,
+                new SampleChannel.Consumer() {
+                    @Override
+                    public void onSamples(SampleStore.Batch b) {
+                        for (int i = 0; i < b.count; i++) {
+                            mAligner.add(b.streams[i], b.times[i], b.values[i]);
+                        }
+                        mAligner.flush(mFrameListener);
+                    }
+                }, mAnalysis);
+        graph.setFilter(SampleStore.STREAM_ANG_RT, new SignalFilters.Chain(
+                new SignalFilters.OutlierReject(300), new SignalFilters.OneEuro(1.0, 0.005, 1.0)));
+        mPipeline.registerChannel(graph);
+        mPipeline.registerChannel(SampleChannel.bounded("wobble", CAPACITY / 4,
+                new SampleChannel.Consumer() {
+                    @Override
+                    public void onSamples(SampleStore.Batch b) {
+                        for (int i = 0; i < b.count; i++) {
+                            if (b.streams[i] == SampleStore.STREAM_ANG_RT) {
+                                mWobble.add(b.times[i], b.values[i]);
+                            } else if (b.streams[i] == SampleStore.STREAM_TOF) {
+                                mWobble.getFlight(mWobbleResult);
+                                mWobble.reset();
+                            }
+                        }
+                        mWobble.getLive(mWobbleResult);
+                    }
+                }, mAnalysis));
+        mPipeline.registerChannel(SampleChannel.bounded("recorder", CAPACITY, mRecorder,
+                mAnalysis));
+        mPipeline.registerChannel(SampleChannel.bounded("dashboard", 2048, mDashboard,
+                mAnalysis));
+        mPipeline.setRing(
+                new TelemetryRing(ByteBuffer.allocateDirect(TelemetryRing.sizeFor(4096))));
+
+        System.out.println(" minute   heap MB  B/notif  threads  p99 us");
+        final List<Window> windows = new ArrayList<Window>();
+        final long windowMs = WINDOW_MINUTES * 60000L;
+        long simMs = 0;
+        for (long w = 0; w < windowCount; w++) {
+            final Window window = new Window();
+            final long allocBefore = allocatedBytes();
+            mLatencyCount = 0;
+            final long end = simMs + windowMs;
+            // The link drops at the start of every window after the first.
+            if (w > 0) {
+                reconnect(simMs);
+                simMs += OUTAGE_MS;
+            }
+            for (; simMs < end; simMs += 1000 / RT_HZ) {
+                window.notifications += step(simMs);
+            }
+            drain();
+            final long allocated = allocatedBytes() - allocBefore;
+            if (allocated >= 0 && allocBefore >= 0) {
+                window.allocPerNotification = (double) allocated / window.notifications;
+            }
+            window.simMinutes = simMs / 60000;
+            window.heapAfterGc = heapAfterGc();
+            window.threads = Thread.getAllStackTraces().size();
+            window.p99Nanos = p99();
+            windows.add(window);
+            System.out.println(String.format("%7d %9.2f %8.1f %8d %7.1f", window.simMinutes,
+                    window.heapAfterGc / 1048576.0, window.allocPerNotification, window.threads,
+                    window.p99Nanos / 1000.0));
+        }
+        return windows;
+    }
+
+    /** Compares every window with the first warm one. */
+    static List<String> check(List<Window> windows) {
+        final List<String> failures = new ArrayList<String>();
+        // The first window is spent warming up the JIT and filling the buffers.
+        if (windows.size() < 3) {
+            failures.add("Too short to tell drift from warm-up; run at least 3 windows");
+            return failures;
+        }
+        final Window base = windows.get(1);
+        for (Window w : windows.subList(2, windows.size())) {
+            if (w.heapAfterGc - base.heapAfterGc > HEAP_GROWTH_LIMIT) {
+                failures.add(String.format("minute %d: heap after GC grew %d KB", w.simMinutes,
+                        (w.heapAfterGc - base.heapAfterGc) / 1024));
+            }
+            if (w.allocPerNotification
+                    > base.allocPerNotification * ALLOC_GROWTH_LIMIT + ALLOC_SLACK_BYTES) {
+                failures.add(String.format("minute %d: %.1f B per notification, was %.1f",
+                        w.simMinutes, w.allocPerNotification, base.allocPerNotification));
+            }
+            if (w.threads - base.threads > THREAD_GROWTH_LIMIT) {
+                failures.add(String.format("minute %d: %d threads, was %d", w.simMinutes,
+                        w.threads, base.threads));
+            }
+            if (w.p99Nanos > base.p99Nanos * P99_GROWTH_LIMIT + P99_SLACK_NANOS) {
+                failures.add(String.format("minute %d: p99 %.1f us, was %.1f us", w.simMinutes,
+                        w.p99Nanos / 1000.0, base.p99Nanos / 1000.0));
+            }
+        }
+        return failures;
+    }
+
+    /** One real-time tick of simulated time, with whatever else falls due in it. */
+    private int step(long simMs) {
+        final long phase = simMs % FLIGHT_EVERY_MS;
+        final boolean flying = phase < FLIGHT_MS;
+        // Spin up and decay over the flight; sensor noise otherwise.
+        final int spin = flying ? (int) (1500 - 600 * phase / FLIGHT_MS) + mRandom.nextInt(40)
+                : mRandom.nextInt(20) - 10;
+        int notifications = 0;
+        put(mRtValue, simMs, spin);
+        notify(SampleStore.STREAM_ANG_RT, mRtValue, simMs);
+        notifications++;
+        if (simMs % (1000 / AVG_HZ) == 0) {
+            put(mAvgValue, simMs, flying ? spin - 20 : 0);
+            notify(SampleStore.STREAM_ANG_AVG, mAvgValue, simMs);
+            notifications++;
+        }
+        if (phase == FLIGHT_MS) {
+            mTofValue[0] = (byte) (FLIGHT_MS / 500);
+            notify(SampleStore.STREAM_TOF, mTofValue, simMs);
+            notifications++;
+        }
+        return notifications;
+    }
+
+    private static void put(byte[] value, long deviceMs, int data) {
+        value[0] = (byte) deviceMs;
+        value[1] = (byte) (deviceMs >> 8);
+        value[2] = (byte) (deviceMs >> 16);
+        value[3] = (byte) (deviceMs >> 24);
+        value[4] = (byte) data;
+        value[5] = (byte) (data >> 8);
+    }
+
+    /** Handles one notification as onCharacteristicChanged does, and times it. */
+    private void notify(int stream, byte[] value, long simMs) {
+        // Arrival a few ms after the disc stamped it.
+        final long arrival = phoneMs(simMs) * 1000000L + mRandom.nextInt(8000000);
+        final long start = System.nanoTime();
+        mIdleScheduler.onWakeup();
+        if (mReconnect.isReconnecting()) {
+            mReconnect.onDataResumed(phoneMs(simMs));
+        }
+        if (stream == SampleStore.STREAM_ANG_RT) {
+            mPipeline.onAngRt(value, arrival);
+        } else if (stream == SampleStore.STREAM_ANG_AVG) {
+            mPipeline.onAngAvg(value, arrival);
+        } else {
+            mPipeline.onTof(value, arrival);
+        }
+        recordLatency(System.nanoTime() - start);
+    }
+
+    /** The link drops and comes back, and everything a reconnect resets is reset. */
+    private void reconnect(long simMs) throws IOException, ParseException {
+        mReconnect.onLinkLost(phoneMs(simMs));
+        mReconnect.nextDelayMs();
+        mPipeline.resetClock();
+        mIdleScheduler.reset(phoneMs(simMs + OUTAGE_MS));
+        // Services discovered again, so the rules are bound again.
+        bindRules();
+        // The graph is rebuilt from what arrives after the gap.
+        mAnalysis.execute(new Runnable() {
+            @Override
+            public void run() {
+                mAligner.reset();
+            }
+        });
+        mDashboardClient.close();
+        connectDashboardClient();
+    }
+
+    private static long phoneMs(long simMs) {
+        return simMs + PHONE_OFFSET_MS;
+    }
+
+    private void bindRules() throws ParseException {
+        mPipeline.setRules(TelemetryRules.compile(RULES), mRuleListener);
+    }
+
+    /** Opens a dashboard client with a thread of its own that reads and discards. */
+    private void connectDashboardClient() throws IOException {
+        final Socket socket = new Socket("127.0.0.1", mDashboard.getLocalPort());
+        final OutputStream out = socket.getOutputStream();
+        out.write(("GET /ws HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[16384];
+                try {
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    while (in.read(buffer) >= 0) {
+                        // Discard.
+                    }
+                } catch (IOException e) {
+                    // Closed by reconnect().
+                }
+            }
+        }, "Soak dashboard client");
+        reader.setDaemon(true);
+        reader.start();
+        mDashboardClient = socket;
+    }
+
+    /** Waits for the consumers to catch up, so their threads are idle when measured. */
+    private void drain() throws InterruptedException, ExecutionException {
+        for (int i = 0; i < 50; i++) {
+            boolean idle = true;
+            for (SampleChannel channel : mPipeline.getChannels()) {
+                if (channel.getBacklog() > 0) idle = false;
+            }
+            if (idle) break;
+            Thread.sleep(10);
+        }
+        mAnalysis.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+        // Lets client threads from the last reconnect finish exiting.
+        Thread.sleep(100);
+    }
+
+    private void recordLatency(long nanos) {
+        if (mLatencyCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+        }
+        mLatencies[mLatencyCount++] = nanos;
+    }
+
+    private long p99() {
+        if (mLatencyCount == 0) return 0;
+        Arrays.sort(mLatencies, 0, mLatencyCount);
+        return mLatencies[(int) (mLatencyCount * 0.99)];
+    }
+
+    private static long heapAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // com.sun.management.ThreadMXBean, looked up by name since it isn't there on every JVM.
+    private static Object sThreadBean;
+    private static Method sAllocatedBytes;
+
+    static {
+        try {
+            sThreadBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            sAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long[].class);
+        } catch (Exception e) {
+            sAllocatedBytes = null;
+        }
+    }
+
+    /** @return Bytes allocated so far by this thread and the analysis thread, or -1. */
+    private long allocatedBytes() {
+        if (sAllocatedBytes == null) return -1;
+        final long[] ids = { Thread.currentThread().getId(), analysisThreadId() };
+        try {
+            final long[] bytes = (long[]) sAllocatedBytes.invoke(sThreadBean, (Object) ids);
+            return bytes[0] + Math.max(0, bytes[1]);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private long mAnalysisThreadId = -1;
+
+    private long analysisThreadId() {
+        if (mAnalysisThreadId < 0) {
+            try {
+                mAnalysisThreadId = mAnalysis.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        return Thread.currentThread().getId();
+                    }
+                }).get();
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+        return mAnalysisThreadId;
+    }
+}
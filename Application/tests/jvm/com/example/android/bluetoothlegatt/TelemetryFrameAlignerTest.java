@@ -0,0 +1,136 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Real-time samples every 10 ms and averages every 50 ms, each average valued at its own time
+ * in ms so a row's expected average is easy to work out.
+ */
+public class TelemetryFrameAlignerTest {
+    private static final long MS = 1000000L;
+    private static final int RT_MS = 10;
+    private static final int AVG_MS = 50;
+
+    private final TelemetryFrameAligner mAligner = new TelemetryFrameAligner(256);
+    private long mLastRow = Long.MIN_VALUE;
+    private int mRows = 0;
+    private int mWrongAverages = 0;
+    private int mFrames = 0;
+    private float mTof = Float.NaN;
+    private long mTofTime;
+    // Newest average the rows should have seen, or -1 for none.
+    private long mExpectedAvgUntil = Long.MAX_VALUE;
+
+    private final TelemetryFrameAligner.Listener mListener = new TelemetryFrameAligner.Listener() {
+        @Override
+        public void onFrame(TelemetryFrameAligner.Frame frame) {
+            mFrames++;
+            for (int i = 0; i < frame.count; i++) {
+                assertTrue(frame.times[i] > mLastRow);
+                mLastRow = frame.times[i];
+                assertEquals(frame.times[i] / MS, (long) frame.rt[i]);
+                final long ms = Math.min(frame.times[i] / MS, mExpectedAvgUntil);
+                if (frame.avg[i] != ms / AVG_MS * AVG_MS) mWrongAverages++;
+                mRows++;
+            }
+            if (!Float.isNaN(frame.tof)) {
+                mTof = frame.tof;
+                mTofTime = frame.tofTime;
+            }
+        }
+    };
+
+    @Test
+    public void lateAveragesLandOnTheRightRows() {
+        // Each average arrives 60 ms after its time, well inside the allowed skew.
+        final int lateMs = 60;
+        for (int ms = 0; ms < 10000; ms += RT_MS) {
+            mAligner.add(SampleStore.STREAM_ANG_RT, ms * MS, ms);
+            if (ms >= lateMs && (ms - lateMs) % AVG_MS == 0) {
+                mAligner.add(SampleStore.STREAM_ANG_AVG, (ms - lateMs) * MS, ms - lateMs);
+            }
+            mAligner.flush(mListener);
+            // A row waits for an average newer than itself, or the skew, whichever is first.
+            assertTrue(mAligner.getPendingRows()
+                    <= TelemetryFrameAligner.MAX_SKEW_NANOS / (RT_MS * MS) + 1);
+        }
+        assertEquals(0, mWrongAverages);
+        assertTrue(mRows > 990);
+        assertEquals(0, mAligner.getRowsDropped());
+    }
+
+    @Test
+    public void stalledAveragesHoldRowsNoLongerThanTheSkew() {
+        final int stallMs = 1000;
+        mExpectedAvgUntil = stallMs - AVG_MS;
+        for (int ms = 0; ms < 3000; ms += RT_MS) {
+            mAligner.add(SampleStore.STREAM_ANG_RT, ms * MS, ms);
+            if (ms % AVG_MS == 0 && ms < stallMs) {
+                mAligner.add(SampleStore.STREAM_ANG_AVG, ms * MS, ms);
+            }
+            mAligner.flush(mListener);
+            if (ms >= stallMs) {
+                assertTrue(mLastRow >= (ms * MS) - TelemetryFrameAligner.MAX_SKEW_NANOS);
+            }
+        }
+        // Rows past the stall carry the last average there was.
+        assertEquals(0, mWrongAverages);
+        assertEquals(TelemetryFrameAligner.MAX_SKEW_NANOS / (RT_MS * MS),
+                mAligner.getPendingRows());
+    }
+
+    @Test
+    public void timeOfFlightGoesOutWithItsFrameAndTakesTheTail() {
+        for (int ms = 0; ms <= 500; ms += RT_MS) {
+            mAligner.add(SampleStore.STREAM_ANG_RT, ms * MS, ms);
+            if (ms % AVG_MS == 0) mAligner.add(SampleStore.STREAM_ANG_AVG, ms * MS, ms);
+        }
+        // Real-time samples stop at landing, and the averages have nothing newer to add.
+        mAligner.add(SampleStore.STREAM_ANG_RT, 505 * MS, 505);
+        mAligner.flush(mListener);
+        assertTrue(mAligner.getPendingRows() > 0);
+        assertTrue(Float.isNaN(mTof));
+
+        mAligner.add(SampleStore.STREAM_TOF, 505 * MS, 0.5f);
+        final int frames = mFrames;
+        mAligner.flush(mListener);
+        assertEquals(frames + 1, mFrames);
+        assertEquals(0.5f, mTof, 0);
+        assertEquals(505 * MS, mTofTime);
+        assertEquals(0, mAligner.getPendingRows());
+        assertEquals(52, mRows);
+
+        // Goes out once, and on a frame of its own when there are no rows.
+        mTof = Float.NaN;
+        mAligner.flush(mListener);
+        assertTrue(Float.isNaN(mTof));
+        mAligner.add(SampleStore.STREAM_TOF, 600 * MS, 1f);
+        mAligner.flush(mListener);
+        assertEquals(1f, mTof, 0);
+        assertEquals(52, mRows);
+    }
+
+    @Test
+    public void resetForgetsWhatIsPending() {
+        mAligner.add(SampleStore.STREAM_ANG_AVG, 0, 7);
+        for (int ms = 0; ms < 50; ms += RT_MS) {
+            mAligner.add(SampleStore.STREAM_ANG_RT, ms * MS, ms);
+        }
+        mAligner.add(SampleStore.STREAM_TOF, 40 * MS, 2f);
+        mAligner.reset();
+        assertEquals(0, mAligner.getPendingRows());
+        mAligner.flush(mListener);
+        assertEquals(0, mFrames);
+
+        // Starts over earlier in time, as after a replay seek, with no average held.
+        mExpectedAvgUntil = -1;
+        mAligner.add(SampleStore.STREAM_ANG_RT, 0, 0);
+        mAligner.add(SampleStore.STREAM_ANG_RT, 200 * MS, 200);
+        mAligner.flush(mListener);
+        assertEquals(1, mRows);
+        assertEquals(0, mWrongAverages);
+    }
+}
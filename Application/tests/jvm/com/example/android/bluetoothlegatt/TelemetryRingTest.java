@@ -0,0 +1,130 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryRingTest {
+    private static final int CAPACITY = 4096;
+    private static final int BATCH = 256;
+
+    @Test
+    public void readerSeesEverySampleInOrder() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TelemetryRing.sizeFor(CAPACITY));
+        final TelemetryRing ring = new TelemetryRing(buffer);
+        final TelemetryRing.Reader reader = new TelemetryRing.Reader(buffer.duplicate());
+        for (int i = 0; i < 100; i++) ring.write(i % 3, i, i * 0.5f);
+
+        final int[] streams = new int[BATCH];
+        final long[] times = new long[BATCH];
+        final float[] values = new float[BATCH];
+        assertEquals(100, reader.read(streams, times, values, BATCH));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 3, streams[i]);
+            assertEquals(i, times[i]);
+            assertEquals(i * 0.5f, values[i], 0);
+        }
+        assertEquals(0, reader.read(streams, times, values, BATCH));
+        assertEquals(100, ring.getWriteSequence());
+    }
+
+    @Test
+    public void lappedReaderCountsWhatItMissed() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TelemetryRing.sizeFor(CAPACITY));
+        final TelemetryRing ring = new TelemetryRing(buffer);
+        final TelemetryRing.Reader reader = new TelemetryRing.Reader(buffer.duplicate());
+        final int written = CAPACITY * 3 + 10;
+        for (int i = 0; i < written; i++) ring.write(0, i, i);
+
+        final int[] streams = new int[BATCH];
+        final long[] times = new long[BATCH];
+        final float[] values = new float[BATCH];
+        long got = 0;
+        long last = -1;
+        int n;
+        while ((n = reader.read(streams, times, values, BATCH)) > 0) {
+            for (int i = 0; i < n; i++) {
+                assertTrue(times[i] > last);
+                last = times[i];
+            }
+            got += n;
+        }
+        assertEquals(written - 1, last);
+        assertEquals(written, got + reader.getDroppedCount());
+    }
+
+    /**
+     * One writer flat out against a fast and a slow reader: nothing torn or out of order, and
+     * every sample either read or counted as dropped.
+     */
+    @Test
+    public void concurrentReadersNeverSeeTornRecords() throws InterruptedException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TelemetryRing.sizeFor(CAPACITY));
+        final TelemetryRing ring = new TelemetryRing(buffer);
+        final int written = 5000000;
+        final ReaderThread[] readers = {
+                new ReaderThread(buffer.duplicate(), false),
+                new ReaderThread(buffer.duplicate(), true) };
+        for (ReaderThread reader : readers) reader.start();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < written; i++) ring.write(i % 3, i, (float) (i % 1000));
+        final long elapsed = System.nanoTime() - start;
+        for (ReaderThread reader : readers) {
+            reader.mDone = true;
+            reader.join();
+        }
+
+        System.out.println(String.format("TelemetryRing.write: %.1f ns",
+                elapsed / (double) written));
+        for (ReaderThread reader : readers) {
+            assertEquals(0, reader.mBad);
+            assertEquals(written, reader.mGot + reader.mDropped);
+        }
+    }
+
+    private static class ReaderThread extends Thread {
+        private final TelemetryRing.Reader mReader;
+        private final boolean mSlow;
+        volatile boolean mDone = false;
+        long mGot = 0;
+        long mBad = 0;
+        long mDropped = 0;
+
+        ReaderThread(ByteBuffer buffer, boolean slow) {
+            mReader = new TelemetryRing.Reader(buffer);
+            mSlow = slow;
+        }
+
+        @Override
+        public void run() {
+            final int[] streams = new int[BATCH];
+            final long[] times = new long[BATCH];
+            final float[] values = new float[BATCH];
+            long last = -1;
+            double sink = 0;
+            while (true) {
+                final boolean done = mDone;
+                final int n = mReader.read(streams, times, values, BATCH);
+                for (int i = 0; i < n; i++) {
+                    if (streams[i] != (int) (times[i] % 3) || values[i] != (float) (times[i] % 1000)
+                            || times[i] <= last) {
+                        mBad++;
+                    }
+                    last = times[i];
+                }
+                mGot += n;
+                if (n == 0 && done) break;
+                if (mSlow && n > 0) {
+                    // Busy with each batch, like a client drawing it.
+                    for (int k = 0; k < 20000; k++) sink += Math.sqrt(k);
+                }
+            }
+            mDropped = mReader.getDroppedCount();
+            if (sink < 0) mBad++;
+        }
+    }
+}
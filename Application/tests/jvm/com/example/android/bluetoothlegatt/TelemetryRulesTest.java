@@ -0,0 +1,119 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TelemetryRulesTest {
+    private static final String RULES = "# demo\n"
+            + "spin < 50% -> led_blink_rate 4\n"
+            + "tof > 3 -> speaker_pitch 80\n"
+            + "avg >= 400 -> led_on_off 1\n";
+    private static final long BUDGET_NANOS_PER_SAMPLE = 1000;
+
+    private final List<Integer> mFired = new ArrayList<Integer>();
+    private final TelemetryRules.Listener mListener = new TelemetryRules.Listener() {
+        @Override
+        public void onRuleFired(int rule, long triggerNanos) {
+            mFired.add(rule);
+        }
+    };
+
+    @Test
+    public void compilesTargetsAndValues() throws ParseException {
+        final TelemetryRules rules = TelemetryRules.compile(RULES);
+        assertEquals(3, rules.size());
+        assertEquals(DiscGattAttributes.LED_CONTROL_UUID, rules.getService(0));
+        assertEquals(DiscGattAttributes.LED_BLINK_RATE_UUID, rules.getCharacteristic(0));
+        assertEquals(4, rules.getValue(0)[0]);
+        assertEquals(DiscGattAttributes.SPEAKER_PITCH_UUID, rules.getCharacteristic(1));
+        assertEquals(80, rules.getValue(1)[0]);
+    }
+
+    @Test
+    public void reportsWhereTheSourceIsWrong() {
+        try {
+            TelemetryRules.compile("tof > 3 -> speaker_pitch 80\nspin ~ 3 -> led_on_off 1");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(28, e.getErrorOffset());
+        }
+        try {
+            TelemetryRules.compile("spin > 3 -> led_on_off 300");
+            fail();
+        } catch (ParseException e) {
+            assertEquals(0, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void firesOncePerConditionPerFlight() throws ParseException {
+        final TelemetryRules rules = TelemetryRules.compile(RULES);
+        throwDisc(rules, 3.5f);
+        assertEquals(2, mFired.size());
+        assertEquals(0, (int) mFired.get(0));
+        assertEquals(1, (int) mFired.get(1));
+
+        mFired.clear();
+        throwDisc(rules, 2f);
+        assertEquals(1, mFired.size());
+        assertEquals(0, (int) mFired.get(0));
+    }
+
+    @Test
+    public void idleNoiseFiresNothing() throws ParseException {
+        final TelemetryRules rules = TelemetryRules.compile(RULES);
+        final Random random = new Random(7);
+        // A minute on the table at 100 Hz: a few deg/s of noise either way.
+        for (int k = 0; k < 6000; k++) {
+            rules.onSample(SampleStore.STREAM_ANG_RT, (float) random.nextGaussian() * 3, k,
+                    mListener);
+            if (k % 20 == 0) {
+                rules.onSample(SampleStore.STREAM_ANG_AVG, (float) random.nextGaussian(), k,
+                        mListener);
+            }
+        }
+        assertEquals(0, mFired.size());
+
+        // Still works for the throw that follows.
+        throwDisc(rules, 3.5f);
+        assertEquals(2, mFired.size());
+    }
+
+    @Test
+    public void evaluationStaysWithinBudget() throws ParseException {
+        final TelemetryRules rules = TelemetryRules.compile(RULES);
+        final TelemetryRules.Listener quiet = new TelemetryRules.Listener() {
+            @Override
+            public void onRuleFired(int rule, long triggerNanos) {
+            }
+        };
+        final int warmup = 2000000;
+        final int measured = 10000000;
+        long start = 0;
+        for (int k = 0; k < warmup + measured; k++) {
+            if (k == warmup) start = System.nanoTime();
+            rules.onSample(SampleStore.STREAM_ANG_RT, k % 1000, k, quiet);
+            if (k % 1000 == 999) rules.onSample(SampleStore.STREAM_TOF, 1f, k, quiet);
+        }
+        final double nanos = (System.nanoTime() - start) / (double) measured;
+        System.out.println(String.format("TelemetryRules.onSample: %.1f ns", nanos));
+        assertTrue("onSample takes " + nanos + " ns", nanos < BUDGET_NANOS_PER_SAMPLE);
+    }
+
+    /** Spin up to 1000 deg/s, decay, then land with the given time of flight. */
+    private void throwDisc(TelemetryRules rules, float tof) {
+        for (int k = 0; k < 400; k++) {
+            final float spin = k < 50 ? k * 20 : 1000 * (float) Math.exp(-(k - 50) / 200.0);
+            rules.onSample(SampleStore.STREAM_ANG_RT, spin, k, mListener);
+        }
+        rules.onSample(SampleStore.STREAM_TOF, tof, 400, mListener);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Four seconds of a throw at 100 Hz, set up as the service sets the analyzer up: a spin from
+ * 1500 deg/s decaying over a few seconds, with or without a wobble riding on it.
+ */
+public class WobbleAnalyzerTest {
+    private static final int WINDOW = 64;
+    private static final int MIN_BIN = 2;
+    private static final long INTERVAL_NANOS = 10000000L;
+    private static final int SAMPLES = 400;
+    // Exactly bin 2 of a 64 sample window at 100 Hz.
+    private static final double WOBBLE_HZ = 3.125;
+    private static final double WOBBLE_AMPLITUDE = 50;
+
+    private final WobbleAnalyzer mAnalyzer = new WobbleAnalyzer(WINDOW, MIN_BIN, WINDOW / 2);
+    private final WobbleAnalyzer.Result mResult = new WobbleAnalyzer.Result();
+
+    @Test
+    public void findsAWobbleOnADecayingSpin() {
+        throwDisc(WOBBLE_AMPLITUDE);
+        assertTrue(mAnalyzer.getLive(mResult));
+        assertEquals(WOBBLE_HZ, mResult.frequencyHz, 0.01);
+        assertEquals(WOBBLE_AMPLITUDE, mResult.amplitude, WOBBLE_AMPLITUDE * 0.05);
+
+        assertTrue(mAnalyzer.getFlight(mResult));
+        assertEquals(WOBBLE_HZ, mResult.frequencyHz, 0.05);
+        assertEquals(WOBBLE_AMPLITUDE, mResult.amplitude, WOBBLE_AMPLITUDE * 0.05);
+        assertEquals(WOBBLE_HZ, mAnalyzer.getFlightPeakFrequency(), 0.01);
+    }
+
+    @Test
+    public void aCleanSpinHasNoWobbleToSpeakOf() {
+        throwDisc(0);
+        assertTrue(mAnalyzer.getLive(mResult));
+        // The decay alone, against a 1500 deg/s spin.
+        assertTrue("amplitude " + mResult.amplitude, mResult.amplitude < 1);
+    }
+
+    @Test
+    public void nothingUntilAFullWindowAndAfterReset() {
+        for (int k = 0; k < WINDOW - 1; k++) {
+            mAnalyzer.add(k * INTERVAL_NANOS, 1500);
+        }
+        assertFalse(mAnalyzer.getLive(mResult));
+
+        mAnalyzer.reset();
+        throwDisc(WOBBLE_AMPLITUDE);
+        assertTrue(mAnalyzer.getFlight(mResult));
+        mAnalyzer.reset();
+        assertFalse(mAnalyzer.getLive(mResult));
+        assertFalse(mAnalyzer.getFlight(mResult));
+    }
+
+    private void throwDisc(double wobble) {
+        for (int k = 0; k < SAMPLES; k++) {
+            final double t = k * INTERVAL_NANOS * 1e-9;
+            final double spin = 1500 * Math.exp(-t / 3);
+            mAnalyzer.add(k * INTERVAL_NANOS,
+                    (float) (spin + wobble * Math.sin(2 * Math.PI * WOBBLE_HZ * t)));
+        }
+    }
+}